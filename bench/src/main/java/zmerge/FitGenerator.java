@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import com.garmin.fit.DateTime;
+import com.garmin.fit.FileEncoder;
+import com.garmin.fit.FileIdMesg;
+import com.garmin.fit.Fit;
+import com.garmin.fit.LapMesg;
+import com.garmin.fit.Manufacturer;
+import com.garmin.fit.RecordMesg;
+import com.garmin.fit.SessionMesg;
+import com.garmin.fit.Sport;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes synthetic but realistic Garmin/Zwift FIT file pairs for
+ * benchmarking.
+ * <p>
+ * The Garmin file records every second of the ride with heart rate,
+ * cadence and power and closes a lap every ten minutes. The ride is split
+ * into Zwift segments with a one minute gap between them, as when Zwift is
+ * restarted, and each segment is a separate Zwift file whose distance
+ * starts again from zero.
+ *
+ * @author Nicholas Rodie
+ */
+public final class FitGenerator {
+
+    // 2019-06-01T06:00:00Z in seconds since the FIT epoch
+    static final long START = 928216800L;
+    static final int LAP_SECONDS = 600;
+    static final int SEGMENT_GAP = 60;
+
+    private static final double SEMICIRCLES = Math.pow(2, 31) / 180;
+
+    /**
+     * A generated ride.
+     */
+    public static final class Ride {
+        public final File _garmin;
+        public final List<File> _zwift;
+
+        Ride(File garmin, List<File> zwift) {
+            _garmin = garmin;
+            _zwift = zwift;
+        }
+
+        public List<String> zwiftPaths() {
+            List<String> paths = new ArrayList<>();
+            for(File file : _zwift) paths.add(file.getPath());
+            return paths;
+        }
+    }
+
+    private FitGenerator() {}
+
+    /**
+     * Writes a ride of the given length, in seconds, to the directory.
+     */
+    public static Ride write(File dir, String name, int seconds, int segments) {
+        File garmin = new File(dir, name + "-garmin.fit");
+        List<File> zwift = new ArrayList<>();
+        writeGarmin(garmin, seconds);
+        int length = seconds / segments;
+        for(int s = 0; s < segments; s++) {
+            File file = new File(dir, name + "-zwift" + (s + 1) + ".fit");
+            // the first segment starts with the ride, later ones after a restart gap
+            int from = s * length + (s > 0 ? SEGMENT_GAP : 0);
+            int to = s == segments - 1 ? seconds : (s + 1) * length;
+            writeZwift(file, from, to);
+            zwift.add(file);
+        }
+        return new Ride(garmin, zwift);
+    }
+
+    private static FileIdMesg fileId(int manufacturer) {
+        FileIdMesg fileId = new FileIdMesg();
+        fileId.setType(com.garmin.fit.File.ACTIVITY);
+        fileId.setManufacturer(manufacturer);
+        fileId.setProduct(1);
+        fileId.setSerialNumber(12345L);
+        fileId.setTimeCreated(new DateTime(START));
+        return fileId;
+    }
+
+    private static void writeGarmin(File file, int seconds) {
+        FileEncoder encoder = new FileEncoder(file, Fit.ProtocolVersion.V2_0);
+        encoder.write(fileId(Manufacturer.GARMIN));
+        int laps = 0;
+        int lapStart = 0;
+        for(int t = 0; t <= seconds; t++) {
+            RecordMesg record = new RecordMesg();
+            record.setTimestamp(new DateTime(START + t));
+            // a stationary trainer: barometric altitude, no position, wheel speed
+            record.setAltitude(50f + (float) Math.sin(t / 97.0));
+            record.setDistance(t * 9.5f);
+            record.setSpeed(9.5f);
+            record.setHeartRate((short) (130 + (t % 40)));
+            record.setCadence((short) (85 + (t % 10)));
+            record.setPower(200 + (t % 75));
+            encoder.write(record);
+            if(t - lapStart == LAP_SECONDS || t == seconds) {
+                LapMesg lap = new LapMesg();
+                lap.setMessageIndex(laps++);
+                lap.setTimestamp(new DateTime(START + t));
+                lap.setStartTime(new DateTime(START + lapStart));
+                lap.setTotalElapsedTime((float) (t - lapStart));
+                lap.setTotalTimerTime((float) (t - lapStart));
+                lap.setTotalDistance((t - lapStart) * 9.5f);
+                encoder.write(lap);
+                lapStart = t;
+            }
+        }
+        SessionMesg session = new SessionMesg();
+        session.setTimestamp(new DateTime(START + seconds));
+        session.setStartTime(new DateTime(START));
+        session.setSport(Sport.CYCLING);
+        session.setTotalElapsedTime((float) seconds);
+        session.setTotalTimerTime((float) seconds);
+        session.setTotalDistance(seconds * 9.5f);
+        session.setFirstLapIndex(0);
+        session.setNumLaps(laps);
+        encoder.write(session);
+        encoder.close();
+    }
+
+    private static void writeZwift(File file, int from, int to) {
+        FileEncoder encoder = new FileEncoder(file, Fit.ProtocolVersion.V2_0);
+        encoder.write(fileId(Manufacturer.ZWIFT));
+        double distance = 0;
+        for(int t = from; t <= to; t++) {
+            // a lap of a hilly loop around Watopia-ish coordinates
+            double angle = t / 1800.0 * 2 * Math.PI;
+            double speed = 10 + 2 * Math.sin(t / 60.0);
+            distance += speed;
+            RecordMesg record = new RecordMesg();
+            record.setTimestamp(new DateTime(START + t));
+            record.setPositionLat((int) ((-11.64 + 0.02 * Math.sin(angle)) * SEMICIRCLES));
+            record.setPositionLong((int) ((166.95 + 0.02 * Math.cos(angle)) * SEMICIRCLES));
+            record.setAltitude((float) (20 + 80 * Math.sin(angle * 3)));
+            record.setDistance((float) distance);
+            record.setSpeed((float) speed);
+            record.setHeartRate((short) (130 + (t % 40)));
+            record.setPower(200 + (t % 75));
+            encoder.write(record);
+        }
+        SessionMesg session = new SessionMesg();
+        session.setTimestamp(new DateTime(START + to));
+        session.setStartTime(new DateTime(START + from));
+        session.setSport(Sport.CYCLING);
+        session.setTotalElapsedTime((float) (to - from));
+        session.setTotalTimerTime((float) (to - from));
+        session.setTotalDistance((float) distance);
+        encoder.write(session);
+        encoder.close();
+    }
+
+    /**
+     * Writes a ride for use outside JMH, e.g. for {@link InputBenchmark}.
+     * <pre>
+     * FitGenerator &lt;dir&gt; &lt;name&gt; &lt;hours&gt; [segments]
+     * </pre>
+     */
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: FitGenerator <dir> <name> <hours> [segments]");
+            System.exit(2);
+        }
+        File dir = new File(args[0]);
+        dir.mkdirs();
+        int seconds = (int) (Double.parseDouble(args[2]) * 3600);
+        int segments = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        Ride ride = write(dir, args[1], seconds, segments);
+        System.out.println(ride._garmin + " " + ride.zwiftPaths());
+    }
+}
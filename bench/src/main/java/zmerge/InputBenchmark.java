@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import com.garmin.fit.Decode;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decodes FIT files with each {@link FitInput.Mode} and reports the number of
+ * read system calls and the decode throughput.
+ * <p>
+ * Run with one or more large (50-200 MB) FIT files, e.g. a few days from
+ * {@link FitGenerator}:
+ * <pre>
+ * java -cp target/benchmarks.jar zmerge.InputBenchmark [--iterations n] [--reader decode|bytes|scan]
+ *      [--mode direct|buffered|mapped] file.fit ...
+ * </pre>
+ * The first iteration of each mode only warms the JIT and page cache and
+ * is not reported.
+ * <p>
+ * {@code --reader bytes} reads each file one byte at a time, the way
+ * {@code Decode.read} consumes its stream, without decoding. It gives the
+ * cost of the input itself, and works without the FIT SDK. {@code --reader
+ * scan} reads it with {@link FitScanner}, which reads large blocks.
+ * {@code --mode} runs one mode only; run each mode in its own JVM for
+ * byte at a time reads, or the JIT can no longer inline the read calls
+ * by the time it gets to the last mode.
+ *
+ * @author Nicholas Rodie
+ */
+public class InputBenchmark {
+
+    /**
+     * A file stream that counts calls into the OS.
+     */
+    private static class CountingFileInputStream extends FileInputStream {
+        long _calls;
+
+        CountingFileInputStream(String path) throws IOException {
+            super(path);
+        }
+
+        @Override
+        public int read() throws IOException {
+            _calls++;
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            _calls++;
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            _calls++;
+            return super.skip(n);
+        }
+    }
+
+    private static long _sink;
+
+    private static void read(InputStream stream, String reader) throws IOException {
+        switch (reader) {
+            case "bytes":
+                long sum = 0;
+                int b;
+                while((b = stream.read()) != -1) sum += b;
+                _sink += sum;
+                break;
+            case "scan":
+                _sink += FitScanner.scan(stream).getRecords();
+                break;
+            default:
+                Decode decode = new Decode();
+                decode.read(stream);
+                break;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int iterations = 5;
+        String reader = "decode";
+        List<FitInput.Mode> modes = Arrays.asList(FitInput.Mode.values());
+        int first = 0;
+        while(args.length > first + 1 && args[first].startsWith("--")) {
+            if(args[first].equals("--iterations")) iterations = Integer.parseInt(args[first + 1]);
+            else if(args[first].equals("--reader")) reader = args[first + 1];
+            else if(args[first].equals("--mode")) 
+                modes = Collections.singletonList(FitInput.Mode.valueOf(args[first + 1].toUpperCase()));
+            else break;
+            first += 2;
+        }
+        if(args.length <= first || !Arrays.asList("decode", "bytes", "scan").contains(reader)) {
+            System.err.println("Usage: InputBenchmark [--iterations n] [--reader decode|bytes|scan] [--mode m] file.fit ...");
+            System.exit(2);
+        }
+
+        System.out.printf("%-40s %-9s %14s %10s%n", "file", "mode", "syscalls", "MB/s");
+        for(int f = first; f < args.length; f++) {
+            String path = args[f];
+            long bytes = new File(path).length();
+            for(FitInput.Mode mode : modes) {
+                long calls = 0;
+                long nanos = 0;
+                for(int i = 0; i <= iterations; i++) {
+                    long start = System.nanoTime();
+                    long c;
+                    if(mode == FitInput.Mode.MAPPED) {
+                        try (MappedInputStream stream = new MappedInputStream(Paths.get(path))) {
+                            read(stream, reader);
+                            c = stream.getMappings();
+                        }
+                    }
+                    else {
+                        CountingFileInputStream file = new CountingFileInputStream(path);
+                        try (InputStream stream = FitInput.wrap(file, mode)) {
+                            read(stream, reader);
+                        }
+                        c = file._calls;
+                    }
+                    // iteration 0 is warm up
+                    if(i > 0) {
+                        nanos += System.nanoTime() - start;
+                        calls += c;
+                    }
+                }
+                double mbPerSec = (bytes * (double) iterations / (1024 * 1024)) / (nanos / 1e9);
+                System.out.printf("%-40s %-9s %14d %10.1f%n", new File(path).getName(), mode, calls / iterations, mbPerSec);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the merge hot paths on generated rides.
+ * <pre>
+ * java -jar target/benchmarks.jar MergeBenchmark -prof gc
+ * </pre>
+ * {@code -prof gc} adds the allocation rate; the {@code peakHeapMB}
+ * counter is the peak heap use seen during each iteration and
+ * {@code bytesPerMesg} the bytes the Garmin rewrite allocates per message.
+ *
+ * @author Nicholas Rodie
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Rides {
+
+        @Param({"1", "6", "24"})
+        public int hours;
+
+        @Param({"1", "3"})
+        public int segments;
+
+        File _dir, _out, _sidecar;
+        FitGenerator.Ride _ride;
+        ZwiftTrack _track;
+
+        @Setup(Level.Trial)
+        public void generate() throws IOException {
+            _dir = Files.createTempDirectory("zmerge-bench").toFile();
+            _ride = FitGenerator.write(_dir, "ride", hours * 3600, segments);
+            _out = new File(_dir, "merged.fit");
+            _track = newMerge(Merge.ZwiftMode.LOAD).getZwiftTrack();
+            _sidecar = new File(_dir, "ride" + TrackFile.EXTENSION);
+            TrackFile.write(_track, _sidecar.toPath());
+        }
+
+        Merge newMerge(Merge.ZwiftMode mode) {
+            Merge merge = new Merge(_ride._garmin.getPath(), _ride.zwiftPaths(), _out.getPath());
+            merge.setZwiftMode(mode);
+            return merge;
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() {
+            File[] files = _dir.listFiles();
+            if(files != null) for(File file : files) file.delete();
+            _dir.delete();
+        }
+    }
+
+    /**
+     * Reports the peak heap use of each iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+
+        public double peakHeapMB;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            System.gc();
+            for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) 
+                if(pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+
+        @TearDown(Level.Iteration)
+        public void read() {
+            long peak = 0;
+            for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) 
+                if(pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+            peakHeapMB = peak / (1024.0 * 1024.0);
+        }
+    }
+
+    /**
+     * Reports the allocation per Garmin message of the last rewrite.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Allocation {
+
+        public double bytesPerMesg;
+
+        void read(Merge merge) {
+            MergeMetrics metrics = merge.getMetrics();
+            if(metrics.getGarminMesgs() > 0) 
+                bytesPerMesg = metrics.getAllocated(MergeMetrics.Phase.GARMIN_REWRITE) / (double) metrics.getGarminMesgs();
+        }
+    }
+
+    @Benchmark
+    public ZwiftTrack zwiftIngest(Rides rides, Heap heap) {
+        return rides.newMerge(Merge.ZwiftMode.LOAD).getZwiftTrack();
+    }
+
+    @Benchmark
+    public ZwiftTrack trackFileLoad(Rides rides, Heap heap) throws IOException {
+        return TrackFile.open(rides._sidecar.toPath()).toTrack();
+    }
+
+    @Benchmark
+    public void garminRewrite(Rides rides, Heap heap, Allocation allocation) {
+        Merge merge = rides.newMerge(Merge.ZwiftMode.LOAD);
+        merge.createNewGarminFile(rides._track.cursor(), rides._out);
+        allocation.read(merge);
+    }
+
+    @Benchmark
+    public void garminPatch(Rides rides, Heap heap, Allocation allocation) {
+        Merge merge = rides.newMerge(Merge.ZwiftMode.LOAD);
+        merge.setGarminMode(Merge.GarminMode.PATCH);
+        merge.createNewGarminFile(rides._track.cursor(), rides._out);
+        allocation.read(merge);
+    }
+
+    @Benchmark
+    public void mergeLoad(Rides rides, Heap heap) {
+        rides.newMerge(Merge.ZwiftMode.LOAD).run();
+    }
+
+    @Benchmark
+    public void mergeStream(Rides rides, Heap heap) {
+        rides.newMerge(Merge.ZwiftMode.STREAM).run();
+    }
+
+    @Benchmark
+    public void mergePipeline(Rides rides, Heap heap) {
+        rides.newMerge(Merge.ZwiftMode.PIPELINE).run();
+    }
+
+    @Benchmark
+    public void mergeMapped(Rides rides, Heap heap) {
+        rides.newMerge(Merge.ZwiftMode.MAPPED).run();
+    }
+}
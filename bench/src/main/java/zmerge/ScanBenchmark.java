@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import com.garmin.fit.Decode;
+import com.garmin.fit.Mesg;
+import com.garmin.fit.MesgListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares reading {@link FitInfo} with the scanner against a full decode
+ * of the Garmin file.
+ * <pre>
+ * java -jar target/benchmarks.jar ScanBenchmark
+ * </pre>
+ *
+ * @author Nicholas Rodie
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Rides {
+
+        @Param({"1", "6", "24"})
+        public int hours;
+
+        File _dir;
+        FitGenerator.Ride _ride;
+
+        @Setup(Level.Trial)
+        public void generate() throws IOException {
+            _dir = Files.createTempDirectory("zmerge-bench").toFile();
+            _ride = FitGenerator.write(_dir, "ride", hours * 3600, 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() {
+            File[] files = _dir.listFiles();
+            if(files != null) for(File file : files) file.delete();
+            _dir.delete();
+        }
+    }
+
+    @Benchmark
+    public FitInfo scan(Rides rides) throws IOException {
+        return FitInfo.read(rides._ride._garmin.toPath());
+    }
+
+    @Benchmark
+    public int decode(Rides rides) throws IOException {
+        int[] mesgs = new int[1];
+        try (InputStream stream = FitInput.open(rides._ride._garmin.getPath(), FitInput.Mode.BUFFERED)) {
+            Decode decode = new Decode();
+            decode.addListener((MesgListener) (Mesg mesg) -> mesgs[0]++);
+            decode.read(stream);
+        }
+        return mesgs[0];
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the same merge to a {@link Service} from a number of client threads
+ * at once and reports the latency percentiles for each concurrency level.
+ * <pre>
+ * java -cp target/benchmarks.jar zmerge.ServiceLoadTest [--url http://host:8080/merge]
+ *      [--levels 1,4,16] [--requests n] [--garmin file.fit --zwift file.fit ...]
+ * </pre>
+ * Without {@code --url} a service is started in this JVM, and without
+ * files a one hour ride is generated.
+ *
+ * @author Nicholas Rodie
+ */
+public class ServiceLoadTest {
+
+    private static final String BOUNDARY = "zmergeLoadTest";
+
+    private static byte[] multipart(File garmin, List<File> zwift) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        addPart(body, "garmin", garmin);
+        for(File file : zwift) addPart(body, "zwift", file);
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return body.toByteArray();
+    }
+
+    private static void addPart(ByteArrayOutputStream body, String name, File file) throws IOException {
+        String headers = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + file.getName() + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n";
+        body.write(headers.getBytes(StandardCharsets.UTF_8));
+        body.write(Files.readAllBytes(file.toPath()));
+        body.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Posts one merge.
+     *
+     * @return the HTTP status
+     */
+    private static int post(URL url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if(in != null) {
+            // read it all so the connection can be reused
+            try (InputStream stream = in) {
+                byte[] buf = new byte[64 * 1024];
+                while(stream.read(buf) >= 0);
+            }
+        }
+        return status;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if(sorted.length == 0) return Double.NaN;
+        int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = null;
+        int[] levels = {1, 2, 4, 8, 16};
+        int requests = 64;
+        File garmin = null;
+        List<File> zwift = new ArrayList<>();
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--url":
+                        url = args[++i];
+                        break;
+                    case "--levels":
+                        levels = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                        break;
+                    case "--requests":
+                        requests = Integer.parseInt(args[++i]);
+                        break;
+                    case "--garmin":
+                        garmin = new File(args[++i]);
+                        break;
+                    case "--zwift":
+                        zwift.add(new File(args[++i]));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if((garmin == null) != zwift.isEmpty()) throw new IllegalArgumentException("Give both --garmin and --zwift");
+        }
+        catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println("Usage: ServiceLoadTest [--url url] [--levels 1,4,16] [--requests n] "
+                    + "[--garmin file.fit --zwift file.fit ...]");
+            System.exit(2);
+        }
+
+        File dir = null;
+        Service service = null;
+        try {
+            if(garmin == null) {
+                dir = Files.createTempDirectory("zmerge-load").toFile();
+                FitGenerator.Ride ride = FitGenerator.write(dir, "ride", 3600, 1);
+                garmin = ride._garmin;
+                for(String path : ride.zwiftPaths()) zwift.add(new File(path));
+            }
+            if(url == null) {
+                service = new Service(0, Runtime.getRuntime().availableProcessors(), 512L * 1024 * 1024);
+                service.start();
+                url = "http://localhost:" + service.getPort() + "/merge";
+            }
+            URL target = new URL(url);
+            byte[] body = multipart(garmin, zwift);
+
+            // warm up the JIT on both sides
+            for(int i = 0; i < 5; i++) post(target, body);
+
+            System.out.printf("%8s %10s %10s %10s %10s %8s%n", "clients", "p50 ms", "p99 ms", "max ms", "req/s", "errors");
+            for(int clients : levels) {
+                long[] latencies = new long[requests];
+                AtomicInteger next = new AtomicInteger(), errors = new AtomicInteger();
+                ExecutorService pool = Executors.newFixedThreadPool(clients);
+                long start = System.nanoTime();
+                List<Future<?>> futures = new ArrayList<>();
+                for(int c = 0; c < clients; c++) {
+                    futures.add(pool.submit(() -> {
+                        int i;
+                        while((i = next.getAndIncrement()) < latencies.length) {
+                            long t = System.nanoTime();
+                            int status;
+                            try {
+                                status = post(target, body);
+                            }
+                            catch (IOException e) {
+                                status = -1;
+                            }
+                            latencies[i] = System.nanoTime() - t;
+                            if(status != 200) errors.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+                for(Future<?> future : futures) future.get();
+                long nanos = System.nanoTime() - start;
+                pool.shutdown();
+                Arrays.sort(latencies);
+                System.out.printf("%8d %10.1f %10.1f %10.1f %10.1f %8d%n", clients, percentile(latencies, 50), 
+                        percentile(latencies, 99), latencies[latencies.length - 1] / 1e6, 
+                        requests / (nanos / 1e9), errors.get());
+            }
+        }
+        finally {
+            if(service != null) service.stop();
+            if(dir != null) {
+                File[] files = dir.listFiles();
+                if(files != null) for(File file : files) file.delete();
+                dir.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the retained heap per Zwift record of a {@link ZwiftTrack}
+ * against the map of maps it replaced, on a generated ride with the same
+ * values {@link FitGenerator} writes.
+ * <pre>
+ * java -cp target/benchmarks.jar zmerge.TrackHeap [hours]
+ * </pre>
+ * Each layout is built with nothing else reachable and measured as the
+ * used heap after a full GC, less the used heap before it was built.
+ *
+ * @author Nicholas Rodie
+ */
+public class TrackHeap {
+
+    private static final double SEMICIRCLES = Math.pow(2, 31) / 180;
+
+    // the keys of the old inner maps
+    private enum Field {
+        ALTITUDE,
+        DISTANCE,
+        LATITUDE,
+        LONGITUDE,
+        SPEED
+    };
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private static long used() {
+        for(int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    private static Map<Integer, HashMap<Field, Double>> buildMap(int seconds) {
+        Map<Integer, HashMap<Field, Double>> records = new HashMap<>();
+        double distance = 0;
+        for(int t = 0; t < seconds; t++) {
+            double angle = t / 1800.0 * 2 * Math.PI;
+            double speed = 10 + 2 * Math.sin(t / 60.0);
+            distance += speed;
+            HashMap<Field, Double> record = new HashMap<>();
+            records.put((int) FitGenerator.START + t, record);
+            record.put(Field.ALTITUDE, 20 + 80 * Math.sin(angle * 3));
+            record.put(Field.DISTANCE, distance);
+            record.put(Field.LATITUDE, (double) (int) ((-11.64 + 0.02 * Math.sin(angle)) * SEMICIRCLES));
+            record.put(Field.LONGITUDE, (double) (int) ((166.95 + 0.02 * Math.cos(angle)) * SEMICIRCLES));
+            record.put(Field.SPEED, speed);
+        }
+        return records;
+    }
+
+    private static ZwiftTrack buildTrack(int seconds) {
+        ZwiftTrack track = new ZwiftTrack();
+        track.startSegment();
+        double distance = 0;
+        for(int t = 0; t < seconds; t++) {
+            double angle = t / 1800.0 * 2 * Math.PI;
+            double speed = 10 + 2 * Math.sin(t / 60.0);
+            distance += speed;
+            track.add((int) FitGenerator.START + t, 20 + 80 * Math.sin(angle * 3), distance, 
+                    (int) ((-11.64 + 0.02 * Math.sin(angle)) * SEMICIRCLES), 
+                    (int) ((166.95 + 0.02 * Math.cos(angle)) * SEMICIRCLES), speed);
+        }
+        return track;
+    }
+
+    public static void main(String[] args) {
+        int seconds = (args.length > 0 ? Integer.parseInt(args[0]) : 24) * 3600;
+        // load the classes first so they aren't counted
+        buildMap(1000);
+        buildTrack(1000).seal();
+
+        long before = used();
+        Object map = buildMap(seconds);
+        long mapBytes = used() - before;
+        map.hashCode();
+        map = null;
+
+        before = used();
+        ZwiftTrack track = buildTrack(seconds);
+        long growing = used() - before;
+        track.seal();
+        long sealed = used() - before;
+        track.size();
+
+        System.out.printf("%d records%n", seconds);
+        System.out.printf("map of maps         %8.1f bytes/record%n", (double) mapBytes / seconds);
+        System.out.printf("ZwiftTrack, adding  %8.1f bytes/record%n", (double) growing / seconds);
+        System.out.printf("ZwiftTrack, sealed  %8.1f bytes/record%n", (double) sealed / seconds);
+    }
+}
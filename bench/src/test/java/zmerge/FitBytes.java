@@ -0,0 +1,263 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes and reads FIT files byte by byte for the tests, without the SDK or
+ * the code under test.
+ *
+ * @author Nicholas Rodie
+ */
+final class FitBytes {
+
+    // base types
+    static final int ENUM = 0x00, UINT8 = 0x02, UINT16 = 0x84, SINT32 = 0x85, UINT32 = 0x86;
+    static final int GARMIN = 1, ZWIFT = 260;
+    static final int TIMESTAMP = 253;
+
+    private final ByteArrayOutputStream _body = new ByteArrayOutputStream();
+    // by local message type, each field as {num, size, base type}
+    private final int[][][] _fields = new int[16][][];
+    private final boolean[] _bigEndian = new boolean[16];
+    private final int[] _devSize = new int[16];
+
+    static int[] field(int num, int baseType) {
+        return new int[] {num, baseType == ENUM || baseType == UINT8 ? 1 : baseType == UINT16 ? 2 : 4, baseType};
+    }
+
+    FitBytes define(int local, int num, int[]... fields) {
+        return define(local, num, false, new int[0], fields);
+    }
+
+    /**
+     * @param devSizes the sizes of the message's developer fields
+     */
+    FitBytes define(int local, int num, boolean bigEndian, int[] devSizes, int[]... fields) {
+        _body.write(0x40 | (devSizes.length > 0 ? 0x20 : 0) | local);
+        _body.write(0);
+        _body.write(bigEndian ? 1 : 0);
+        write(num, 2, bigEndian);
+        _body.write(fields.length);
+        for(int[] field : fields) for(int b : field) _body.write(b);
+        int devSize = 0;
+        if(devSizes.length > 0) {
+            _body.write(devSizes.length);
+            for(int i = 0; i < devSizes.length; i++) {
+                _body.write(i);
+                _body.write(devSizes[i]);
+                _body.write(0);
+                devSize += devSizes[i];
+            }
+        }
+        _fields[local] = fields;
+        _bigEndian[local] = bigEndian;
+        _devSize[local] = devSize;
+        return this;
+    }
+
+    /**
+     * A message with a normal header, one value per field, and developer
+     * fields filled with 0xD0, 0xD1...
+     */
+    FitBytes data(int local, long... values) {
+        _body.write(local);
+        values(local, values);
+        return this;
+    }
+
+    /**
+     * A message with a compressed timestamp header, for a definition in
+     * local types 0 to 3 without a timestamp field.
+     */
+    FitBytes compressed(int local, int timestamp, long... values) {
+        _body.write(0x80 | (local << 5) | (timestamp & 0x1F));
+        values(local, values);
+        return this;
+    }
+
+    private void values(int local, long[] values) {
+        int[][] fields = _fields[local];
+        if(values.length != fields.length) throw new IllegalArgumentException("expected " + fields.length + " values");
+        for(int i = 0; i < fields.length; i++) write(values[i], fields[i][1], _bigEndian[local]);
+        for(int i = 0; i < _devSize[local]; i++) _body.write(0xD0 + i);
+    }
+
+    private void write(long value, int size, boolean bigEndian) {
+        for(int i = 0; i < size; i++) _body.write((int) (value >>> (8 * (bigEndian ? size - 1 - i : i))));
+    }
+
+    /**
+     * The file, with its 14 byte header and CRCs.
+     */
+    byte[] bytes() {
+        byte[] body = _body.toByteArray();
+        byte[] file = new byte[14 + body.length + 2];
+        file[0] = 14;
+        file[1] = 0x20;
+        file[2] = (byte) 2132;
+        file[3] = (byte) (2132 >> 8);
+        for(int i = 0; i < 4; i++) file[4 + i] = (byte) (body.length >>> (8 * i));
+        file[8] = '.';
+        file[9] = 'F';
+        file[10] = 'I';
+        file[11] = 'T';
+        int crc = crc(0, file, 0, 12);
+        file[12] = (byte) crc;
+        file[13] = (byte) (crc >> 8);
+        System.arraycopy(body, 0, file, 14, body.length);
+        crc = crc(0, file, 0, file.length - 2);
+        file[file.length - 2] = (byte) crc;
+        file[file.length - 1] = (byte) (crc >> 8);
+        return file;
+    }
+
+    static byte[] chain(byte[] first, byte[] second) {
+        byte[] chained = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, chained, first.length, second.length);
+        return chained;
+    }
+
+    private static final int[] CRC_TABLE = {
+        0x0000, 0xCC01, 0xD801, 0x1400, 0xF001, 0x3C00, 0x2800, 0xE401,
+        0xA001, 0x6C00, 0x7800, 0xB401, 0x5000, 0x9C01, 0x8801, 0x4400
+    };
+
+    static int crc(int crc, byte[] b, int off, int len) {
+        for(int i = off; i < off + len; i++) {
+            int tmp = CRC_TABLE[crc & 0xF];
+            crc = (crc >> 4) & 0x0FFF;
+            crc = crc ^ tmp ^ CRC_TABLE[b[i] & 0xF];
+            tmp = CRC_TABLE[crc & 0xF];
+            crc = (crc >> 4) & 0x0FFF;
+            crc = crc ^ tmp ^ CRC_TABLE[(b[i] >> 4) & 0xF];
+        }
+        return crc;
+    }
+
+    /**
+     * True if the file is one FIT file whose header, data size and CRC agree.
+     */
+    static boolean isValid(byte[] file) {
+        if(file.length < 16 || file[0] != 14) return false;
+        long size = 0;
+        for(int i = 0; i < 4; i++) size |= (long) (file[4 + i] & 0xFF) << (8 * i);
+        return size == file.length - 16 && crc(0, file, 0, 12) == ((file[12] & 0xFF) | (file[13] & 0xFF) << 8) 
+                && crc(0, file, 0, file.length) == 0;
+    }
+
+    /**
+     * A data message as read back.
+     */
+    static final class Message {
+        int _num;
+        long _timestamp = -1;
+        boolean _compressed;
+        // field number to value, signed for SINT32
+        final Map<Integer, Long> _fields = new HashMap<>();
+        byte[] _dev;
+
+        Long get(int num) {
+            return _fields.get(num);
+        }
+    }
+
+    /**
+     * The data messages of one FIT file, with compressed timestamps worked
+     * out.
+     */
+    static List<Message> read(byte[] file) {
+        int pos = file[0] & 0xFF;
+        long size = 0;
+        for(int i = 0; i < 4; i++) size |= (long) (file[4 + i] & 0xFF) << (8 * i);
+        long end = pos + size;
+        int[][][] fields = new int[16][][];
+        int[] nums = new int[16], devSizes = new int[16];
+        boolean[] bigEndian = new boolean[16];
+        long last = -1;
+        List<Message> messages = new ArrayList<>();
+        while(pos < end) {
+            int header = file[pos++] & 0xFF;
+            int local;
+            Message message = new Message();
+            if((header & 0x80) != 0) {
+                local = (header >> 5) & 0x03;
+                int offset = header & 0x1F;
+                long timestamp = (last & ~0x1FL) + offset;
+                if(offset < (last & 0x1F)) timestamp += 0x20;
+                last = message._timestamp = timestamp;
+                message._compressed = true;
+            }
+            else if((header & 0x40) != 0) {
+                local = header & 0x0F;
+                bigEndian[local] = file[pos + 1] == 1;
+                nums[local] = (int) value(file, pos + 2, 2, bigEndian[local], false);
+                int count = file[pos + 4] & 0xFF;
+                pos += 5;
+                fields[local] = new int[count][];
+                for(int i = 0; i < count; i++, pos += 3) 
+                    fields[local][i] = new int[] {file[pos] & 0xFF, file[pos + 1] & 0xFF, file[pos + 2] & 0xFF};
+                devSizes[local] = 0;
+                if((header & 0x20) != 0) {
+                    int devCount = file[pos++] & 0xFF;
+                    for(int i = 0; i < devCount; i++, pos += 3) devSizes[local] += file[pos + 1] & 0xFF;
+                }
+                continue;
+            }
+            else {
+                local = header & 0x0F;
+            }
+            message._num = nums[local];
+            for(int[] field : fields[local]) {
+                long value = value(file, pos, field[1], bigEndian[local], field[2] == SINT32);
+                message._fields.put(field[0], value);
+                // an invalid timestamp isn't a time
+                if(field[0] == TIMESTAMP && field[1] == 4 && value != 0xFFFFFFFFL) last = message._timestamp = value;
+                pos += field[1];
+            }
+            message._dev = Arrays.copyOfRange(file, pos, pos + devSizes[local]);
+            pos += devSizes[local];
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    static List<Message> read(byte[] file, int num) {
+        List<Message> messages = new ArrayList<>();
+        for(Message message : read(file)) if(message._num == num) messages.add(message);
+        return messages;
+    }
+
+    private static long value(byte[] b, int off, int size, boolean bigEndian, boolean signed) {
+        long value = 0;
+        for(int i = 0; i < size; i++) value |= (long) (b[off + i] & 0xFF) << (8 * (bigEndian ? size - 1 - i : i));
+        return signed && size == 4 ? (int) value : value;
+    }
+}
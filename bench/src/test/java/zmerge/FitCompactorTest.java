@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static zmerge.FitBytes.GARMIN;
+import static zmerge.FitBytes.TIMESTAMP;
+import static zmerge.FitBytes.UINT32;
+import static zmerge.FitBytes.UINT8;
+import static zmerge.FitBytes.field;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Compacts patched and hand written FIT files and reads them back without
+ * the SDK, checking every message keeps its timestamp and values.
+ *
+ * @author Nicholas Rodie
+ */
+class FitCompactorTest {
+
+    private static final int START = 1_000_000_000;
+    private static final int RECORD = 20, LAP = 19, SESSION = 18;
+
+    @TempDir
+    Path _dir;
+
+    private static byte[] patched() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            GarminPatcher.patch(new ByteArrayInputStream(GarminPatcherTest.garmin(GARMIN).bytes()), out, 
+                    new RideTotals(GarminPatcherTest.zwift().cursor()), () -> {}, null, new MergeMetrics.MesgCounter());
+        }
+        catch (GarminPatcher.NotPatchableException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] compact(byte[] in, boolean prune) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FitCompactor compactor = FitCompactor.compact(new ByteArrayInputStream(in), out, prune);
+        assertEquals(out.size(), compactor._written);
+        byte[] bytes = out.toByteArray();
+        assertTrue(FitBytes.isValid(bytes));
+        return bytes;
+    }
+
+    /**
+     * The same messages in the same order, allowing for timestamp fields
+     * moved into compressed headers and any pruned fields.
+     */
+    private static void assertSame(byte[] in, byte[] out, boolean pruned) {
+        List<FitBytes.Message> expected = FitBytes.read(in), actual = FitBytes.read(out);
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++) {
+            FitBytes.Message e = expected.get(i), a = actual.get(i);
+            assertEquals(e._num, a._num);
+            assertEquals(e._timestamp, a._timestamp);
+            assertArrayEquals(e._dev, a._dev);
+            for(int num : e._fields.keySet()) {
+                if(num == TIMESTAMP && a._compressed) assertNull(a.get(num));
+                else if(pruned && legacy(e._num, num)) assertNull(a.get(num));
+                else assertEquals(e.get(num), a.get(num), "field " + num + " of message " + i);
+            }
+        }
+    }
+
+    private static boolean legacy(int mesg, int num) {
+        switch (mesg) {
+            case RECORD:
+                return num == 2 || num == 6;
+            case LAP:
+                return num == 13 || num == 14;
+            case SESSION:
+                return num == 14 || num == 15;
+            default:
+                return false;
+        }
+    }
+
+    @Test
+    void keepsEveryMessage() throws IOException {
+        byte[] in = patched();
+        byte[] out = compact(in, false);
+        assertSame(in, out, false);
+        // 4 bytes off nearly every record, less a definition or two
+        assertTrue(out.length < in.length - 30 * 4, out.length + " from " + in.length);
+        long compressed = FitBytes.read(out, RECORD).stream().filter(m -> m._compressed).count();
+        assertEquals(39, compressed);
+    }
+
+    @Test
+    void pruneDropsLegacyFields() throws IOException {
+        byte[] in = patched();
+        byte[] out = compact(in, true);
+        assertSame(in, out, true);
+        for(FitBytes.Message record : FitBytes.read(out, RECORD)) {
+            assertNull(record.get(2));
+            assertNull(record.get(6));
+            assertTrue(record.get(78) != null && record.get(73) != null);
+        }
+        FitBytes.Message session = FitBytes.read(out, SESSION).get(0);
+        assertNull(session.get(14));
+        assertNull(session.get(15));
+        assertEquals(FitBytes.read(in, SESSION).get(0).get(14), session.get(124));
+        assertTrue(out.length < compact(in, false).length);
+    }
+
+    @Test
+    void definitionsAreWrittenAgainWhenPushedOut() throws IOException {
+        // six message types taking turns, more than the compressed local types
+        FitBytes fit = new FitBytes();
+        for(int k = 0; k < 6; k++) fit.define(k, 0xFF01 + k, field(TIMESTAMP, UINT32), field(0, UINT8));
+        for(int i = 0; i < 120; i++) fit.data(i % 6, START + i, i);
+        byte[] in = fit.bytes();
+        byte[] out = compact(in, false);
+        assertSame(in, out, false);
+        assertEquals(119, FitBytes.read(out).stream().filter(m -> m._compressed).count());
+    }
+
+    @Test
+    void gapsAndCompressedInputKeepTheirTimestamps() throws IOException {
+        FitBytes fit = new FitBytes()
+                .define(0, RECORD, field(TIMESTAMP, UINT32), field(3, UINT8))
+                .data(0, START, 100)
+                .define(1, RECORD, field(3, UINT8));
+        // compressed input running over a 32 second boundary
+        for(int i = 1; i < 40; i++) fit.compressed(1, START + i, 100 + i);
+        fit.data(0, START + 100, 200)
+                .data(0, 0xFFFFFFFFL, 201)
+                .data(0, START + 101, 202);
+        byte[] in = fit.bytes();
+        byte[] out = compact(in, false);
+        assertSame(in, out, false);
+        List<FitBytes.Message> records = FitBytes.read(out, RECORD);
+        assertFalse(records.get(40)._compressed);
+        assertEquals(0xFFFFFFFFL, (long) records.get(41).get(TIMESTAMP));
+        assertTrue(records.get(42)._compressed);
+    }
+
+    @Test
+    void fileMatchesStream() throws IOException {
+        byte[] in = patched();
+        File file = _dir.resolve("compact.fit").toFile();
+        FitCompactor compactor = FitCompactor.compact(new ByteArrayInputStream(in), file, true);
+        byte[] out = Files.readAllBytes(file.toPath());
+        assertEquals(out.length, compactor._written);
+        assertArrayEquals(compact(in, true), out);
+    }
+
+    @Test
+    void chainedFilesAreRejected() throws IOException {
+        byte[] in = patched();
+        assertThrows(IOException.class, () -> compact(FitBytes.chain(in, in), false));
+    }
+}
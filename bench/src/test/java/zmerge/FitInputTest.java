@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Every input mode gives back the file's bytes, whatever mix of single
+ * byte reads, block reads and skips the reader makes across buffer and
+ * window boundaries.
+ *
+ * @author Nicholas Rodie
+ */
+class FitInputTest {
+
+    @TempDir
+    Path _dir;
+
+    /**
+     * Reads the stream with random operations.
+     */
+    private static byte[] readMixed(InputStream in, long seed, byte[] expected) throws IOException {
+        Random random = new Random(seed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[FitInput.BUFFER_SIZE * 2];
+        while(true) {
+            int op = random.nextInt(10);
+            if(op < 5) {
+                int b = in.read();
+                if(b < 0) break;
+                out.write(b);
+            }
+            else if(op < 9) {
+                // now and then bigger than the buffer
+                int len = random.nextInt(10) == 0 ? buf.length : random.nextInt(5000);
+                int n = in.read(buf, 0, len);
+                if(n < 0) break;
+                out.write(buf, 0, n);
+            }
+            else {
+                int at = out.size();
+                long skipped = in.skip(random.nextInt(10) == 0 ? FitInput.BUFFER_SIZE + 7 : random.nextInt(300));
+                // keep the output lined up with the input, a file stream can skip past the end
+                out.write(expected, at, (int) Math.min(skipped, expected.length - at));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void everyModeReadsTheWholeFile() throws IOException {
+        byte[] bytes = new byte[3 * FitInput.BUFFER_SIZE + 12345];
+        new Random(1).nextBytes(bytes);
+        Path file = Files.write(_dir.resolve("in.fit"), bytes);
+        for(FitInput.Mode mode : FitInput.Mode.values()) {
+            for(long seed = 0; seed < 5; seed++) {
+                try (InputStream in = FitInput.open(file.toString(), mode)) {
+                    assertArrayEquals(bytes, readMixed(in, seed, bytes), mode + " seed " + seed);
+                    assertEquals(-1, in.read());
+                }
+            }
+        }
+    }
+
+    @Test
+    void bufferedStreamHasNoMark() throws IOException {
+        InputStream in = FitInput.wrap(new ByteArrayInputStream(new byte[10]), FitInput.Mode.BUFFERED);
+        assertFalse(in.markSupported());
+        assertEquals(10, in.available());
+        assertEquals(0, in.read());
+        assertEquals(9, in.available());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static zmerge.FitBytes.ENUM;
+import static zmerge.FitBytes.GARMIN;
+import static zmerge.FitBytes.TIMESTAMP;
+import static zmerge.FitBytes.UINT16;
+import static zmerge.FitBytes.UINT32;
+import static zmerge.FitBytes.UINT8;
+import static zmerge.FitBytes.ZWIFT;
+import static zmerge.FitBytes.field;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Scans hand written FIT files for their manufacturer, first and last
+ * record timestamps and record count.
+ *
+ * @author Nicholas Rodie
+ */
+class FitScannerTest {
+
+    private static final int START = 1_000_000_000;
+    private static final int RECORD = 20;
+
+    private static FitBytes fileId(int manufacturer) {
+        return new FitBytes()
+                .define(0, 0, field(0, ENUM), field(1, UINT16), field(4, UINT32))
+                .data(0, 4, manufacturer, START);
+    }
+
+    private static FitInfo scan(byte[] fit) throws IOException {
+        return FitScanner.scan(new ByteArrayInputStream(fit));
+    }
+
+    private static void assertInfo(FitInfo info, int manufacturer, int start, int end, int records) {
+        assertEquals(manufacturer, info.getManufacturer());
+        assertEquals(start, info.getStart());
+        assertEquals(end, info.getEnd());
+        assertEquals(records, info.getRecords());
+    }
+
+    @Test
+    void fullTimestamps() throws IOException {
+        assertInfo(scan(GarminPatcherTest.garmin(GARMIN).bytes()), GARMIN, START, START + 59, 60);
+    }
+
+    @Test
+    void compressedTimestamps() throws IOException {
+        FitBytes fit = fileId(ZWIFT)
+                .define(1, RECORD, field(TIMESTAMP, UINT32), field(3, UINT8))
+                .data(1, START + 5, 100)
+                .define(2, RECORD, field(3, UINT8));
+        // past several 32 second boundaries, two records a second apart
+        for(int i = 6; i < 100; i += 3) fit.compressed(2, START + i, 100);
+        fit.data(1, START + 200, 100)
+                .compressed(2, START + 210, 100);
+        assertInfo(scan(fit.bytes()), ZWIFT, START + 5, START + 210, 35);
+    }
+
+    @Test
+    void invalidTimestampsAreNotRecords() throws IOException {
+        FitBytes fit = fileId(GARMIN)
+                .define(1, RECORD, field(TIMESTAMP, UINT32), field(3, UINT8))
+                .data(1, 0xFFFFFFFFL, 100)
+                .data(1, START + 1, 100)
+                .data(1, 0xFFFFFFFFL, 100);
+        assertInfo(scan(fit.bytes()), GARMIN, START + 1, START + 1, 1);
+    }
+
+    @Test
+    void developerFieldsAreSkipped() throws IOException {
+        // well past the scanner's buffer, big endian
+        FitBytes fit = fileId(GARMIN)
+                .define(1, RECORD, true, new int[] {255, 255, 1}, field(3, UINT8), field(TIMESTAMP, UINT32));
+        for(int i = 0; i < 400; i++) fit.data(1, 100, START + i);
+        assertInfo(scan(fit.bytes()), GARMIN, START, START + 399, 400);
+    }
+
+    @Test
+    void chainedFilesScanAsOne() throws IOException {
+        byte[] first = fileId(GARMIN)
+                .define(1, RECORD, field(TIMESTAMP, UINT32))
+                .data(1, START)
+                .data(1, START + 1)
+                .bytes();
+        // a compressed timestamp before any full one in its own file has no time
+        byte[] second = fileId(ZWIFT)
+                .define(1, RECORD, field(3, UINT8))
+                .compressed(1, START + 2, 100)
+                .define(2, RECORD, field(TIMESTAMP, UINT32))
+                .data(2, START + 50)
+                .compressed(1, START + 51, 100)
+                .bytes();
+        assertInfo(scan(FitBytes.chain(first, second)), GARMIN, START, START + 51, 4);
+    }
+
+    @Test
+    void manufacturerStopsAtTheFileId() throws IOException {
+        byte[] fit = GarminPatcherTest.garmin(GARMIN).bytes();
+        // cut short after the first message
+        byte[] cut = Arrays.copyOf(fit, 40);
+        assertEquals(GARMIN, FitScanner.manufacturer(new ByteArrayInputStream(cut)));
+        assertThrows(EOFException.class, () -> scan(cut));
+    }
+
+    @Test
+    void missingManufacturer() throws IOException {
+        FitBytes fit = new FitBytes()
+                .define(0, 0, field(0, ENUM))
+                .data(0, 4)
+                .define(1, 0, field(0, ENUM), field(1, UINT16))
+                .data(1, 4, 0xFFFF);
+        assertEquals(-1, FitScanner.manufacturer(new ByteArrayInputStream(fit.bytes())));
+        assertEquals(-1, scan(fit.bytes()).getManufacturer());
+    }
+
+    @Test
+    void otherFilesAreRejected() {
+        byte[] fit = fileId(GARMIN).bytes();
+        fit[9] = 'X';
+        assertThrows(IOException.class, () -> scan(fit));
+        assertThrows(IOException.class, () -> scan(new byte[0]));
+        assertThrows(EOFException.class, () -> scan(Arrays.copyOf(fileId(GARMIN).bytes(), 20)));
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static zmerge.FitBytes.GARMIN;
+import static zmerge.FitBytes.ENUM;
+import static zmerge.FitBytes.SINT32;
+import static zmerge.FitBytes.TIMESTAMP;
+import static zmerge.FitBytes.UINT16;
+import static zmerge.FitBytes.UINT32;
+import static zmerge.FitBytes.UINT8;
+import static zmerge.FitBytes.field;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.garmin.fit.SubSport;
+
+/**
+ * Patches Garmin files written byte by byte with a two segment Zwift track,
+ * and reads the result back without the SDK.
+ *
+ * @author Nicholas Rodie
+ */
+class GarminPatcherTest {
+
+    private static final int START = 1_000_000_000;
+    private static final int RECORD = 20, LAP = 19, SESSION = 18, UNKNOWN = 0xFF00;
+
+    @TempDir
+    Path _dir;
+
+    /**
+     * Garmin records 0 to 59, little endian then big endian, with lap and
+     * session messages missing every field the patch writes.
+     */
+    static FitBytes garmin(int manufacturer) {
+        int[][] record = {
+            field(TIMESTAMP, UINT32), field(0, SINT32), field(1, SINT32), field(2, UINT16), 
+            field(3, UINT8), field(5, UINT32), field(6, UINT16), field(7, UINT16)
+        };
+        FitBytes fit = new FitBytes()
+                .define(0, 0, field(0, ENUM), field(1, UINT16), field(4, UINT32))
+                .data(0, 4, manufacturer, START)
+                .define(2, UNKNOWN, false, new int[] {2}, field(0, UINT16))
+                .data(2, 0x1234)
+                .define(1, RECORD, record);
+        for(int i = 0; i < 30; i++) fit.data(1, START + i, 0, 0, 2500, 120 + i, 0, 0, 200);
+        fit.define(1, RECORD, true, new int[] {1}, record);
+        for(int i = 30; i < 60; i++) fit.data(1, START + i, 0, 0, 2500, 120 + i, 0, 0, 200);
+        return fit
+                .define(3, LAP, field(TIMESTAMP, UINT32), field(2, UINT32))
+                .data(3, START + 59, START)
+                .define(4, SESSION, false, new int[] {3}, field(TIMESTAMP, UINT32))
+                .data(4, START + 59);
+    }
+
+    /**
+     * Records 10 to 29 climbing in the first segment, 30 to 49 descending in
+     * the second with its distance starting again from 0.
+     */
+    static ZwiftTrack zwift() {
+        ZwiftTrack track = new ZwiftTrack();
+        track.startSegment();
+        for(int i = 10; i < 30; i++) track.add(START + i, 50 + i, 100 + (i - 10) * 7.5, 1000 * i, -2000 * i, 7.5);
+        track.startSegment();
+        for(int i = 30; i < 50; i++) track.add(START + i, 80 - (i - 30), (i - 30) * 8, 1000 * i, -2000 * i, 8);
+        track.seal();
+        return track;
+    }
+
+    private static double distance(int i) {
+        return i < 30 ? (i - 10) * 7.5 : 142.5 + (i - 30) * 8;
+    }
+
+    private static byte[] patch(byte[] garmin, long[] counts) throws IOException, GarminPatcher.NotPatchableException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GarminPatcher patcher = GarminPatcher.patch(new ByteArrayInputStream(garmin), out, 
+                new RideTotals(zwift().cursor()), () -> counts[0]++, null, new MergeMetrics.MesgCounter());
+        counts[1] = patcher._matched;
+        counts[2] = patcher._unmatched;
+        assertEquals(out.size(), patcher._written);
+        return out.toByteArray();
+    }
+
+    @Test
+    void matchedRecordsTakeZwiftValues() throws IOException, GarminPatcher.NotPatchableException {
+        long[] counts = new long[3];
+        byte[] out = patch(garmin(GARMIN).bytes(), counts);
+        assertTrue(FitBytes.isValid(out));
+        assertEquals(60, counts[0]);
+        assertEquals(40, counts[1]);
+        assertEquals(20, counts[2]);
+
+        List<FitBytes.Message> records = FitBytes.read(out, RECORD);
+        assertEquals(40, records.size());
+        for(int n = 0; n < records.size(); n++) {
+            FitBytes.Message record = records.get(n);
+            int i = n + 10;
+            double altitude = i < 30 ? 50 + i : 80 - (i - 30);
+            long speed = i < 30 ? 7500 : 8000;
+            assertEquals(START + i, record._timestamp);
+            assertEquals(1000 * i, (long) record.get(0));
+            assertEquals(-2000 * i, (long) record.get(1));
+            assertEquals(Math.round((altitude + 500) * 5), (long) record.get(2));
+            assertEquals(Math.round(distance(i) * 100), (long) record.get(5));
+            assertEquals(speed, (long) record.get(6));
+            // added to the definition
+            assertEquals(Math.round((altitude + 500) * 5), (long) record.get(78));
+            assertEquals(speed, (long) record.get(73));
+            // garmin values kept
+            assertEquals(120 + i, (long) record.get(3));
+            assertEquals(200, (long) record.get(7));
+            assertArrayEquals(i < 30 ? new byte[0] : new byte[] {(byte) 0xD0}, record._dev);
+        }
+    }
+
+    @Test
+    void otherMessagesAreCopied() throws IOException, GarminPatcher.NotPatchableException {
+        byte[] out = patch(garmin(GARMIN).bytes(), new long[3]);
+        List<FitBytes.Message> unknown = FitBytes.read(out, UNKNOWN);
+        assertEquals(1, unknown.size());
+        assertEquals(0x1234, (long) unknown.get(0).get(0));
+        assertArrayEquals(new byte[] {(byte) 0xD0, (byte) 0xD1}, unknown.get(0)._dev);
+
+        FitBytes.Message fileId = FitBytes.read(out, 0).get(0);
+        assertEquals(GARMIN, (long) fileId.get(1));
+        assertEquals(START, (long) fileId.get(4));
+    }
+
+    @Test
+    void lapCoversTheLastSegment() throws IOException, GarminPatcher.NotPatchableException {
+        byte[] out = patch(garmin(GARMIN).bytes(), new long[3]);
+        List<FitBytes.Message> laps = FitBytes.read(out, LAP);
+        assertEquals(1, laps.size());
+        FitBytes.Message lap = laps.get(0);
+        assertEquals(START, (long) lap.get(2));
+        assertEquals(0, (long) lap.get(21));
+        assertEquals(19, (long) lap.get(22));
+        assertEquals(15200, (long) lap.get(9));
+        assertEquals(8000, (long) lap.get(13));
+        assertEquals(8000, (long) lap.get(14));
+        assertEquals(19000, (long) lap.get(7));
+        assertEquals(19000, (long) lap.get(8));
+        assertEquals(SubSport.VIRTUAL_ACTIVITY.getValue(), (long) lap.get(39));
+    }
+
+    @Test
+    void sessionCoversTheRide() throws IOException, GarminPatcher.NotPatchableException {
+        byte[] out = patch(garmin(GARMIN).bytes(), new long[3]);
+        FitBytes.Message session = FitBytes.read(out, SESSION).get(0);
+        assertEquals(19, (long) session.get(22));
+        assertEquals(19, (long) session.get(23));
+        assertEquals(29450, (long) session.get(9));
+        assertEquals(Math.round(294.5 / 39 * 1000), (long) session.get(14));
+        assertEquals(8000, (long) session.get(15));
+        assertEquals(39000, (long) session.get(7));
+        assertEquals(39000, (long) session.get(8));
+        assertEquals(SubSport.VIRTUAL_ACTIVITY.getValue(), (long) session.get(6));
+        // developer data moves past the added fields
+        assertArrayEquals(new byte[] {(byte) 0xD0, (byte) 0xD1, (byte) 0xD2}, session._dev);
+    }
+
+    @Test
+    void fileMatchesStream() throws IOException, GarminPatcher.NotPatchableException {
+        byte[] garmin = garmin(GARMIN).bytes();
+        File file = _dir.resolve("patched.fit").toFile();
+        GarminPatcher patcher = GarminPatcher.patch(new ByteArrayInputStream(garmin), file, 
+                new RideTotals(zwift().cursor()), () -> {}, null, new MergeMetrics.MesgCounter());
+        byte[] out = Files.readAllBytes(file.toPath());
+        assertEquals(out.length, patcher._written);
+        assertArrayEquals(patch(garmin, new long[3]), out);
+    }
+
+    @Test
+    void otherManufacturersAreRejected() {
+        assertThrows(IOException.class, () -> patch(garmin(FitBytes.ZWIFT).bytes(), new long[3]));
+    }
+
+    /**
+     * Neither the check nor the patch accepts the file.
+     */
+    private static void assertNotPatchable(byte[] garmin) {
+        assertThrows(GarminPatcher.NotPatchableException.class, () -> GarminPatcher.check(new ByteArrayInputStream(garmin)));
+        assertThrows(GarminPatcher.NotPatchableException.class, () -> patch(garmin, new long[3]));
+    }
+
+    @Test
+    void patchableFilesPassTheCheck() throws IOException, GarminPatcher.NotPatchableException {
+        GarminPatcher.check(new ByteArrayInputStream(garmin(GARMIN).bytes()));
+    }
+
+    @Test
+    void compressedTimestampsCantBePatched() {
+        assertNotPatchable(garmin(GARMIN).define(1, RECORD, field(3, UINT8)).compressed(1, START + 60, 130).bytes());
+    }
+
+    @Test
+    void unexpectedFieldSizesCantBePatched() {
+        assertNotPatchable(garmin(GARMIN).define(1, RECORD, field(TIMESTAMP, UINT32), field(2, UINT32)).bytes());
+    }
+
+    @Test
+    void chainedFilesCantBePatched() {
+        byte[] garmin = garmin(GARMIN).bytes();
+        assertNotPatchable(FitBytes.chain(garmin, garmin));
+    }
+}
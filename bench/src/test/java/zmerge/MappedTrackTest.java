@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A sealed {@link MappedTrack} reads back as {@link ZwiftTrack#merge(List)}
+ * would merge the same files, with a slot per second or sorted.
+ *
+ * @author Nicholas Rodie
+ */
+class MappedTrackTest {
+
+    @TempDir
+    Path _dir;
+
+    /**
+     * A file of records every second, with a gap, each value marking the
+     * file it came from.
+     */
+    private static ZwiftTrack file(int start, int records, int mark) {
+        ZwiftTrack track = new ZwiftTrack();
+        track.startSegment();
+        for(int i = 0, timestamp = start; i < records; i++, timestamp += i % 1000 == 0 ? 60 : 1) 
+            track.add(timestamp, mark + i / 10.0, i * 7.5, mark * 1000 + i, -i, mark);
+        track.seal();
+        return track;
+    }
+
+    private void assertSameRecords(List<ZwiftTrack> files) throws IOException {
+        ZwiftTrack expected = ZwiftTrack.merge(files);
+        try (MappedTrack track = new MappedTrack(_dir)) {
+            for(ZwiftTrack file : files) {
+                track.startSegment();
+                for(int i = 0; i < file.size(); i++) 
+                    track.add(file.timestamp(i), file.altitude(i), file.distance(i), file.latitude(i), file.longitude(i), 
+                            file.speed(i));
+            }
+            track.seal();
+            assertEquals(expected.size(), track.size());
+            assertEquals(expected.segments(), track.segments());
+            ZwiftCursor cursor = track.cursor(), wanted = expected.cursor();
+            int first = expected.timestamp(0), last = expected.timestamp(expected.size() - 1);
+            for(long timestamp = first - 1; timestamp <= last + 1; timestamp += timestamp - first > 20000 ? 997 : 1) {
+                boolean found = wanted.seek((int) timestamp);
+                assertEquals(found, cursor.seek((int) timestamp), "at " + timestamp);
+                if(!found) continue;
+                assertEquals(wanted.segment(), cursor.segment());
+                assertEquals(wanted.altitude(), cursor.altitude());
+                assertEquals(wanted.distance(), cursor.distance());
+                assertEquals(wanted.latitude(), cursor.latitude());
+                assertEquals(wanted.longitude(), cursor.longitude());
+                assertEquals(wanted.speed(), cursor.speed());
+            }
+            // backwards too
+            for(int i = expected.size() - 1; i >= 0; i -= 101) {
+                assertTrue(cursor.seek(expected.timestamp(i)));
+                assertTrue(wanted.seek(expected.timestamp(i)));
+                assertEquals(wanted.latitude(), cursor.latitude());
+            }
+        }
+        try (Stream<Path> left = Files.list(_dir)) {
+            assertEquals(0, left.count());
+        }
+    }
+
+    @Test
+    void overlappingFilesInOneRide() throws IOException {
+        List<ZwiftTrack> files = new ArrayList<>();
+        files.add(file(1000000000, 9000, 1));
+        // starts later, so wins the seconds it shares with the first
+        files.add(file(1000005000, 9000, 2));
+        assertSameRecords(files);
+    }
+
+    @Test
+    void filesDaysApartAreSorted() throws IOException {
+        List<ZwiftTrack> files = new ArrayList<>();
+        files.add(file(1000000000 + 5 * 24 * 3600, 5000, 3));
+        files.add(file(1000000000, 9000, 1));
+        files.add(file(1000005000, 9000, 2));
+        assertTrue((long) 5 * 24 * 3600 > MappedTrack.MAX_SPAN);
+        assertSameRecords(files);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trips of each kind of cache entry, and eviction of the least
+ * recently used entries within a process and across a restart.
+ *
+ * @author Nicholas Rodie
+ */
+class MergeCacheTest {
+
+    @TempDir
+    Path _dir;
+
+    private Path merged(String name, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        for(int i = 0; i < size; i++) bytes[i] = (byte) (i * 31 + name.hashCode());
+        return Files.write(_dir.resolve(name), bytes);
+    }
+
+    private static boolean hasMerge(MergeCache cache, String key, Path target) {
+        return cache.getMerge(key, target, new ArrayList<>());
+    }
+
+    @Test
+    void tracksRoundTrip() throws IOException {
+        MergeCache cache = new MergeCache(_dir.resolve("cache"), 1 << 20);
+        ZwiftTrack track = new ZwiftTrack();
+        track.startSegment();
+        for(int t = 0; t < 100; t++) track.add(1000 + t, t * 0.2, t * 7.25, t * 1000, -t * 1000, 7.5);
+        track.startSegment();
+        for(int t = 200; t < 250; t++) track.add(1000 + t, 0.1234567, t, t, t, t / 3.0);
+        track.seal();
+        cache.putTrack("abc", track, false);
+
+        MergeCache.Track cached = cache.getTrack("abc");
+        assertFalse(cached._crcValid);
+        assertArrayEquals(track.segmentStarts(), cached._track.segmentStarts());
+        assertEquals(track.size(), cached._track.size());
+        for(int i = 0; i < track.size(); i++) {
+            assertEquals(track.timestamp(i), cached._track.timestamp(i));
+            assertEquals(track.altitude(i), cached._track.altitude(i));
+            assertEquals(track.distance(i), cached._track.distance(i));
+            assertEquals(track.latitude(i), cached._track.latitude(i));
+            assertEquals(track.longitude(i), cached._track.longitude(i));
+            assertEquals(track.speed(i), cached._track.speed(i));
+        }
+        assertNull(cache.getTrack("abd"));
+    }
+
+    @Test
+    void mergesRoundTripWithWarnings() throws IOException {
+        MergeCache cache = new MergeCache(_dir.resolve("cache"), 1 << 20);
+        Path merged = merged("merged.fit", 200_000);
+        cache.putMerge("key", merged, Arrays.asList("first", "second"));
+
+        List<String> warnings = new ArrayList<>();
+        Path target = _dir.resolve("target.fit");
+        assertTrue(cache.getMerge("key", target, warnings));
+        assertEquals(Arrays.asList("first", "second"), warnings);
+        assertArrayEquals(Files.readAllBytes(merged), Files.readAllBytes(target));
+        assertFalse(hasMerge(cache, "other", target));
+    }
+
+    @Test
+    void hashesAreKeptUntilTheFileChanges() throws IOException {
+        MergeCache cache = new MergeCache(_dir.resolve("cache"), 1 << 20);
+        Path file = merged("zwift.fit", 100);
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        String hash = MergeCache.hex(MergeCache.sha256().digest(Files.readAllBytes(file)));
+        cache.putHash(file, attrs, hash);
+        assertEquals(hash, cache.getHash(file, attrs));
+
+        Files.write(file, new byte[101]);
+        assertNull(cache.getHash(file, Files.readAttributes(file, BasicFileAttributes.class)));
+        Files.write(file, new byte[100]);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(attrs.lastModifiedTime().toMillis() + 2000));
+        assertNull(cache.getHash(file, Files.readAttributes(file, BasicFileAttributes.class)));
+    }
+
+    @Test
+    void leastRecentlyUsedIsEvicted() throws IOException {
+        Path dir = _dir.resolve("cache");
+        MergeCache cache = new MergeCache(dir, 25_000);
+        Path target = _dir.resolve("target.fit");
+        cache.putMerge("a", merged("a.fit", 10_000), Collections.emptyList());
+        cache.putMerge("b", merged("b.fit", 10_000), Collections.emptyList());
+        // a is now used more recently than b
+        assertTrue(hasMerge(cache, "a", target));
+        cache.putMerge("c", merged("c.fit", 10_000), Collections.emptyList());
+
+        assertFalse(Files.exists(dir.resolve("b.merge")));
+        assertTrue(cache.size() <= 25_000);
+        assertTrue(hasMerge(cache, "a", target));
+        assertFalse(hasMerge(cache, "b", target));
+        assertTrue(hasMerge(cache, "c", target));
+    }
+
+    @Test
+    void restartEvictsByLastUse() throws IOException {
+        Path dir = _dir.resolve("cache");
+        MergeCache cache = new MergeCache(dir, 1 << 20);
+        for(String key : new String[] {"a", "b", "c"}) cache.putMerge(key, merged(key + ".fit", 10_000), Collections.emptyList());
+        long now = System.currentTimeMillis();
+        Files.setLastModifiedTime(dir.resolve("a.merge"), FileTime.fromMillis(now - 1000));
+        Files.setLastModifiedTime(dir.resolve("b.merge"), FileTime.fromMillis(now - 3000));
+        Files.setLastModifiedTime(dir.resolve("c.merge"), FileTime.fromMillis(now - 2000));
+
+        // room for two, b was used longest ago
+        MergeCache reopened = new MergeCache(dir, 25_000);
+        assertEquals(Files.size(dir.resolve("a.merge")) * 2, reopened.size());
+        Path target = _dir.resolve("target.fit");
+        assertFalse(hasMerge(reopened, "b", target));
+        assertTrue(hasMerge(reopened, "a", target));
+        assertTrue(hasMerge(reopened, "c", target));
+    }
+
+    @Test
+    void damagedEntriesAreMisses() throws IOException {
+        Path dir = _dir.resolve("cache");
+        MergeCache cache = new MergeCache(dir, 1 << 20);
+        cache.putMerge("m", merged("m.fit", 10_000), Collections.emptyList());
+        ZwiftTrack track = new ZwiftTrack();
+        track.add(1000, 0, 0, 0, 0, 0);
+        track.seal();
+        cache.putTrack("t", track, true);
+
+        byte[] entry = Files.readAllBytes(dir.resolve("m.merge"));
+        Files.write(dir.resolve("m.merge"), Arrays.copyOf(entry, entry.length - 100));
+        Files.write(dir.resolve("t.track"), new byte[12]);
+        assertFalse(hasMerge(cache, "m", _dir.resolve("target.fit")));
+        assertNull(cache.getTrack("t"));
+        // a truncated merge is dropped
+        assertFalse(Files.exists(dir.resolve("m.merge")));
+        assertTrue(cache.size() < 10_000);
+    }
+}
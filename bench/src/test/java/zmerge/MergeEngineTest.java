@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static zmerge.FitBytes.ENUM;
+import static zmerge.FitBytes.GARMIN;
+import static zmerge.FitBytes.SINT32;
+import static zmerge.FitBytes.TIMESTAMP;
+import static zmerge.FitBytes.UINT16;
+import static zmerge.FitBytes.UINT32;
+import static zmerge.FitBytes.ZWIFT;
+import static zmerge.FitBytes.field;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The stream merge contract: a merge is written to the output only when it
+ * succeeds, and every failure comes back as a result.
+ *
+ * @author Nicholas Rodie
+ */
+class MergeEngineTest {
+
+    private static final int START = 1_000_000_000;
+    private static final int RECORD = 20;
+
+    /** the records of {@link GarminPatcherTest#zwift()} as a Zwift file */
+    static byte[] zwift() {
+        ZwiftTrack track = GarminPatcherTest.zwift();
+        FitBytes fit = new FitBytes()
+                .define(0, 0, field(0, ENUM), field(1, UINT16), field(4, UINT32))
+                .data(0, 4, ZWIFT, START)
+                .define(1, RECORD, field(TIMESTAMP, UINT32), field(0, SINT32), field(1, SINT32), 
+                        field(2, UINT16), field(5, UINT32), field(6, UINT16));
+        for(int i = 0; i < track.size(); i++) {
+            fit.data(1, track.timestamp(i), track.latitude(i), track.longitude(i), 
+                    Math.round((track.altitude(i) + 500) * 5), Math.round(track.distance(i) * 100), 
+                    Math.round(track.speed(i) * 1000));
+        }
+        return fit.bytes();
+    }
+
+    private static byte[] corrupt(byte[] fit) {
+        byte[] copy = Arrays.copyOf(fit, fit.length);
+        copy[copy.length - 1] ^= 0x55;
+        return copy;
+    }
+
+    private static MergeEngine engine(Merge.GarminMode garminMode, Merge.CrcPolicy crcPolicy) {
+        MergeEngine engine = new MergeEngine();
+        engine.setGarminMode(garminMode);
+        engine.setCrcPolicy(crcPolicy);
+        engine.setZwiftMode(Merge.ZwiftMode.LOAD);
+        return engine;
+    }
+
+    private static MergeResult merge(MergeEngine engine, byte[] garmin, byte[] zwift, OutputStream out) {
+        return merge(engine, new ByteArrayInputStream(garmin), new ByteArrayInputStream(zwift), out);
+    }
+
+    private static MergeResult merge(MergeEngine engine, InputStream garmin, InputStream zwift, OutputStream out) {
+        return engine.merge(garmin, Collections.singletonList(zwift), out);
+    }
+
+    /**
+     * An input that fails half way through, with an IOException or else the
+     * given RuntimeException.
+     */
+    private static InputStream failing(byte[] fit, RuntimeException runtime) {
+        return new InputStream() {
+            private final InputStream _in = new ByteArrayInputStream(fit, 0, fit.length / 2);
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = _in.read(b, off, len);
+                if(n >= 0) return n;
+                if(runtime != null) throw runtime;
+                throw new IOException("connection reset");
+            }
+        };
+    }
+
+    @Test
+    void patchedMergeIsWritten() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MergeResult result = merge(engine(Merge.GarminMode.PATCH, Merge.CrcPolicy.ABORT), 
+                GarminPatcherTest.garmin(GARMIN).bytes(), zwift(), out);
+        assertTrue(result.isOk(), result.toString());
+        assertTrue(result.getWarnings().isEmpty());
+        byte[] merged = out.toByteArray();
+        assertTrue(FitBytes.isValid(merged));
+        assertEquals(GARMIN, (long) FitBytes.read(merged, 0).get(0).get(1));
+
+        // only the garmin records with a zwift record are kept, carrying its values
+        List<FitBytes.Message> records = FitBytes.read(merged, RECORD);
+        MergeMetrics metrics = result.getMetrics();
+        assertEquals(records.size(), metrics.getMatched());
+        assertEquals(60, metrics.getMatched() + metrics.getUnmatched());
+        ZwiftTrack track = GarminPatcherTest.zwift();
+        for(FitBytes.Message record : records) {
+            int index = track.indexOf((int) record._timestamp, 0);
+            assertTrue(index >= 0);
+            assertEquals(track.latitude(index), (long) record.get(0));
+            assertEquals(Math.round((track.altitude(index) + 500) * 5), (long) record.get(2));
+        }
+    }
+
+    @Test
+    void failedCrcWritesNothing() {
+        byte[] garmin = GarminPatcherTest.garmin(GARMIN).bytes(), zwift = zwift();
+        for(Merge.GarminMode mode : Merge.GarminMode.values()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MergeResult result = merge(engine(mode, Merge.CrcPolicy.ABORT), corrupt(garmin), zwift, out);
+            assertEquals(MergeException.Reason.INTEGRITY, result.getReason(), mode.toString());
+            assertEquals(0, out.size(), mode.toString());
+
+            result = merge(engine(mode, Merge.CrcPolicy.ABORT), garmin, corrupt(zwift), out);
+            assertEquals(MergeException.Reason.INTEGRITY, result.getReason(), mode.toString());
+            assertEquals(0, out.size(), mode.toString());
+        }
+    }
+
+    @Test
+    void crcWarningStillWrites() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MergeResult result = merge(engine(Merge.GarminMode.PATCH, Merge.CrcPolicy.WARN), 
+                GarminPatcherTest.garmin(GARMIN).bytes(), corrupt(zwift()), out);
+        assertTrue(result.isOk(), result.toString());
+        assertEquals(1, result.getWarnings().size());
+        assertTrue(FitBytes.isValid(out.toByteArray()));
+    }
+
+    @Test
+    void unreadableGarminWritesNothing() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MergeResult result = merge(engine(Merge.GarminMode.PATCH, Merge.CrcPolicy.WARN), new byte[100], zwift(), out);
+        assertFalse(result.isOk());
+        assertEquals(MergeException.Reason.GARMIN_INPUT, result.getReason());
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    void failingStreamsComeBackAsResults() {
+        byte[] garmin = GarminPatcherTest.garmin(GARMIN).bytes(), zwift = zwift();
+        RuntimeException boom = new IllegalStateException("boom");
+        for(Merge.GarminMode mode : Merge.GarminMode.values()) {
+            MergeEngine engine = engine(mode, Merge.CrcPolicy.WARN);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MergeResult result = merge(engine, failing(garmin, boom), new ByteArrayInputStream(zwift), out);
+            assertEquals(MergeException.Reason.INTERNAL, result.getReason(), mode.toString());
+            assertEquals(0, out.size(), mode.toString());
+
+            result = merge(engine, new ByteArrayInputStream(garmin), failing(zwift, boom), out);
+            assertEquals(MergeException.Reason.INTERNAL, result.getReason(), mode.toString());
+            assertEquals(0, out.size(), mode.toString());
+
+            result = merge(engine, new ByteArrayInputStream(garmin), failing(zwift, null), out);
+            assertEquals(MergeException.Reason.ZWIFT_INPUT, result.getReason(), mode.toString());
+            assertEquals(0, out.size(), mode.toString());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MergeResult result = merge(engine(Merge.GarminMode.PATCH, Merge.CrcPolicy.WARN), 
+                failing(garmin, null), new ByteArrayInputStream(zwift), out);
+        assertEquals(MergeException.Reason.GARMIN_INPUT, result.getReason());
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    void failedOutputIsAnOutputError() {
+        OutputStream full = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        MergeResult result = merge(engine(Merge.GarminMode.PATCH, Merge.CrcPolicy.WARN), 
+                GarminPatcherTest.garmin(GARMIN).bytes(), zwift(), full);
+        assertEquals(MergeException.Reason.OUTPUT, result.getReason());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checking a merge's input files up front with {@link Merge#validate()}.
+ *
+ * @author Nicholas Rodie
+ */
+class MergeTest {
+
+    @TempDir
+    Path _dir;
+
+    private Merge merge(byte[] garmin, byte[] zwift, Merge.CrcPolicy crcPolicy) throws IOException {
+        Path garminPath = _dir.resolve("garmin.fit"), zwiftPath = _dir.resolve("zwift.fit");
+        Files.write(garminPath, garmin);
+        Files.write(zwiftPath, zwift);
+        Merge merge = new Merge(garminPath.toString(), Collections.singletonList(zwiftPath.toString()), 
+                _dir.resolve("merged.fit").toString());
+        merge.setCrcPolicy(crcPolicy);
+        merge.setGarminMode(Merge.GarminMode.PATCH);
+        merge.setZwiftMode(Merge.ZwiftMode.LOAD);
+        return merge;
+    }
+
+    private static byte[] corrupt(byte[] fit) {
+        byte[] copy = Arrays.copyOf(fit, fit.length);
+        copy[copy.length - 1] ^= 0x55;
+        return copy;
+    }
+
+    @Test
+    void failedCrcIsAWarningUnderWarn() throws IOException {
+        Merge merge = merge(GarminPatcherTest.garmin(FitBytes.GARMIN).bytes(), corrupt(MergeEngineTest.zwift()), 
+                Merge.CrcPolicy.WARN);
+        merge.validate();
+        assertEquals(1, merge.getWarnings().size());
+        assertTrue(merge.getWarnings().get(0).contains("zwift.fit"));
+        // the merge finds the same failure, but doesn't warn twice
+        merge.run();
+        assertEquals(1, merge.getWarnings().size());
+    }
+
+    @Test
+    void failedCrcIsAProblemUnderAbort() throws IOException {
+        Merge merge = merge(GarminPatcherTest.garmin(FitBytes.GARMIN).bytes(), corrupt(MergeEngineTest.zwift()), 
+                Merge.CrcPolicy.ABORT);
+        MergeException e = assertThrows(MergeException.class, merge::validate);
+        assertEquals(MergeException.Reason.INTEGRITY, e.getReason());
+        assertTrue(merge.getWarnings().isEmpty());
+    }
+
+    @Test
+    void everyProblemIsReported() throws IOException {
+        // the zwift file as the garmin one, and a corrupt zwift file
+        Merge merge = merge(MergeEngineTest.zwift(), corrupt(MergeEngineTest.zwift()), Merge.CrcPolicy.ABORT);
+        MergeException e = assertThrows(MergeException.class, merge::validate);
+        assertTrue(e.getMessage().startsWith("2 input files have problems."), e.getMessage());
+        assertTrue(e.getMessage().contains("Manufacturer does not match Garmin."));
+        assertTrue(e.getMessage().contains("integrity check failed"));
+    }
+
+    @Test
+    void validInputsPass() throws IOException {
+        Merge merge = merge(GarminPatcherTest.garmin(FitBytes.GARMIN).bytes(), MergeEngineTest.zwift(), Merge.CrcPolicy.ABORT);
+        merge.validate();
+        assertTrue(merge.getWarnings().isEmpty());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Ride and lap totals over two Zwift segments, each with its own distance
+ * and altitude.
+ *
+ * @author Nicholas Rodie
+ */
+class RideTotalsTest {
+
+    private static RideTotals totals() {
+        ZwiftTrack track = new ZwiftTrack();
+        track.startSegment();
+        // starts 500 m into the Zwift ride, climbs 10 m
+        for(int t = 0; t <= 10; t++) track.add(1000 + t, 100 + t, 500 + t * 10, 0, 0, t);
+        track.startSegment();
+        // a new ride from 0 m, lower down, descends 5 m
+        for(int t = 20; t <= 25; t++) track.add(1000 + t, 50 - (t - 20), (t - 20) * 20, 0, 0, 20);
+        track.seal();
+        return new RideTotals(track.cursor());
+    }
+
+    @Test
+    void firstSegmentStartsFromZero() {
+        RideTotals totals = totals();
+        assertTrue(totals.record(1000));
+        assertEquals(0, totals.distance());
+        assertTrue(totals.record(1010));
+        assertEquals(100, totals.distance());
+        assertEquals(100, totals.lapDistance());
+        assertEquals(10, totals.ascent());
+        assertEquals(10, totals.lapAscent());
+        assertEquals(10, totals.elapsedTime());
+        assertEquals(10, totals.maxSpeed());
+    }
+
+    @Test
+    void nextSegmentAddsOnAndStartsALap() {
+        RideTotals totals = totals();
+        totals.record(1000);
+        totals.record(1010);
+        assertFalse(totals.record(1015));
+        assertTrue(totals.record(1020));
+        assertEquals(100, totals.distance());
+        assertEquals(0, totals.lapDistance());
+        assertEquals(0, totals.lapTime());
+        // the drop between segments isn't a descent
+        assertEquals(0, totals.descent());
+
+        assertTrue(totals.record(1025));
+        assertEquals(200, totals.distance());
+        assertEquals(100, totals.lapDistance());
+        assertEquals(5, totals.lapTime());
+        assertEquals(10, totals.ascent());
+        assertEquals(0, totals.lapAscent());
+        assertEquals(5, totals.descent());
+        assertEquals(5, totals.lapDescent());
+        assertEquals(20, totals.maxLapSpeed());
+        assertEquals(25, totals.elapsedTime());
+    }
+
+    @Test
+    void endLapStartsFromTheLastRecord() {
+        RideTotals totals = totals();
+        totals.record(1000);
+        totals.record(1005);
+        totals.endLap();
+        assertEquals(0, totals.lapDistance());
+        assertEquals(0, totals.lapAscent());
+        totals.record(1010);
+        assertEquals(50, totals.lapDistance());
+        assertEquals(5, totals.lapTime());
+        assertEquals(5, totals.lapAscent());
+        assertEquals(10, totals.maxLapSpeed());
+    }
+}
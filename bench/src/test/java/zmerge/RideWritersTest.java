@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Exports are published only once the merge itself has been, and a failed
+ * merge leaves them as they were.
+ *
+ * @author Nicholas Rodie
+ */
+class RideWritersTest {
+
+    @TempDir
+    Path _dir;
+
+    private static Merge.Input input(String name, byte[] bytes) {
+        return new Merge.Input() {
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public long size() {
+                return bytes.length;
+            }
+
+            @Override
+            public InputStream open(FitInput.Mode mode) {
+                return new ByteArrayInputStream(bytes);
+            }
+        };
+    }
+
+    private static Merge merge(OutputStream out) {
+        Merge merge = new Merge(input("garmin", GarminPatcherTest.garmin(FitBytes.GARMIN).bytes()), 
+                Collections.singletonList(input("zwift", MergeEngineTest.zwift())), out);
+        merge.setGarminMode(Merge.GarminMode.PATCH);
+        merge.setZwiftMode(Merge.ZwiftMode.LOAD);
+        return merge;
+    }
+
+    private List<Path> files() throws IOException {
+        try (Stream<Path> files = Files.list(_dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void exportIsPublishedWithTheMerge() throws IOException {
+        Path csv = _dir.resolve("ride.csv");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Merge merge = merge(out);
+        merge.addExport(csv.toString());
+        merge.run();
+        assertTrue(out.size() > 0);
+        assertEquals(Collections.singletonList(csv), files());
+        List<String> lines = Files.readAllLines(csv, StandardCharsets.UTF_8);
+        // a header, then one line for each merged record
+        assertEquals(merge.getMetrics().getMatched() + 1, lines.size());
+    }
+
+    @Test
+    void failedMergeLeavesExportAlone() throws IOException {
+        Path csv = _dir.resolve("ride.csv");
+        byte[] old = "an earlier export".getBytes(StandardCharsets.UTF_8);
+        Files.write(csv, old);
+        Merge merge = merge(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("disk full");
+            }
+        });
+        merge.addExport(csv.toString());
+        MergeException e = assertThrows(MergeException.class, merge::run);
+        assertEquals(MergeException.Reason.OUTPUT, e.getReason());
+        assertArrayEquals(old, Files.readAllBytes(csv));
+        assertEquals(Collections.singletonList(csv), files());
+    }
+}
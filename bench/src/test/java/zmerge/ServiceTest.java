@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Requests too large for the memory limit are turned away before their
+ * body is read, whatever their Content-Length.
+ *
+ * @author Nicholas Rodie
+ */
+class ServiceTest {
+
+    private Service _service;
+
+    @BeforeEach
+    void start() throws IOException {
+        _service = new Service(0, 1, 4L * 1024 * 1024);
+        _service.start();
+    }
+
+    @AfterEach
+    void stop() {
+        _service.stop();
+    }
+
+    /**
+     * The status line of the answer to a POST of only headers.
+     */
+    private String post(long contentLength) throws IOException {
+        try (Socket socket = new Socket("localhost", _service.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /merge HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Type: multipart/form-data; boundary=x\r\n"
+                    + "Content-Length: " + contentLength + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1)).readLine();
+        }
+    }
+
+    @Test
+    void bodyAndMergeOverTheLimitAreRejected() throws IOException {
+        // the body fits, but not with its merge
+        assertEquals("HTTP/1.1 413 Request Entity Too Large", post(1024 * 1024));
+    }
+
+    @Test
+    void bodiesOverTwoGigabytesAreRejected() throws IOException {
+        assertEquals("HTTP/1.1 413 Request Entity Too Large", post(3L * 1024 * 1024 * 1024));
+        assertEquals("HTTP/1.1 413 Request Entity Too Large", post(Long.MAX_VALUE));
+    }
+
+    @Test
+    void memoryLimitIsBounded() {
+        assertThrows(IllegalArgumentException.class, () -> new Service(0, 1, (Service.MAX_MEMORY_MB + 1) * 1024 * 1024));
+    }
+}
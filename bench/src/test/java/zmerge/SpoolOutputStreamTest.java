@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A stream merge's spool gives back what was written, in memory or spilled.
+ *
+ * @author Nicholas Rodie
+ */
+class SpoolOutputStreamTest {
+
+    private static Set<Path> spools() throws IOException {
+        try (Stream<Path> files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(path -> path.getFileName().toString().startsWith("zmerge-merge.")).collect(Collectors.toSet());
+        }
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] bytes = new byte[n];
+        for(int i = 0; i < n; i++) bytes[i] = (byte) (i * 31);
+        return bytes;
+    }
+
+    @Test
+    void smallMergeStaysInMemory() throws IOException {
+        byte[] expected = bytes(100);
+        try (SpoolOutputStream spool = new SpoolOutputStream(100, -1)) {
+            spool.write(expected, 0, 60);
+            spool.write(expected, 60, 40);
+            assertFalse(spool.isSpilled());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            spool.writeTo(out);
+            assertArrayEquals(expected, out.toByteArray());
+        }
+    }
+
+    @Test
+    void largeMergeSpillsAndIsDeleted() throws IOException {
+        Set<Path> before = spools();
+        byte[] expected = bytes(1000);
+        try (SpoolOutputStream spool = new SpoolOutputStream(100, 1000)) {
+            spool.write(expected, 0, 90);
+            assertFalse(spool.isSpilled());
+            for(int i = 90; i < 500; i++) spool.write(expected[i]);
+            spool.write(expected, 500, 500);
+            assertTrue(spool.isSpilled());
+            assertEquals(1000, spool.size());
+            assertEquals(before.size() + 1, spools().size());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            spool.writeTo(out);
+            assertArrayEquals(expected, out.toByteArray());
+        }
+        assertEquals(before, spools());
+    }
+}
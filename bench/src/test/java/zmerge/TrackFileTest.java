@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trips of the {@code .ztrk} format, across block boundaries and
+ * through the edge cases of its zigzag varint deltas.
+ *
+ * @author Nicholas Rodie
+ */
+class TrackFileTest {
+
+    @TempDir
+    Path _dir;
+
+    /**
+     * Two segments of values at their FIT scale, so they are stored scaled.
+     */
+    private static ZwiftTrack scaledTrack(int records) {
+        ZwiftTrack track = new ZwiftTrack();
+        int timestamp = 1000000000;
+        for(int i = 0; i < records; i++) {
+            if(i == 0 || i == records / 2) track.startSegment();
+            timestamp += i % 97 == 0 ? 30 : 1;
+            track.add(timestamp, (2600 + i % 50) / 5.0 - 500, i * 750 / 100.0, 500000000 + i * 1000, 
+                    -1000000 - i * 700, (7000 + i % 13) / 1000.0);
+        }
+        track.seal();
+        return track;
+    }
+
+    private static void assertSameTrack(ZwiftTrack expected, ZwiftTrack actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.segments(), actual.segments());
+        assertTrue(Arrays.equals(expected.segmentStarts(), actual.segmentStarts()));
+        for(int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.timestamp(i), actual.timestamp(i));
+            assertEquals(expected.latitude(i), actual.latitude(i));
+            assertEquals(expected.longitude(i), actual.longitude(i));
+            // exactly, the format promises the same values back
+            assertEquals(Double.doubleToLongBits(expected.altitude(i)), Double.doubleToLongBits(actual.altitude(i)));
+            assertEquals(Double.doubleToLongBits(expected.distance(i)), Double.doubleToLongBits(actual.distance(i)));
+            assertEquals(Double.doubleToLongBits(expected.speed(i)), Double.doubleToLongBits(actual.speed(i)));
+        }
+    }
+
+    @Test
+    void scaledValuesRoundTrip() throws IOException {
+        ZwiftTrack track = scaledTrack(1000);
+        Path path = _dir.resolve("ride.ztrk");
+        TrackFile.write(track, path);
+        TrackFile file = TrackFile.open(path);
+        assertEquals(1000, file.size());
+        assertEquals(2, file.segments());
+        assertSameTrack(track, file.toTrack());
+    }
+
+    @Test
+    void unscaledValuesRoundTrip() throws IOException {
+        Random random = new Random(7);
+        ZwiftTrack track = new ZwiftTrack();
+        for(int i = 0; i < 600; i++) 
+            track.add(1000000000 + i, random.nextDouble() * 1000, random.nextDouble() * 1e6, random.nextInt(), 
+                    random.nextInt(), random.nextDouble() * 20);
+        track.seal();
+        assertSameTrack(track, TrackFile.read(ByteBuffer.wrap(TrackFile.encode(track))).toTrack());
+    }
+
+    @Test
+    void extremeDeltasRoundTrip() throws IOException {
+        ZwiftTrack track = new ZwiftTrack();
+        int[] timestamps = {Integer.MIN_VALUE + 1, -5, 0, 1, 1 << 30, Integer.MAX_VALUE - 1, Integer.MAX_VALUE};
+        for(int i = 0; i < timestamps.length; i++) {
+            int extreme = i % 2 == 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+            track.add(timestamps[i], i % 2 == 0 ? -Double.MAX_VALUE : Double.MIN_VALUE, Double.NaN, extreme, -extreme - 1, 
+                    i % 2 == 0 ? Double.NEGATIVE_INFINITY : 0.0);
+        }
+        track.seal();
+        assertSameTrack(track, TrackFile.read(ByteBuffer.wrap(TrackFile.encode(track))).toTrack());
+    }
+
+    @Test
+    void cursorSeeksAnyBlock() throws IOException {
+        ZwiftTrack track = scaledTrack(2000);
+        Path path = _dir.resolve("ride.ztrk");
+        TrackFile.write(track, path);
+        ZwiftCursor cursor = TrackFile.open(path).cursor();
+        ZwiftCursor expected = track.cursor();
+        // backwards, so every seek lands in a block other than the last one decoded
+        for(int i = track.size() - 1; i >= 0; i -= 37) {
+            int timestamp = track.timestamp(i);
+            assertTrue(cursor.seek(timestamp));
+            assertTrue(expected.seek(timestamp));
+            assertEquals(expected.segment(), cursor.segment());
+            assertEquals(expected.altitude(), cursor.altitude());
+            assertEquals(expected.distance(), cursor.distance());
+            assertEquals(expected.latitude(), cursor.latitude());
+            assertEquals(expected.longitude(), cursor.longitude());
+            assertEquals(expected.speed(), cursor.speed());
+        }
+        // inside a gap, and either side of the track
+        assertFalse(cursor.seek(track.timestamp(97) - 1));
+        assertFalse(cursor.seek(track.timestamp(0) - 1));
+        assertFalse(cursor.seek(track.timestamp(track.size() - 1) + 1));
+    }
+
+    @Test
+    void mergeReadsTrackFile() throws IOException {
+        Path garmin = _dir.resolve("garmin.fit"), zwift = _dir.resolve("zwift.ztrk"), out = _dir.resolve("merged.fit");
+        Files.write(garmin, GarminPatcherTest.garmin(FitBytes.GARMIN).bytes());
+        ZwiftTrack track = GarminPatcherTest.zwift();
+        TrackFile.write(track, zwift);
+        Merge merge = new Merge(garmin.toString(), Collections.singletonList(zwift.toString()), out.toString());
+        merge.setGarminMode(Merge.GarminMode.PATCH);
+        merge.setCrcPolicy(Merge.CrcPolicy.ABORT);
+        merge.run();
+
+        byte[] merged = Files.readAllBytes(out);
+        assertTrue(FitBytes.isValid(merged));
+        List<FitBytes.Message> records = FitBytes.read(merged, 20);
+        assertEquals(merge.getMetrics().getMatched(), records.size());
+        assertTrue(records.size() > 0);
+        for(FitBytes.Message record : records) {
+            int index = track.indexOf((int) record._timestamp, 0);
+            assertTrue(index >= 0);
+            assertEquals(track.latitude(index), (long) record.get(0));
+        }
+    }
+
+    @Test
+    void mergeRejectsCorruptTrackFile() throws IOException {
+        Path garmin = _dir.resolve("garmin.fit"), zwift = _dir.resolve("zwift.ztrk"), out = _dir.resolve("merged.fit");
+        Files.write(garmin, GarminPatcherTest.garmin(FitBytes.GARMIN).bytes());
+        byte[] bytes = TrackFile.encode(GarminPatcherTest.zwift());
+        Files.write(zwift, Arrays.copyOf(bytes, bytes.length - 8));
+        Merge merge = new Merge(garmin.toString(), Collections.singletonList(zwift.toString()), out.toString());
+        merge.setGarminMode(Merge.GarminMode.PATCH);
+        MergeException e = assertThrows(MergeException.class, merge::run);
+        assertEquals(MergeException.Reason.ZWIFT_INPUT, e.getReason());
+        assertFalse(Files.exists(out));
+    }
+
+    @Test
+    void emptyTrackRoundTrips() throws IOException {
+        ZwiftTrack track = new ZwiftTrack();
+        track.seal();
+        TrackFile file = TrackFile.read(ByteBuffer.wrap(TrackFile.encode(track)));
+        assertEquals(0, file.size());
+        assertFalse(file.cursor().seek(1000000000));
+    }
+
+    @Test
+    void truncatedFileIsRejected() throws IOException {
+        byte[] bytes = TrackFile.encode(scaledTrack(1000));
+        Path path = _dir.resolve("ride.ztrk");
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 100));
+        assertThrows(IOException.class, () -> TrackFile.open(path).toTrack());
+        Files.write(path, Arrays.copyOf(bytes, 20));
+        assertThrows(IOException.class, () -> TrackFile.open(path));
+    }
+
+    @Test
+    void otherFilesAreRejected() throws IOException {
+        Path path = _dir.resolve("ride.ztrk");
+        Files.write(path, new byte[64]);
+        assertThrows(IOException.class, () -> TrackFile.open(path));
+        assertTrue(TrackFile.isTrackFile("Ride.ZTRK"));
+        assertFalse(TrackFile.isTrackFile("ride.fit"));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Reading a Zwift stream while its decoder runs, and the errors the decoder
+ * hands over.
+ *
+ * @author Nicholas Rodie
+ */
+class ZwiftStreamTest {
+
+    @Test
+    void readsWhileDecoding() {
+        ZwiftStream stream = new ZwiftStream(sink -> {
+            sink.startSegment();
+            for(int t = 0; t < 100_000; t++) sink.add(t, t, t * 2.0, t, -t, 1);
+        }).start();
+        try {
+            for(int t = 0; t < 100_000; t += 7) {
+                assertTrue(stream.seek(t));
+                assertEquals(t * 2.0, stream.distance());
+            }
+            stream.finish();
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    void decoderErrorsAreZwiftInputErrors() {
+        IOException cause = new IOException("truncated");
+        ZwiftStream stream = new ZwiftStream(sink -> {
+            sink.startSegment();
+            sink.add(1, 0, 0, 0, 0, 0);
+            throw cause;
+        }).start();
+        try {
+            MergeException e = assertThrows(MergeException.class, () -> {
+                while(stream.seek(Integer.MAX_VALUE)) {
+                    // read to the end
+                }
+            });
+            assertEquals(MergeException.Reason.ZWIFT_INPUT, e.getReason());
+            assertSame(cause, e.getCause());
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    void runtimeErrorsPassThrough() {
+        MergeException error = new MergeException(MergeException.Reason.ZWIFT_INPUT, "bad file");
+        ZwiftStream stream = new ZwiftStream(sink -> {
+            throw error;
+        }).start();
+        try {
+            assertSame(error, assertThrows(MergeException.class, () -> stream.seek(0)));
+        }
+        finally {
+            stream.close();
+        }
+    }
+}
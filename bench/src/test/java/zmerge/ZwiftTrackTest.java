@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Sealing and k-way merging tracks, checked against a sorted map filled in
+ * start order so the later starting track overwrites.
+ *
+ * @author Nicholas Rodie
+ */
+class ZwiftTrackTest {
+
+    /** a track whose records carry its id as their altitude */
+    private static ZwiftTrack track(int id, int... timestamps) {
+        ZwiftTrack track = new ZwiftTrack();
+        for(int t : timestamps) track.add(t, id, t * 10.0, t, -t, id * 0.5);
+        track.seal();
+        return track;
+    }
+
+    private static void assertTrack(Map<Integer, Integer> expected, ZwiftTrack track) {
+        assertEquals(expected.size(), track.size());
+        int i = 0;
+        for(Map.Entry<Integer, Integer> e : expected.entrySet()) {
+            assertEquals((int) e.getKey(), track.timestamp(i));
+            assertEquals((double) e.getValue(), track.altitude(i));
+            assertEquals(e.getKey() * 10.0, track.distance(i));
+            assertEquals((int) e.getKey(), track.latitude(i));
+            assertEquals(-e.getKey(), track.longitude(i));
+            assertEquals(e.getValue() * 0.5, track.speed(i));
+            i++;
+        }
+    }
+
+    @Test
+    void laterStartingTrackWins() {
+        ZwiftTrack late = track(2, 15, 16, 17, 30);
+        ZwiftTrack early = track(1, 10, 15, 16, 20, 30);
+        ZwiftTrack last = track(3, 16, 40);
+        Map<Integer, Integer> expected = new TreeMap<>();
+        for(int t : new int[] {10, 20}) expected.put(t, 1);
+        for(int t : new int[] {15, 17, 30}) expected.put(t, 2);
+        for(int t : new int[] {16, 40}) expected.put(t, 3);
+        assertTrack(expected, ZwiftTrack.merge(Arrays.asList(last, late, early)));
+    }
+
+    @Test
+    void mergesManyTracks() {
+        Random random = new Random(42);
+        List<ZwiftTrack> tracks = new ArrayList<>();
+        List<int[]> timestamps = new ArrayList<>();
+        for(int id = 0; id < 9; id++) {
+            // distinct starts so the winner of a tie is clear
+            int start = 1000 + id * 37 + random.nextInt(30);
+            int[] ts = new int[200 + random.nextInt(300)];
+            int t = start;
+            for(int i = 0; i < ts.length; i++) ts[i] = t += 1 + random.nextInt(3);
+            timestamps.add(ts);
+            tracks.add(track(id, ts));
+        }
+        Map<Integer, Integer> expected = new TreeMap<>();
+        for(int id = 0; id < tracks.size(); id++) for(int t : timestamps.get(id)) expected.put(t, id);
+        Collections.shuffle(tracks, random);
+        assertTrack(expected, ZwiftTrack.merge(tracks));
+    }
+
+    @Test
+    void segmentsAreKeptInTimeOrder() {
+        ZwiftTrack second = new ZwiftTrack();
+        second.startSegment();
+        for(int t = 200; t < 210; t++) second.add(t, 0, 0, 0, 0, 0);
+        second.startSegment();
+        for(int t = 300; t < 310; t++) second.add(t, 0, 0, 0, 0, 0);
+        second.seal();
+        ZwiftTrack first = track(1, 100, 101, 102);
+
+        ZwiftTrack merged = ZwiftTrack.merge(Arrays.asList(second, first));
+        assertEquals(3, merged.segments());
+        assertArrayEquals(new int[] {100, 200, 300}, merged.segmentStarts());
+        assertEquals(0, merged.segment(merged.indexOf(102, 0)));
+        assertEquals(1, merged.segment(merged.indexOf(209, 0)));
+        assertEquals(2, merged.segment(merged.indexOf(300, 0)));
+
+        ZwiftCursor cursor = merged.cursor();
+        assertTrue(cursor.seek(101));
+        assertEquals(0, cursor.segment());
+        assertFalse(cursor.seek(150));
+        assertTrue(cursor.seek(305));
+        assertEquals(2, cursor.segment());
+    }
+
+    @Test
+    void sealSortsAndTheLastAddedWins() {
+        ZwiftTrack track = new ZwiftTrack();
+        int[] ts = {5, 3, 9, 3, 1, 9, 9};
+        for(int i = 0; i < ts.length; i++) track.add(ts[i], i, ts[i] * 10.0, ts[i], -ts[i], i * 0.5);
+        track.seal();
+        Map<Integer, Integer> expected = new TreeMap<>();
+        for(int i = 0; i < ts.length; i++) expected.put(ts[i], i);
+        assertTrack(expected, track);
+        assertThrows(IllegalStateException.class, () -> track.add(10, 0, 0, 0, 0, 0));
+    }
+
+    @Test
+    void emptyAndSingleTracks() {
+        ZwiftTrack only = track(1, 1, 2, 3);
+        assertSame(only, ZwiftTrack.merge(Arrays.asList(track(2), only)));
+        ZwiftTrack unsealed = new ZwiftTrack();
+        assertThrows(IllegalStateException.class, () -> ZwiftTrack.merge(Arrays.asList(only, unsealed)));
+        assertThrows(IllegalStateException.class, unsealed::cursor);
+    }
+}
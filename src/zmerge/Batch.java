@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless batch mode. Reads a manifest of merges and runs them on a fixed
+ * size worker pool.
+ * <p>
+ * Each manifest line holds tab separated paths in the order
+ * {@code merged  garmin  zwift1  [zwift2 ...]}. Blank lines and lines
+ * starting with {@code #} are ignored.
+ *
+ * @author Nicholas Rodie
+ */
+public class Batch {
+
+    private static final String USAGE = 
+            "Usage: zmerge --batch <manifest> [--threads <n>] [--overwrite] [--crc warn|abort]\n"
+            + "       [--input direct|buffered|mapped] [--zwift load|stream|pipeline|mapped] [--garmin encode|patch]\n"
+            + "       [--output standard|compressed|pruned] [--cache <folder> [--cache-size <MB>]]\n"
+            + "       [--export gpx,tcx,csv] [--metrics <file.json>] [--jmx]";
+
+    private final List<Merge> _merges;
+    private final int _threads;
+    private final boolean _overwrite;
+
+    public Batch(List<Merge> merges, int threads, boolean overwrite) {
+        if(threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        _merges = new ArrayList<>(merges);
+        _threads = threads;
+        _overwrite = overwrite;
+    }
+
+    static List<Merge> readManifest(String path) throws IOException {
+        List<Merge> merges = new ArrayList<>();
+        int lineNum = 0;
+        for(String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            lineNum++;
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#")) continue;
+            String[] fields = line.split("\t");
+            for(int i = 0; i < fields.length; i++) fields[i] = fields[i].trim();
+            if(fields.length < 3) 
+                throw new IOException(path + ":" + lineNum + ": expected merged, garmin and at least one zwift path");
+            merges.add(new Merge(fields[1], Arrays.asList(fields).subList(2, fields.length), fields[0]));
+        }
+        return merges;
+    }
+
+    /**
+     * Runs every merge and prints one result line per merge in manifest order.
+     *
+     * @return the number of merges that failed
+     */
+    public int run() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(_threads);
+        List<Future<?>> results = new ArrayList<>();
+        Set<String> outputs = new HashSet<>();
+        try {
+            for(Merge merge : _merges) {
+                // two jobs writing the same file would clobber each other
+                boolean duplicate = !outputs.add(new File(merge.getMergePath()).getAbsolutePath());
+                results.add(pool.submit(() -> {
+                    if(duplicate) 
+                        throw new MergeException("\"" + merge.getMergePath() + "\"\nMerge file is listed more than once.");
+                    if(!_overwrite && new File(merge.getMergePath()).exists()) 
+                        throw new MergeException("\"" + merge.getMergePath() + "\"\nThe merge file already exists.");
+                    // every bad input of the job in one line, before any merging
+                    merge.validate();
+                    merge.run();
+                    return null;
+                }));
+            }
+
+            int failed = 0;
+            for(int i = 0; i < _merges.size(); i++) {
+                Merge merge = _merges.get(i);
+                try {
+                    results.get(i).get();
+                    for(String warning : merge.getWarnings()) 
+                        System.err.println("WARN   " + merge.getMergePath() + ": " + oneLine(warning));
+                    System.out.println("OK     " + merge.getMergePath());
+                }
+                catch (ExecutionException e) {
+                    failed++;
+                    Throwable cause = e.getCause();
+                    String message = cause instanceof MergeException ? cause.getMessage() : cause.toString();
+                    System.out.println("FAILED " + merge.getMergePath() + ": " + oneLine(message));
+                }
+            }
+            return failed;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the metrics of every merge as one JSON document.
+     */
+    static void writeMetrics(List<Merge> merges, String path) throws IOException {
+        StringBuilder json = new StringBuilder("{\"merges\":[");
+        for(int i = 0; i < merges.size(); i++) {
+            Merge merge = merges.get(i);
+            if(i > 0) json.append(",\n");
+            json.append("{\"merge\":").append(MergeMetrics.quote(merge.getMergePath()));
+            json.append(",\"garmin\":").append(MergeMetrics.quote(merge.getGarminPath()));
+            json.append(",\"zwift\":[");
+            for(int z = 0; z < merge.getZwiftPaths().size(); z++) {
+                if(z > 0) json.append(',');
+                json.append(MergeMetrics.quote(merge.getZwiftPaths().get(z)));
+            }
+            json.append("],\"metrics\":").append(merge.getMetrics().toJson()).append('}');
+        }
+        json.append("]}\n");
+        Files.write(Paths.get(path), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String oneLine(String message) {
+        return message == null ? "" : message.replace('\n', ' ');
+    }
+
+    /**
+     * The merge path with its extension swapped for the export format's.
+     */
+    static String exportPath(String mergePath, String format) {
+        int dot = mergePath.lastIndexOf('.');
+        int slash = Math.max(mergePath.lastIndexOf('/'), mergePath.lastIndexOf(File.separatorChar));
+        return (dot > slash ? mergePath.substring(0, dot) : mergePath) + "." + format;
+    }
+
+    public static void main(String[] args) {
+        String manifest = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean overwrite = false;
+        Merge.CrcPolicy crcPolicy = Merge.CrcPolicy.WARN;
+        FitInput.Mode inputMode = FitInput.Mode.BUFFERED;
+        Merge.ZwiftMode zwiftMode = Merge.ZwiftMode.PIPELINE;
+        Merge.GarminMode garminMode = Merge.GarminMode.ENCODE;
+        Merge.OutputMode outputMode = Merge.OutputMode.STANDARD;
+        String metrics = null, cacheDir = null;
+        long cacheSize = MergeCache.DEFAULT_SIZE_MB;
+        boolean jmx = false;
+        List<String> exports = new ArrayList<>();
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--batch":
+                        manifest = args[++i];
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--overwrite":
+                        overwrite = true;
+                        break;
+                    case "--crc":
+                        crcPolicy = Merge.CrcPolicy.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "--input":
+                        inputMode = FitInput.Mode.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "--zwift":
+                        zwiftMode = Merge.ZwiftMode.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "--garmin":
+                        garminMode = Merge.GarminMode.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "--output":
+                        outputMode = Merge.OutputMode.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "--cache":
+                        cacheDir = args[++i];
+                        break;
+                    case "--cache-size":
+                        cacheSize = Long.parseLong(args[++i]);
+                        break;
+                    case "--export":
+                        for(String format : args[++i].toLowerCase().split(",")) {
+                            if(!RideWriters.isExport("." + format)) throw new IllegalArgumentException("Unknown export " + format);
+                            exports.add(format);
+                        }
+                        break;
+                    case "--metrics":
+                        metrics = args[++i];
+                        break;
+                    case "--jmx":
+                        jmx = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if(manifest == null) throw new IllegalArgumentException("Missing --batch");
+        }
+        catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        try {
+            List<Merge> merges = readManifest(manifest);
+            MergeCache cache = cacheDir != null ? new MergeCache(Paths.get(cacheDir), cacheSize << 20) : null;
+            for(Merge merge : merges) {
+                merge.setCache(cache);
+                merge.setCrcPolicy(crcPolicy);
+                merge.setInputMode(inputMode);
+                merge.setZwiftMode(zwiftMode);
+                merge.setGarminMode(garminMode);
+                merge.setOutputMode(outputMode);
+                for(String format : exports) merge.addExport(exportPath(merge.getMergePath(), format));
+            }
+            if(jmx) MergeStats.register();
+            Batch batch = new Batch(merges, threads, overwrite);
+            int failed = batch.run();
+            if(metrics != null) writeMetrics(merges, metrics);
+            System.exit(failed == 0 ? 0 : 1);
+        }
+        catch (IOException | InterruptedException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+    }
+}
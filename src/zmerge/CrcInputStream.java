@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import com.garmin.fit.CRC;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Computes the FIT file CRC of everything read through it, so a file can be
+ * checked while it is decoded instead of in a separate pass.
+ * <p>
+ * The CRC of a whole FIT file, including its trailing CRC, is zero. The same
+ * holds for chained FIT files since each one leaves the CRC back at zero.
+ *
+ * @author Nicholas Rodie
+ */
+public class CrcInputStream extends FilterInputStream {
+
+    private int _crc;
+    private long _count;
+
+    public CrcInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if(b >= 0) {
+            _crc = CRC.get16(_crc, (byte) b);
+            _count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        for(int i = 0; i < n; i++) _crc = CRC.get16(_crc, b[off + i]);
+        if(n > 0) _count += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes still have to go through the CRC
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while(skipped < n) {
+            int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if(r < 0) break;
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {}
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Reads whatever the decoder left unread so that the CRC covers the whole
+     * file.
+     */
+    public void drain() throws IOException {
+        skip(Long.MAX_VALUE);
+    }
+
+    public long getCount() {
+        return _count;
+    }
+
+    /**
+     * True if the bytes read so far form one or more complete FIT files with
+     * matching CRCs.
+     */
+    public boolean isValid() {
+        return _count > 0 && _crc == 0;
+    }
+}
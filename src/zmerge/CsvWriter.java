@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes merged records as CSV, one line per record with a header line.
+ * Missing heart rate, cadence and power are left empty.
+ *
+ * @author Nicholas Rodie
+ */
+public final class CsvWriter implements RideWriter {
+
+    private final Writer _out;
+    private final StringBuilder _line;
+
+    public CsvWriter(Writer out) throws IOException {
+        _out = out;
+        _line = new StringBuilder(128);
+        _out.write("time,latitude,longitude,altitude,distance,speed,heart_rate,cadence,power\n");
+    }
+
+    @Override
+    public void record(int timestamp, double altitude, double distance, int latitude, int longitude, double speed, 
+            int heartRate, int cadence, int power) throws IOException {
+        _line.setLength(0);
+        _line.append(RideWriters.time(timestamp)).append(',');
+        RideWriters.fixed(_line, RideWriters.degrees(latitude), 7).append(',');
+        RideWriters.fixed(_line, RideWriters.degrees(longitude), 7).append(',');
+        RideWriters.fixed(_line, altitude, 1).append(',');
+        RideWriters.fixed(_line, distance, 2).append(',');
+        RideWriters.fixed(_line, speed, 3).append(',');
+        if(heartRate >= 0) _line.append(heartRate);
+        _line.append(',');
+        if(cadence >= 0) _line.append(cadence);
+        _line.append(',');
+        if(power >= 0) _line.append(power);
+        _line.append('\n');
+        _out.append(_line);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        _out.close();
+    }
+}
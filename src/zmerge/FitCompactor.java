@@ -0,0 +1,379 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import com.garmin.fit.LapMesg;
+import com.garmin.fit.MesgNum;
+import com.garmin.fit.RecordMesg;
+import com.garmin.fit.SessionMesg;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Rewrites a FIT file to take less space, at the byte level.
+ * <p>
+ * A message with a timestamp less than 32 seconds after the one before is
+ * written with a compressed timestamp header instead of its timestamp
+ * field, saving 4 bytes on nearly every record. Such messages need a
+ * definition without the timestamp in local message types 0 to 3, so the
+ * local message types of the output are handed out afresh and definitions
+ * are written again whenever one has been pushed out of its local type.
+ * <p>
+ * Pruning also drops the 16 bit altitude and speed fields from messages
+ * that have their enhanced 32 bit versions too. Readers that only know
+ * the old fields will then show no altitude or speed.
+ * <p>
+ * This is a second pass over a finished file, so it costs another read and
+ * write of it. {@link Merge} runs it on the merge in memory.
+ *
+ * @author Nicholas Rodie
+ */
+final class FitCompactor {
+
+    private static final int TIMESTAMP_FIELD = RecordMesg.TimestampFieldNum;
+    private static final int HEADER_SIZE = 14;
+    /** local message types a compressed timestamp header can refer to */
+    private static final int COMPRESSED_TYPES = 4, LOCAL_TYPES = 16;
+
+    // message, legacy field, enhanced field
+    private static final int[][] REDUNDANT = {
+        {MesgNum.RECORD, RecordMesg.AltitudeFieldNum, RecordMesg.EnhancedAltitudeFieldNum},
+        {MesgNum.RECORD, RecordMesg.SpeedFieldNum, RecordMesg.EnhancedSpeedFieldNum},
+        {MesgNum.LAP, LapMesg.AvgSpeedFieldNum, LapMesg.EnhancedAvgSpeedFieldNum},
+        {MesgNum.LAP, LapMesg.MaxSpeedFieldNum, LapMesg.EnhancedMaxSpeedFieldNum},
+        {MesgNum.SESSION, SessionMesg.AvgSpeedFieldNum, SessionMesg.EnhancedAvgSpeedFieldNum},
+        {MesgNum.SESSION, SessionMesg.MaxSpeedFieldNum, SessionMesg.EnhancedMaxSpeedFieldNum}
+    };
+
+    /**
+     * An input definition and the two ways it can be written.
+     */
+    private static final class Definition {
+        int _size, _timestampOffset = -1;
+        boolean _bigEndian, _dev;
+        // definition content after the record header, and the input byte ranges copied to each message
+        byte[] _full, _compressed;
+        int[] _fullRanges, _compressedRanges;
+    }
+
+    private final InputStream _in;
+    private final byte[] _buf;
+    private int _pos, _len;
+    private long _offset;
+    private final boolean _prune;
+    private final Definition[] _definitions;
+    private long _lastTimestamp = -1;
+
+    private OutputStream _out;
+    // the definition content each output local type holds, and when it was last used
+    private final byte[][] _types;
+    private final long[] _used;
+    private long _clock;
+    private byte[] _mesg;
+    long _written;
+
+    private FitCompactor(InputStream in, boolean prune) {
+        _in = in;
+        _buf = new byte[64 * 1024];
+        _prune = prune;
+        _definitions = new Definition[LOCAL_TYPES];
+        _types = new byte[LOCAL_TYPES][];
+        _used = new long[LOCAL_TYPES];
+        _mesg = new byte[256];
+    }
+
+    static FitCompactor compact(InputStream in, File out, boolean prune) throws IOException {
+        FitCompactor compactor = new FitCompactor(in, prune);
+        byte[] header;
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(out), FitInput.BUFFER_SIZE)) {
+            compactor._out = stream;
+            // the data size isn't known until the end
+            stream.write(new byte[HEADER_SIZE]);
+            header = compactor.walk();
+        }
+        GarminPatcher.finish(out, header);
+        compactor._written = out.length();
+        return compactor;
+    }
+
+    /**
+     * Compacts into a stream. The body is held in memory until the header
+     * can be written.
+     */
+    static FitCompactor compact(InputStream in, OutputStream out, boolean prune) throws IOException {
+        FitCompactor compactor = new FitCompactor(in, prune);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        compactor._out = body;
+        byte[] header = GarminPatcher.header(compactor.walk(), body.size());
+        int crc = GarminPatcher.crc(0, header, header.length);
+        byte[] bytes = body.toByteArray();
+        crc = GarminPatcher.crc(crc, bytes, bytes.length);
+        out.write(header);
+        out.write(bytes);
+        out.write(crc);
+        out.write(crc >>> 8);
+        out.flush();
+        compactor._written = header.length + bytes.length + 2;
+        return compactor;
+    }
+
+    /**
+     * Reads the whole file, writing the compacted copy.
+     *
+     * @return the input header
+     */
+    private byte[] walk() throws IOException {
+        int headerSize = u8();
+        if(headerSize < 12) throw new IOException("Not a FIT file");
+        byte[] header = new byte[headerSize];
+        header[0] = (byte) headerSize;
+        read(header, 1, headerSize - 1);
+        if(header[8] != '.' || header[9] != 'F' || header[10] != 'I' || header[11] != 'T') 
+            throw new IOException("Not a FIT file");
+        long end = _offset + GarminPatcher.uint(header, 4, 4, false);
+
+        while(_offset < end) {
+            int recordHeader = u8();
+            if((recordHeader & 0x80) != 0) {
+                int offset = recordHeader & 0x1F;
+                if(_lastTimestamp < 0) throw new IOException("Compressed timestamp before any timestamp at byte " + _offset);
+                long timestamp = (_lastTimestamp & ~0x1FL) + offset;
+                if(offset < (_lastTimestamp & 0x1F)) timestamp += 0x20;
+                data(definition((recordHeader >> 5) & 0x03), timestamp);
+            }
+            else if((recordHeader & 0x40) != 0) {
+                define(recordHeader);
+            }
+            else {
+                data(definition(recordHeader & 0x0F), -1);
+            }
+        }
+        if(_offset != end) throw new IOException("Message runs past the end of the FIT data");
+        // file crc, checked by whoever wrote it
+        skip(2);
+        if(_pos < _len || fill()) throw new IOException("Chained FIT files can't be compacted");
+        return header;
+    }
+
+    private Definition definition(int local) throws IOException {
+        Definition definition = _definitions[local];
+        if(definition == null) throw new IOException("Data message without a definition at byte " + _offset);
+        return definition;
+    }
+
+    private void define(int recordHeader) throws IOException {
+        Definition definition = new Definition();
+        byte[] fixed = new byte[5];
+        read(fixed, 0, 5);
+        definition._bigEndian = fixed[1] == 1;
+        int num = (int) GarminPatcher.uint(fixed, 2, 2, definition._bigEndian);
+        int fields = fixed[4] & 0xFF;
+        byte[] fieldDefs = new byte[fields * 3];
+        read(fieldDefs, 0, fieldDefs.length);
+        byte[] devDefs = new byte[0];
+        int devSize = 0;
+        definition._dev = (recordHeader & 0x20) != 0;
+        if(definition._dev) {
+            int devFields = u8();
+            devDefs = new byte[1 + devFields * 3];
+            devDefs[0] = (byte) devFields;
+            read(devDefs, 1, devDefs.length - 1);
+            for(int i = 0; i < devFields; i++) devSize += devDefs[2 + i * 3] & 0xFF;
+        }
+
+        boolean[] drop = new boolean[fields];
+        if(_prune) {
+            for(int[] redundant : REDUNDANT) {
+                if(redundant[0] != num) continue;
+                int legacy = -1;
+                boolean enhanced = false;
+                for(int i = 0; i < fields; i++) {
+                    int field = fieldDefs[i * 3] & 0xFF;
+                    if(field == redundant[1]) legacy = i;
+                    if(field == redundant[2]) enhanced = true;
+                }
+                if(legacy >= 0 && enhanced) drop[legacy] = true;
+            }
+        }
+
+        int size = 0;
+        int timestamp = -1;
+        for(int i = 0; i < fields; i++) {
+            int fieldSize = fieldDefs[i * 3 + 1] & 0xFF;
+            if((fieldDefs[i * 3] & 0xFF) == TIMESTAMP_FIELD && fieldSize == 4) {
+                timestamp = i;
+                definition._timestampOffset = size;
+            }
+            size += fieldSize;
+        }
+        definition._size = size + devSize;
+
+        definition._full = content(fixed, fieldDefs, devDefs, drop, -1);
+        definition._fullRanges = ranges(fieldDefs, drop, -1, size, devSize);
+        if(timestamp >= 0) {
+            definition._compressed = content(fixed, fieldDefs, devDefs, drop, timestamp);
+            definition._compressedRanges = ranges(fieldDefs, drop, timestamp, size, devSize);
+        }
+        _definitions[recordHeader & 0x0F] = definition;
+    }
+
+    /**
+     * The definition content without the dropped fields and the skipped
+     * one.
+     */
+    private static byte[] content(byte[] fixed, byte[] fieldDefs, byte[] devDefs, boolean[] drop, int skip) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(5 + fieldDefs.length + devDefs.length);
+        content.write(fixed, 0, 4);
+        int kept = 0;
+        for(int i = 0; i < drop.length; i++) if(!drop[i] && i != skip) kept++;
+        content.write(kept);
+        for(int i = 0; i < drop.length; i++) if(!drop[i] && i != skip) content.write(fieldDefs, i * 3, 3);
+        content.write(devDefs, 0, devDefs.length);
+        return content.toByteArray();
+    }
+
+    /**
+     * The input byte ranges to copy, as offset and length pairs.
+     */
+    private static int[] ranges(byte[] fieldDefs, boolean[] drop, int skip, int size, int devSize) {
+        int[] ranges = new int[(drop.length + 1) * 2];
+        int n = 0, at = 0;
+        for(int i = 0; i < drop.length; i++) {
+            int fieldSize = fieldDefs[i * 3 + 1] & 0xFF;
+            if(!drop[i] && i != skip) {
+                // join with the range before when they touch
+                if(n > 0 && ranges[n - 2] + ranges[n - 1] == at) ranges[n - 1] += fieldSize;
+                else {
+                    ranges[n++] = at;
+                    ranges[n++] = fieldSize;
+                }
+            }
+            at += fieldSize;
+        }
+        if(devSize > 0) {
+            if(n > 0 && ranges[n - 2] + ranges[n - 1] == size) ranges[n - 1] += devSize;
+            else {
+                ranges[n++] = size;
+                ranges[n++] = devSize;
+            }
+        }
+        return Arrays.copyOf(ranges, n);
+    }
+
+    /**
+     * Writes a data message, compressing its timestamp when it can.
+     *
+     * @param timestamp the timestamp given by a compressed header, or -1
+     */
+    private void data(Definition definition, long timestamp) throws IOException {
+        if(_mesg.length < definition._size) _mesg = new byte[definition._size];
+        read(_mesg, 0, definition._size);
+
+        boolean compressed = timestamp >= 0;
+        if(!compressed && definition._timestampOffset >= 0) {
+            long value = GarminPatcher.uint(_mesg, definition._timestampOffset, 4, definition._bigEndian);
+            // an invalid timestamp doesn't move the decoder's clock on
+            if(value != 0xFFFFFFFFL) {
+                compressed = _lastTimestamp >= 0 && value >= _lastTimestamp && value - _lastTimestamp < 32;
+                timestamp = value;
+            }
+        }
+        if(timestamp >= 0) _lastTimestamp = timestamp;
+
+        if(compressed) {
+            // a compressed message from the input has no timestamp field to begin with
+            boolean input = definition._timestampOffset < 0;
+            int type = type(input ? definition._full : definition._compressed, definition._dev, 0, COMPRESSED_TYPES);
+            _out.write(0x80 | (type << 5) | (int) (timestamp & 0x1F));
+            copy(input ? definition._fullRanges : definition._compressedRanges);
+        }
+        else {
+            _out.write(type(definition._full, definition._dev, COMPRESSED_TYPES, LOCAL_TYPES));
+            copy(definition._fullRanges);
+        }
+    }
+
+    private void copy(int[] ranges) throws IOException {
+        for(int i = 0; i < ranges.length; i += 2) _out.write(_mesg, ranges[i], ranges[i + 1]);
+    }
+
+    /**
+     * The output local type holding the definition, writing the definition
+     * into the least recently used type in the range if none does.
+     */
+    private int type(byte[] content, boolean dev, int from, int to) throws IOException {
+        _clock++;
+        int lru = from;
+        for(int type = from; type < to; type++) {
+            if(_types[type] == content || Arrays.equals(_types[type], content)) {
+                _types[type] = content;
+                _used[type] = _clock;
+                return type;
+            }
+            if(_used[type] < _used[lru]) lru = type;
+        }
+        _out.write(0x40 | (dev ? 0x20 : 0) | lru);
+        _out.write(content);
+        _types[lru] = content;
+        _used[lru] = _clock;
+        return lru;
+    }
+
+    private boolean fill() throws IOException {
+        int n = _in.read(_buf, 0, _buf.length);
+        if(n <= 0) return false;
+        _pos = 0;
+        _len = n;
+        return true;
+    }
+
+    private int u8() throws IOException {
+        if(_pos == _len && !fill()) throw new EOFException("FIT file is truncated");
+        _offset++;
+        return _buf[_pos++] & 0xFF;
+    }
+
+    private void read(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        while(off < end) {
+            if(_pos == _len && !fill()) throw new EOFException("FIT file is truncated");
+            int n = Math.min(end - off, _len - _pos);
+            System.arraycopy(_buf, _pos, b, off, n);
+            _pos += n;
+            off += n;
+        }
+        _offset += len;
+    }
+
+    private void skip(int n) throws IOException {
+        for(int i = 0; i < n; i++) u8();
+    }
+}
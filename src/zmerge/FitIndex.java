@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An on-disk cache of {@link FitInfo} keyed by path, size and modified time,
+ * so a file is only decoded again when it changes.
+ * <p>
+ * The index is a text file with one tab separated line per FIT file:
+ * {@code path  size  modified  manufacturer  start  end  records}.
+ *
+ * @author Nicholas Rodie
+ */
+public final class FitIndex {
+
+    private static final String HEADER = "# zmerge index 1";
+
+    private final Path _file;
+    private final Map<Path, Entry> _entries;
+    private boolean _dirty;
+
+    private static final class Entry {
+        final long _size, _modified;
+        final FitInfo _info;
+
+        Entry(long size, long modified, FitInfo info) {
+            _size = size;
+            _modified = modified;
+            _info = info;
+        }
+    }
+
+    /**
+     * Opens an index, loading it if the file exists.
+     */
+    public FitIndex(Path file) throws IOException {
+        _file = file;
+        _entries = new HashMap<>();
+        if(Files.exists(file)) load();
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(_file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            // an index from another version is rebuilt rather than trusted
+            if(!HEADER.equals(line)) {
+                _dirty = true;
+                return;
+            }
+            int lineNum = 1;
+            while((line = reader.readLine()) != null) {
+                lineNum++;
+                String[] fields = line.split("\t");
+                try {
+                    if(fields.length != 7) throw new NumberFormatException();
+                    FitInfo info = new FitInfo(Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), 
+                            Integer.parseInt(fields[5]), Integer.parseInt(fields[6]));
+                    _entries.put(path(fields[0]), 
+                            new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), info));
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException(_file + ":" + lineNum + ": bad index line");
+                }
+            }
+        }
+    }
+
+    private Path path(String path) {
+        return _file.getFileSystem().getPath(path);
+    }
+
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Returns the info for a file, decoding it only if it is not indexed or
+     * has changed since.
+     */
+    public synchronized FitInfo get(Path path) throws IOException {
+        path = path.toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        long modified = attrs.lastModifiedTime().toMillis();
+        Entry entry = _entries.get(path);
+        if(entry != null && entry._size == attrs.size() && entry._modified == modified) return entry._info;
+
+        FitInfo info = FitInfo.read(path);
+        // a line per file, so paths that would break the line are not kept
+        String name = path.toString();
+        if(name.indexOf('\t') < 0 && name.indexOf('\n') < 0 && name.indexOf('\r') < 0) {
+            _entries.put(path, new Entry(attrs.size(), modified, info));
+            _dirty = true;
+        }
+        return info;
+    }
+
+    /**
+     * Drops entries for files that no longer exist.
+     */
+    public synchronized void prune() {
+        Iterator<Path> it = _entries.keySet().iterator();
+        while(it.hasNext()) {
+            if(!Files.exists(it.next())) {
+                it.remove();
+                _dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the index if anything has changed since it was loaded or last
+     * saved. The old index is replaced in one rename, so a crash leaves
+     * either the old or the new one.
+     */
+    public synchronized void save() throws IOException {
+        if(!_dirty) return;
+        Path dir = _file.toAbsolutePath().getParent();
+        if(dir != null) Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, "." + _file.getFileName(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for(Map.Entry<Path, Entry> e : _entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    FitInfo info = entry._info;
+                    writer.write(e.getKey() + "\t" + entry._size + "\t" + entry._modified + "\t" 
+                            + info.getManufacturer() + "\t" + info.getStart() + "\t" + info.getEnd() + "\t" 
+                            + info.getRecords());
+                    writer.newLine();
+                }
+            }
+            try {
+                Files.move(temp, _file, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, _file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            _dirty = false;
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
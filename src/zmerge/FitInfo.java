@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * What is needed to pair a FIT file with others: who made it and the time
+ * range of its records.
+ *
+ * @author Nicholas Rodie
+ */
+public final class FitInfo {
+
+    private final int _manufacturer;
+    private final int _start, _end;
+    private final int _records;
+
+    public FitInfo(int manufacturer, int start, int end, int records) {
+        _manufacturer = manufacturer;
+        _start = start;
+        _end = end;
+        _records = records;
+    }
+
+    /**
+     * Scans a file for its info without decoding its messages.
+     */
+    public static FitInfo read(Path path) throws IOException {
+        // the scanner does its own buffering and skips with seeks
+        try (InputStream stream = FitInput.open(path.toString(), FitInput.Mode.DIRECT)) {
+            return FitScanner.scan(stream);
+        }
+        catch (IOException e) {
+            throw new IOException(path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** manufacturer from the FILE_ID message, -1 if there is none */
+    public int getManufacturer() {
+        return _manufacturer;
+    }
+
+    /** timestamp of the first record, -1 if there are no records */
+    public int getStart() {
+        return _start;
+    }
+
+    /** timestamp of the last record, -1 if there are no records */
+    public int getEnd() {
+        return _end;
+    }
+
+    public int getRecords() {
+        return _records;
+    }
+
+    /**
+     * True if both files have records and their time ranges overlap.
+     */
+    public boolean overlaps(FitInfo other) {
+        return _records > 0 && other._records > 0 && _start <= other._end && other._start <= _end;
+    }
+
+    @Override
+    public String toString() {
+        return "manufacturer " + _manufacturer + ", " + _records + " records from " + _start + " to " + _end;
+    }
+}
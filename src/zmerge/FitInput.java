@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+
+/**
+ * Opens FIT files for decoding. The decoder reads a few bytes at a time, so
+ * how the file is fed to it decides how many system calls a decode makes.
+ * <p>
+ * BUFFERED is the default. Read a byte at a time by {@code InputBenchmark}
+ * in {@code bench}, a 115 MB file went at about 2 MB/s with one read call
+ * per byte when DIRECT, 445 MB/s with 442 read calls when BUFFERED, and
+ * 375 MB/s with 2 mappings when MAPPED. MAPPED saves the read calls but
+ * not the time, and on Windows a mapped file stays locked until the
+ * mapping is garbage collected.
+ *
+ * @author Nicholas Rodie
+ */
+public final class FitInput {
+
+    public enum Mode {
+        /** unbuffered file stream, one read call per decoder read */
+        DIRECT,
+        /** file stream behind a large buffer, the default */
+        BUFFERED,
+        /** file mapped into memory */
+        MAPPED
+    };
+
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private FitInput() {}
+
+    public static InputStream open(String path, Mode mode) throws IOException {
+        switch (mode) {
+            case MAPPED:
+                return new MappedInputStream(Paths.get(path));
+            default:
+                return wrap(new FileInputStream(path), mode);
+        }
+    }
+
+    /**
+     * Applies a stream based mode to an already open stream.
+     */
+    static InputStream wrap(InputStream in, Mode mode) {
+        switch (mode) {
+            case DIRECT:
+                return in;
+            case BUFFERED:
+                return new Buffered(in, BUFFER_SIZE);
+            default:
+                throw new IllegalArgumentException(mode + " cannot wrap a stream");
+        }
+    }
+
+    /**
+     * A buffer in front of a stream. Unlike {@link java.io.BufferedInputStream}
+     * it doesn't lock on every read, which is most of the cost of reading one
+     * byte at a time.
+     */
+    private static final class Buffered extends FilterInputStream {
+        private final byte[] _buf;
+        private int _pos, _len;
+
+        Buffered(InputStream in, int size) {
+            super(in);
+            _buf = new byte[size];
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(_buf, 0, _buf.length);
+            if(n <= 0) return false;
+            _pos = 0;
+            _len = n;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(_pos == _len && !fill()) return -1;
+            return _buf[_pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            if(_pos == _len) {
+                // large reads go straight to the stream
+                if(len >= _buf.length) return in.read(b, off, len);
+                if(!fill()) return -1;
+            }
+            int n = Math.min(len, _len - _pos);
+            System.arraycopy(_buf, _pos, b, off, n);
+            _pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if(n <= 0) return 0;
+            int buffered = _len - _pos;
+            if(n <= buffered) {
+                _pos += (int) n;
+                return n;
+            }
+            _pos = _len;
+            return buffered + in.skip(n - buffered);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, (long) (_len - _pos) + in.available());
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readlimit) {}
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import com.garmin.fit.FileIdMesg;
+import com.garmin.fit.MesgNum;
+import com.garmin.fit.RecordMesg;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads {@link FitInfo} straight from the FIT bytes. Definition messages give
+ * the size of each data message, so everything but the few fields needed is
+ * skipped without building messages. Chained FIT files are scanned as one.
+ * <p>
+ * The CRC is not checked.
+ *
+ * @author Nicholas Rodie
+ */
+final class FitScanner {
+
+    private static final int TIMESTAMP_FIELD = RecordMesg.TimestampFieldNum;
+    private static final int MANUFACTURER_FIELD = FileIdMesg.ManufacturerFieldNum;
+    private static final long INVALID_TIMESTAMP = 0xFFFFFFFFL;
+
+    private final InputStream _in;
+    private final byte[] _buf;
+    private int _pos, _len;
+    private long _offset;
+
+    // by local message type
+    private final Definition[] _definitions;
+    private long _lastTimestamp;
+
+    private int _manufacturer = -1, _start = -1, _end = -1, _records;
+    // stop as soon as the manufacturer is known
+    private boolean _manufacturerOnly;
+
+    private static final class Definition {
+        int _num, _size;
+        boolean _bigEndian;
+        int _timestampOffset = -1, _manufacturerOffset = -1;
+    }
+
+    private FitScanner(InputStream in) {
+        _in = in;
+        _buf = new byte[64 * 1024];
+        _definitions = new Definition[16];
+    }
+
+    static FitInfo scan(InputStream in) throws IOException {
+        FitScanner scanner = new FitScanner(in);
+        scanner.scan();
+        return new FitInfo(scanner._manufacturer, scanner._start, scanner._end, scanner._records);
+    }
+
+    /**
+     * Reads only as far as the file's manufacturer, which is normally in
+     * the first message.
+     *
+     * @return the manufacturer, or -1 if the file doesn't give one
+     */
+    static int manufacturer(InputStream in) throws IOException {
+        FitScanner scanner = new FitScanner(in);
+        scanner._manufacturerOnly = true;
+        scanner.scan();
+        return scanner._manufacturer;
+    }
+
+    private void scan() throws IOException {
+        boolean first = true;
+        while(true) {
+            int headerSize = _pos < _len || fill() ? _buf[_pos] & 0xFF : -1;
+            if(headerSize < 0 && !first) return;
+            if(headerSize < 12) throw new IOException("Not a FIT file");
+            byte[] header = new byte[headerSize];
+            read(header);
+            if(header[8] != '.' || header[9] != 'F' || header[10] != 'I' || header[11] != 'T') 
+                throw new IOException("Not a FIT file");
+            long end = _offset + uint(header, 4, 4, false);
+            first = false;
+
+            for(int i = 0; i < _definitions.length; i++) _definitions[i] = null;
+            _lastTimestamp = -1;
+            while(_offset < end) {
+                int recordHeader = u8();
+                if((recordHeader & 0x80) != 0) {
+                    // compressed timestamp, an offset from the last full timestamp
+                    long timestamp = -1;
+                    if(_lastTimestamp >= 0) {
+                        int offset = recordHeader & 0x1F;
+                        timestamp = (_lastTimestamp & ~0x1FL) + offset;
+                        if(offset < (_lastTimestamp & 0x1F)) timestamp += 0x20;
+                        _lastTimestamp = timestamp;
+                    }
+                    data(definition((recordHeader >> 5) & 0x03), timestamp);
+                }
+                else if((recordHeader & 0x40) != 0) {
+                    define(recordHeader & 0x0F, (recordHeader & 0x20) != 0);
+                }
+                else {
+                    data(definition(recordHeader & 0x0F), -1);
+                }
+                if(_manufacturerOnly && _manufacturer >= 0) return;
+            }
+            if(_offset != end) throw new IOException("Message runs past the end of the FIT data");
+            // file crc
+            skip(2);
+        }
+    }
+
+    private Definition definition(int local) throws IOException {
+        Definition definition = _definitions[local];
+        if(definition == null) throw new IOException("Data message without a definition at byte " + _offset);
+        return definition;
+    }
+
+    private void define(int local, boolean developer) throws IOException {
+        Definition definition = new Definition();
+        skip(1);
+        definition._bigEndian = u8() == 1;
+        definition._num = definition._bigEndian ? (u8() << 8) | u8() : u8() | (u8() << 8);
+        int fields = u8();
+        int size = 0;
+        for(int i = 0; i < fields; i++) {
+            int num = u8(), fieldSize = u8();
+            skip(1);
+            if(num == TIMESTAMP_FIELD && fieldSize == 4) definition._timestampOffset = size;
+            if(num == MANUFACTURER_FIELD && fieldSize == 2) definition._manufacturerOffset = size;
+            size += fieldSize;
+        }
+        if(developer) {
+            int devFields = u8();
+            for(int i = 0; i < devFields; i++) {
+                skip(1);
+                size += u8();
+                skip(1);
+            }
+        }
+        definition._size = size;
+        _definitions[local] = definition;
+    }
+
+    private void data(Definition definition, long timestamp) throws IOException {
+        if(definition._num == MesgNum.FILE_ID) {
+            byte[] mesg = new byte[definition._size];
+            read(mesg);
+            if(_manufacturer < 0 && definition._manufacturerOffset >= 0) {
+                int manufacturer = (int) uint(mesg, definition._manufacturerOffset, 2, definition._bigEndian);
+                if(manufacturer != 0xFFFF) _manufacturer = manufacturer;
+            }
+            return;
+        }
+
+        if(definition._timestampOffset < 0) {
+            skip(definition._size);
+        }
+        else {
+            skip(definition._timestampOffset);
+            long value = u32(definition._bigEndian);
+            skip(definition._size - definition._timestampOffset - 4);
+            if(value != INVALID_TIMESTAMP) {
+                timestamp = value;
+                _lastTimestamp = value;
+            }
+        }
+        if(definition._num == MesgNum.RECORD && timestamp >= 0) {
+            if(_start < 0) _start = (int) timestamp;
+            _end = (int) timestamp;
+            _records++;
+        }
+    }
+
+    private static long uint(byte[] b, int off, int size, boolean bigEndian) {
+        long value = 0;
+        for(int i = 0; i < size; i++) {
+            int shift = 8 * (bigEndian ? size - 1 - i : i);
+            value |= (long) (b[off + i] & 0xFF) << shift;
+        }
+        return value;
+    }
+
+    private boolean fill() throws IOException {
+        int n = _in.read(_buf, 0, _buf.length);
+        if(n <= 0) return false;
+        _pos = 0;
+        _len = n;
+        return true;
+    }
+
+    private int u8() throws IOException {
+        if(_pos == _len && !fill()) throw new EOFException("FIT file is truncated");
+        _offset++;
+        return _buf[_pos++] & 0xFF;
+    }
+
+    private long u32(boolean bigEndian) throws IOException {
+        long value = 0;
+        for(int i = 0; i < 4; i++) {
+            int shift = 8 * (bigEndian ? 3 - i : i);
+            value |= (long) u8() << shift;
+        }
+        return value;
+    }
+
+    private void read(byte[] b) throws IOException {
+        int off = 0;
+        while(off < b.length) {
+            if(_pos == _len && !fill()) throw new EOFException("FIT file is truncated");
+            int n = Math.min(b.length - off, _len - _pos);
+            System.arraycopy(_buf, _pos, b, off, n);
+            _pos += n;
+            off += n;
+        }
+        _offset += b.length;
+    }
+
+    private void skip(long n) throws IOException {
+        if(n < 0) throw new IOException("Bad message definition");
+        _offset += n;
+        long buffered = Math.min(n, _len - _pos);
+        _pos += buffered;
+        n -= buffered;
+        // past the buffer, let the stream seek if it can
+        while(n > 0) {
+            long skipped = _in.skip(n);
+            if(skipped <= 0) {
+                if(!fill()) throw new EOFException("FIT file is truncated");
+                skipped = Math.min(n, _len);
+                _pos = (int) skipped;
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -0,0 +1,572 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import com.garmin.fit.CRC;
+import com.garmin.fit.FileIdMesg;
+import com.garmin.fit.LapMesg;
+import com.garmin.fit.Manufacturer;
+import com.garmin.fit.MesgNum;
+import com.garmin.fit.RecordMesg;
+import com.garmin.fit.SessionMesg;
+import com.garmin.fit.SubSport;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Rewrites a Garmin file at the byte level. Definitions and messages other
+ * than RECORD, LAP and SESSION are copied as they are, including developer
+ * data and messages the SDK has no profile for. RECORD, LAP and SESSION
+ * keep their bytes too, with only the merged fields overwritten. Fields a
+ * message doesn't have are added to the end of its definition.
+ * <p>
+ * Records without a Zwift match are dropped, so files that use compressed
+ * timestamp headers, whose timestamps depend on the message before, can't
+ * be patched. Neither can chained files or merged fields with an unusual
+ * size. {@link #check(InputStream)} finds these by reading only the
+ * definitions, so the caller can encode the file instead before any of the
+ * merge is written.
+ *
+ * @author Nicholas Rodie
+ */
+final class GarminPatcher {
+
+    // base types
+    private static final int ENUM = 0x00, UINT16 = 0x84, SINT32 = 0x85, UINT32 = 0x86;
+
+    private static final int TIMESTAMP_FIELD = RecordMesg.TimestampFieldNum;
+    private static final int MANUFACTURER_FIELD = FileIdMesg.ManufacturerFieldNum;
+    private static final int HEADER_SIZE = 14;
+
+    /**
+     * A merged field with its profile scale and offset.
+     */
+    private static final class Target {
+        final int _num, _size, _baseType;
+        final double _scale, _offset;
+
+        Target(int num, int baseType, double scale, double offset) {
+            _num = num;
+            _baseType = baseType;
+            _size = baseType == ENUM ? 1 : baseType == UINT16 ? 2 : 4;
+            _scale = scale;
+            _offset = offset;
+        }
+    }
+
+    // the order of each list is the order values are passed to patch()
+    private static final Target[] RECORD_TARGETS = {
+        new Target(RecordMesg.AltitudeFieldNum, UINT16, 5, 500),
+        new Target(RecordMesg.EnhancedAltitudeFieldNum, UINT32, 5, 500),
+        new Target(RecordMesg.DistanceFieldNum, UINT32, 100, 0),
+        new Target(RecordMesg.PositionLatFieldNum, SINT32, 1, 0),
+        new Target(RecordMesg.PositionLongFieldNum, SINT32, 1, 0),
+        new Target(RecordMesg.SpeedFieldNum, UINT16, 1000, 0),
+        new Target(RecordMesg.EnhancedSpeedFieldNum, UINT32, 1000, 0)
+    };
+    private static final Target[] LAP_TARGETS = {
+        new Target(LapMesg.TotalAscentFieldNum, UINT16, 1, 0),
+        new Target(LapMesg.TotalDescentFieldNum, UINT16, 1, 0),
+        new Target(LapMesg.TotalDistanceFieldNum, UINT32, 100, 0),
+        new Target(LapMesg.AvgSpeedFieldNum, UINT16, 1000, 0),
+        new Target(LapMesg.MaxSpeedFieldNum, UINT16, 1000, 0),
+        new Target(LapMesg.EnhancedAvgSpeedFieldNum, UINT32, 1000, 0),
+        new Target(LapMesg.EnhancedMaxSpeedFieldNum, UINT32, 1000, 0),
+        new Target(LapMesg.TotalElapsedTimeFieldNum, UINT32, 1000, 0),
+        new Target(LapMesg.TotalTimerTimeFieldNum, UINT32, 1000, 0),
+        new Target(LapMesg.SubSportFieldNum, ENUM, 1, 0)
+    };
+    private static final Target[] SESSION_TARGETS = {
+        new Target(SessionMesg.TotalAscentFieldNum, UINT16, 1, 0),
+        new Target(SessionMesg.TotalDescentFieldNum, UINT16, 1, 0),
+        new Target(SessionMesg.TotalDistanceFieldNum, UINT32, 100, 0),
+        new Target(SessionMesg.AvgSpeedFieldNum, UINT16, 1000, 0),
+        new Target(SessionMesg.MaxSpeedFieldNum, UINT16, 1000, 0),
+        new Target(SessionMesg.EnhancedAvgSpeedFieldNum, UINT32, 1000, 0),
+        new Target(SessionMesg.EnhancedMaxSpeedFieldNum, UINT32, 1000, 0),
+        new Target(SessionMesg.TotalElapsedTimeFieldNum, UINT32, 1000, 0),
+        new Target(SessionMesg.TotalTimerTimeFieldNum, UINT32, 1000, 0),
+        new Target(SessionMesg.SubSportFieldNum, ENUM, 1, 0)
+    };
+
+    private static final double VIRTUAL_ACTIVITY = SubSport.VIRTUAL_ACTIVITY.getValue();
+
+    /**
+     * Thrown when a file can't be patched, for the caller to encode it
+     * instead.
+     */
+    static final class NotPatchableException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        NotPatchableException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class Definition {
+        int _num, _size, _fieldsEnd;
+        boolean _bigEndian;
+        int _timestampOffset = -1, _manufacturerOffset = -1;
+        int _heartRateOffset = -1, _cadenceOffset = -1, _powerOffset = -1;
+        // the definition as written, with any added fields
+        byte[] _out;
+        int _outSize;
+        Target[] _targets;
+        // where each target sits in the written message
+        int[] _offsets;
+    }
+
+    private final InputStream _in;
+    private final byte[] _buf;
+    private int _pos, _len;
+    private long _offset;
+    private final Definition[] _definitions;
+
+    private OutputStream _out;
+    private RideTotals _totals;
+    private Runnable _onRecord;
+    private RideWriters _writers;
+    private MergeMetrics.MesgCounter _counter;
+    long _matched, _unmatched, _written;
+    private final double[] _values;
+    private byte[] _mesg, _patched;
+
+    private GarminPatcher(InputStream in) {
+        _in = in;
+        _buf = new byte[64 * 1024];
+        _definitions = new Definition[16];
+        _values = new double[LAP_TARGETS.length];
+        _mesg = new byte[256];
+        _patched = new byte[512];
+    }
+
+    /**
+     * Reads a Garmin file's definitions, skipping its data, to find whether
+     * it can be patched. The patch methods throw for the same reasons, but
+     * only once part of the merge is written.
+     *
+     * @throws NotPatchableException if the file can't be patched
+     */
+    static void check(InputStream in) throws IOException, NotPatchableException {
+        new GarminPatcher(in).walk(null);
+    }
+
+    /**
+     * Patches a Garmin file into a new file.
+     *
+     * @param onRecord called for each Garmin record, matched or not
+     * @param writers given each matched record, or null
+     * @return the patcher, for its matched and unmatched counts
+     * @throws NotPatchableException if the file can't be patched, leaving
+     *         the new file incomplete
+     */
+    static GarminPatcher patch(InputStream in, File out, RideTotals totals, Runnable onRecord, 
+            RideWriters writers, MergeMetrics.MesgCounter counter) throws IOException, NotPatchableException {
+        GarminPatcher patcher = new GarminPatcher(in);
+        patcher._totals = totals;
+        patcher._onRecord = onRecord;
+        patcher._writers = writers;
+        patcher._counter = counter;
+        byte[] header;
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(out), FitInput.BUFFER_SIZE)) {
+            patcher._out = stream;
+            // the data size isn't known until the end
+            stream.write(new byte[HEADER_SIZE]);
+            header = patcher.walk(stream);
+        }
+        finish(out, header);
+        patcher._written = out.length();
+        return patcher;
+    }
+
+    /**
+     * Patches a Garmin file into a stream. The body is held in memory until
+     * the header can be written, and nothing is written if the patch fails.
+     *
+     * @throws NotPatchableException if the file can't be patched
+     */
+    static GarminPatcher patch(InputStream in, OutputStream out, RideTotals totals, Runnable onRecord, 
+            RideWriters writers, MergeMetrics.MesgCounter counter) throws IOException, NotPatchableException {
+        GarminPatcher patcher = new GarminPatcher(in);
+        patcher._totals = totals;
+        patcher._onRecord = onRecord;
+        patcher._writers = writers;
+        patcher._counter = counter;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        patcher._out = body;
+        byte[] header = header(patcher.walk(body), body.size());
+        int crc = crc(0, header, header.length);
+        byte[] bytes = body.toByteArray();
+        crc = crc(crc, bytes, bytes.length);
+        out.write(header);
+        out.write(bytes);
+        out.write(crc);
+        out.write(crc >>> 8);
+        out.flush();
+        patcher._written = header.length + bytes.length + 2;
+        return patcher;
+    }
+
+    /**
+     * Reads the whole file, writing the patched copy, or with no stream
+     * only checking its definitions.
+     *
+     * @return the input header
+     */
+    private byte[] walk(OutputStream out) throws IOException, NotPatchableException {
+        int headerSize = u8();
+        if(headerSize < 12) throw new IOException("Not a FIT file");
+        byte[] header = new byte[headerSize];
+        header[0] = (byte) headerSize;
+        read(header, 1, headerSize - 1);
+        if(header[8] != '.' || header[9] != 'F' || header[10] != 'I' || header[11] != 'T') 
+            throw new IOException("Not a FIT file");
+        long end = _offset + uint(header, 4, 4, false);
+
+        while(_offset < end) {
+            int recordHeader = u8();
+            if((recordHeader & 0x80) != 0) 
+                throw new NotPatchableException("Compressed timestamp headers can't be patched");
+            else if((recordHeader & 0x40) != 0) 
+                define(recordHeader, out);
+            else 
+                data(recordHeader, out);
+        }
+        if(_offset != end) throw new IOException("Message runs past the end of the FIT data");
+        // file crc, checked by the caller
+        skip(2);
+        if(_pos < _len || fill()) throw new NotPatchableException("Chained FIT files can't be patched");
+        return header;
+    }
+
+    private void define(int recordHeader, OutputStream out) throws IOException, NotPatchableException {
+        Definition definition = new Definition();
+        byte[] fixed = new byte[5];
+        read(fixed, 0, 5);
+        definition._bigEndian = fixed[1] == 1;
+        definition._num = (int) uint(fixed, 2, 2, definition._bigEndian);
+        int fields = fixed[4] & 0xFF;
+        byte[] fieldDefs = new byte[fields * 3];
+        read(fieldDefs, 0, fieldDefs.length);
+        byte[] devDefs = new byte[0];
+        int devSize = 0;
+        if((recordHeader & 0x20) != 0) {
+            int devFields = u8();
+            devDefs = new byte[1 + devFields * 3];
+            devDefs[0] = (byte) devFields;
+            read(devDefs, 1, devDefs.length - 1);
+            for(int i = 0; i < devFields; i++) devSize += devDefs[2 + i * 3] & 0xFF;
+        }
+
+        Target[] targets = targets(definition._num);
+        int[] offsets = targets == null ? null : new int[targets.length];
+        if(offsets != null) Arrays.fill(offsets, -1);
+        int size = 0;
+        for(int i = 0; i < fields; i++) {
+            int num = fieldDefs[i * 3] & 0xFF, fieldSize = fieldDefs[i * 3 + 1] & 0xFF;
+            if(num == TIMESTAMP_FIELD && fieldSize == 4) definition._timestampOffset = size;
+            if(num == MANUFACTURER_FIELD && fieldSize == 2) definition._manufacturerOffset = size;
+            if(definition._num == MesgNum.RECORD) {
+                if(num == RecordMesg.HeartRateFieldNum && fieldSize == 1) definition._heartRateOffset = size;
+                if(num == RecordMesg.CadenceFieldNum && fieldSize == 1) definition._cadenceOffset = size;
+                if(num == RecordMesg.PowerFieldNum && fieldSize == 2) definition._powerOffset = size;
+            }
+            for(int t = 0; targets != null && t < targets.length; t++) {
+                if(targets[t]._num != num) continue;
+                if(fieldSize != targets[t]._size) 
+                    throw new NotPatchableException("Field " + num + " has an unexpected size");
+                offsets[t] = size;
+            }
+            size += fieldSize;
+        }
+        definition._fieldsEnd = size;
+        definition._size = size + devSize;
+
+        // fields the message doesn't have go after its own fields
+        int added = 0, addedSize = 0;
+        for(int t = 0; targets != null && t < targets.length; t++) {
+            if(offsets[t] >= 0) continue;
+            offsets[t] = size + addedSize;
+            added++;
+            addedSize += targets[t]._size;
+        }
+        if(fields + added > 255) throw new NotPatchableException("Too many fields to patch");
+        definition._targets = targets;
+        definition._offsets = offsets;
+        definition._outSize = definition._size + addedSize;
+
+        definition._out = new byte[1 + 5 + (fields + added) * 3 + devDefs.length];
+        definition._out[0] = (byte) recordHeader;
+        System.arraycopy(fixed, 0, definition._out, 1, 5);
+        definition._out[5] = (byte) (fields + added);
+        System.arraycopy(fieldDefs, 0, definition._out, 6, fieldDefs.length);
+        int at = 6 + fieldDefs.length;
+        for(int t = 0; targets != null && t < targets.length; t++) {
+            if(offsets[t] < size) continue;
+            definition._out[at++] = (byte) targets[t]._num;
+            definition._out[at++] = (byte) targets[t]._size;
+            definition._out[at++] = (byte) targets[t]._baseType;
+        }
+        System.arraycopy(devDefs, 0, definition._out, at, devDefs.length);
+
+        _definitions[recordHeader & 0x0F] = definition;
+        if(out != null) out.write(definition._out);
+    }
+
+    private static Target[] targets(int num) {
+        switch (num) {
+            case MesgNum.RECORD:
+                return RECORD_TARGETS;
+            case MesgNum.LAP:
+                return LAP_TARGETS;
+            case MesgNum.SESSION:
+                return SESSION_TARGETS;
+            default:
+                return null;
+        }
+    }
+
+    private void data(int recordHeader, OutputStream out) throws IOException {
+        Definition definition = _definitions[recordHeader & 0x0F];
+        if(definition == null) throw new IOException("Data message without a definition at byte " + _offset);
+        if(out == null) {
+            skip(definition._size);
+            return;
+        }
+        if(_mesg.length < definition._size) _mesg = new byte[definition._size];
+        read(_mesg, 0, definition._size);
+        _counter.count(definition._num);
+
+        switch (definition._num) {
+            case MesgNum.RECORD:
+                _onRecord.run();
+                long timestamp = definition._timestampOffset < 0 ? 0xFFFFFFFFL 
+                        : uint(_mesg, definition._timestampOffset, 4, definition._bigEndian);
+                // ignore records that dont match a Zwift timestamp
+                if(timestamp == 0xFFFFFFFFL || !_totals.record((int) timestamp)) {
+                    _unmatched++;
+                    return;
+                }
+                _matched++;
+                _values[0] = _values[1] = _totals.altitude();
+                _values[2] = _totals.distance();
+                _values[3] = _totals.latitude();
+                _values[4] = _totals.longitude();
+                _values[5] = _values[6] = _totals.speed();
+                patch(recordHeader, definition, out);
+                if(_writers != null) 
+                    _writers.record((int) timestamp, _totals.altitude(), _totals.distance(), _totals.latitude(), 
+                            _totals.longitude(), _totals.speed(), field(definition, definition._heartRateOffset, 1), 
+                            field(definition, definition._cadenceOffset, 1), field(definition, definition._powerOffset, 2));
+                break;
+
+            case MesgNum.LAP:
+                int lapTime = _totals.lapTime();
+                double lapDist = _totals.lapDistance();
+                _values[0] = _totals.lapAscent();
+                _values[1] = _totals.lapDescent();
+                _values[2] = lapDist;
+                _values[3] = _values[5] = lapDist / lapTime;
+                _values[4] = _values[6] = _totals.maxLapSpeed();
+                _values[7] = _values[8] = lapTime;
+                _values[9] = VIRTUAL_ACTIVITY;
+                patch(recordHeader, definition, out);
+                _totals.endLap();
+                break;
+
+            case MesgNum.SESSION:
+                int elapsedTime = _totals.elapsedTime();
+                double totDist = _totals.distance();
+                _values[0] = _totals.ascent();
+                _values[1] = _totals.descent();
+                _values[2] = totDist;
+                _values[3] = _values[5] = totDist / elapsedTime;
+                _values[4] = _values[6] = _totals.maxSpeed();
+                _values[7] = _values[8] = elapsedTime;
+                _values[9] = VIRTUAL_ACTIVITY;
+                patch(recordHeader, definition, out);
+                break;
+
+            default:
+                if(definition._num == MesgNum.FILE_ID) {
+                    long man = definition._manufacturerOffset < 0 ? -1 
+                            : uint(_mesg, definition._manufacturerOffset, 2, definition._bigEndian);
+                    if(man != Manufacturer.GARMIN) throw new IOException("Manufacturer does not match Garmin.");
+                }
+                out.write(recordHeader);
+                out.write(_mesg, 0, definition._size);
+                break;
+        }
+    }
+
+    /**
+     * Writes the message with the values for its targets.
+     */
+    private void patch(int recordHeader, Definition definition, OutputStream out) throws IOException {
+        if(_patched.length < definition._outSize) _patched = new byte[definition._outSize];
+        int added = definition._outSize - definition._size;
+        System.arraycopy(_mesg, 0, _patched, 0, definition._fieldsEnd);
+        // developer fields move up past the added fields
+        System.arraycopy(_mesg, definition._fieldsEnd, _patched, definition._fieldsEnd + added, 
+                definition._size - definition._fieldsEnd);
+        Target[] targets = definition._targets;
+        for(int t = 0; t < targets.length; t++) {
+            put(_patched, definition._offsets[t], targets[t], definition._bigEndian, _values[t]);
+        }
+        out.write(recordHeader);
+        out.write(_patched, 0, definition._outSize);
+    }
+
+    /**
+     * Stores a value as the profile does, or the invalid value if it doesn't
+     * fit.
+     */
+    private static void put(byte[] b, int off, Target target, boolean bigEndian, double value) {
+        long raw;
+        double scaled = (value + target._offset) * target._scale;
+        switch (target._baseType) {
+            case ENUM:
+                raw = scaled >= 0 && scaled < 0xFF ? Math.round(scaled) : 0xFF;
+                break;
+            case UINT16:
+                raw = scaled >= 0 && scaled < 0xFFFF - 0.5 ? Math.round(scaled) : 0xFFFF;
+                break;
+            case SINT32:
+                raw = scaled >= Integer.MIN_VALUE + 1 && scaled < Integer.MAX_VALUE - 0.5 
+                        ? Math.round(scaled) : Integer.MAX_VALUE;
+                break;
+            default:
+                raw = scaled >= 0 && scaled < 0xFFFFFFFFL - 0.5 ? Math.round(scaled) : 0xFFFFFFFFL;
+                break;
+        }
+        for(int i = 0; i < target._size; i++) {
+            int shift = 8 * (bigEndian ? target._size - 1 - i : i);
+            b[off + i] = (byte) (raw >>> shift);
+        }
+    }
+
+    /**
+     * Writes the header now the data size is known, then appends the file
+     * CRC.
+     */
+    static void finish(File out, byte[] inHeader) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(out, "rw")) {
+            byte[] header = header(inHeader, file.length() - HEADER_SIZE);
+            file.write(header);
+
+            int crc = crc(0, header, header.length);
+            byte[] buf = new byte[FitInput.BUFFER_SIZE];
+            int n;
+            while((n = file.read(buf)) > 0) crc = crc(crc, buf, n);
+            file.write(crc);
+            file.write(crc >>> 8);
+        }
+    }
+
+    /**
+     * A 14 byte header with the input's protocol and profile versions.
+     */
+    static byte[] header(byte[] inHeader, long dataSize) {
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = HEADER_SIZE;
+        System.arraycopy(inHeader, 1, header, 1, 3);
+        for(int i = 0; i < 4; i++) header[4 + i] = (byte) (dataSize >>> (8 * i));
+        header[8] = '.';
+        header[9] = 'F';
+        header[10] = 'I';
+        header[11] = 'T';
+        int crc = crc(0, header, 12);
+        header[12] = (byte) crc;
+        header[13] = (byte) (crc >>> 8);
+        return header;
+    }
+
+    static int crc(int crc, byte[] b, int len) {
+        for(int i = 0; i < len; i++) crc = CRC.get16(crc, b[i]);
+        return crc;
+    }
+
+    /**
+     * An unsigned field of the current message, or -1 if it's missing or
+     * invalid.
+     */
+    private int field(Definition definition, int offset, int size) {
+        if(offset < 0) return -1;
+        long value = uint(_mesg, offset, size, definition._bigEndian);
+        return value == (1L << size * 8) - 1 ? -1 : (int) value;
+    }
+
+    static long uint(byte[] b, int off, int size, boolean bigEndian) {
+        long value = 0;
+        for(int i = 0; i < size; i++) {
+            int shift = 8 * (bigEndian ? size - 1 - i : i);
+            value |= (long) (b[off + i] & 0xFF) << shift;
+        }
+        return value;
+    }
+
+    private boolean fill() throws IOException {
+        int n = _in.read(_buf, 0, _buf.length);
+        if(n <= 0) return false;
+        _pos = 0;
+        _len = n;
+        return true;
+    }
+
+    private int u8() throws IOException {
+        if(_pos == _len && !fill()) throw new EOFException("FIT file is truncated");
+        _offset++;
+        return _buf[_pos++] & 0xFF;
+    }
+
+    private void read(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        while(off < end) {
+            if(_pos == _len && !fill()) throw new EOFException("FIT file is truncated");
+            int n = Math.min(end - off, _len - _pos);
+            System.arraycopy(_buf, _pos, b, off, n);
+            _pos += n;
+            off += n;
+        }
+        _offset += len;
+    }
+
+    private void skip(int n) throws IOException {
+        while(n > 0) {
+            if(_pos == _len && !fill()) throw new EOFException("FIT file is truncated");
+            int skipped = Math.min(n, _len - _pos);
+            _pos += skipped;
+            _offset += skipped;
+            n -= skipped;
+        }
+    }
+}
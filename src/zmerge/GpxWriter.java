@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes merged records as a GPX 1.1 track, with heart rate and cadence in
+ * Garmin's track point extension and power in the {@code power} element
+ * Strava reads.
+ *
+ * @author Nicholas Rodie
+ */
+public final class GpxWriter implements RideWriter {
+
+    private final Writer _out;
+    private final StringBuilder _point;
+
+    public GpxWriter(Writer out) throws IOException {
+        _out = out;
+        _point = new StringBuilder(256);
+        _out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<gpx version=\"1.1\" creator=\"Zmerge\" xmlns=\"http://www.topografix.com/GPX/1/1\"" 
+                + " xmlns:gpxtpx=\"http://www.garmin.com/xmlschemas/TrackPointExtension/v1\">\n"
+                + " <trk>\n  <type>cycling</type>\n  <trkseg>\n");
+    }
+
+    @Override
+    public void record(int timestamp, double altitude, double distance, int latitude, int longitude, double speed, 
+            int heartRate, int cadence, int power) throws IOException {
+        _point.setLength(0);
+        _point.append("   <trkpt lat=\"");
+        RideWriters.fixed(_point, RideWriters.degrees(latitude), 7).append("\" lon=\"");
+        RideWriters.fixed(_point, RideWriters.degrees(longitude), 7).append("\"><ele>");
+        RideWriters.fixed(_point, altitude, 1).append("</ele><time>").append(RideWriters.time(timestamp)).append("</time>");
+        if(heartRate >= 0 || cadence >= 0 || power >= 0) {
+            _point.append("<extensions>");
+            if(power >= 0) _point.append("<power>").append(power).append("</power>");
+            if(heartRate >= 0 || cadence >= 0) {
+                _point.append("<gpxtpx:TrackPointExtension>");
+                if(heartRate >= 0) _point.append("<gpxtpx:hr>").append(heartRate).append("</gpxtpx:hr>");
+                if(cadence >= 0) _point.append("<gpxtpx:cad>").append(cadence).append("</gpxtpx:cad>");
+                _point.append("</gpxtpx:TrackPointExtension>");
+            }
+            _point.append("</extensions>");
+        }
+        _point.append("</trkpt>\n");
+        _out.append(_point);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        _out.write("  </trkseg>\n </trk>\n</gpx>\n");
+        _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        _out.close();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An {@link InputStream} over a memory mapped file. The file is mapped in
+ * windows so very large files don't need one huge mapping.
+ *
+ * @author Nicholas Rodie
+ */
+public class MappedInputStream extends InputStream {
+
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel _channel;
+    private final long _size;
+    private final long _windowSize;
+    private MappedByteBuffer _window;
+    private long _windowStart;
+    private int _mappings;
+
+    public MappedInputStream(Path path) throws IOException {
+        this(path, WINDOW_SIZE);
+    }
+
+    MappedInputStream(Path path, long windowSize) throws IOException {
+        _channel = FileChannel.open(path, StandardOpenOption.READ);
+        _size = _channel.size();
+        _windowSize = windowSize;
+        _windowStart = 0;
+        try {
+            map(0);
+        }
+        catch (IOException e) {
+            _channel.close();
+            throw e;
+        }
+    }
+
+    private void map(long position) throws IOException {
+        _windowStart = position;
+        _window = _channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(_windowSize, _size - position));
+        _mappings++;
+    }
+
+    /**
+     * Makes sure the current window has bytes left, moving it if needed.
+     *
+     * @return false at the end of the file
+     */
+    private boolean fill() throws IOException {
+        if(_window.hasRemaining()) return true;
+        long next = _windowStart + _window.limit();
+        if(next >= _size) return false;
+        map(next);
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill()) return -1;
+        return _window.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) return 0;
+        if(!fill()) return -1;
+        int n = Math.min(len, _window.remaining());
+        _window.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if(n <= 0) return 0;
+        long position = _windowStart + _window.position();
+        long skipped = Math.min(n, _size - position);
+        if(skipped <= _window.remaining()) _window.position(_window.position() + (int) skipped);
+        else map(position + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, _size - _windowStart - _window.position());
+    }
+
+    /**
+     * Number of mappings made so far, each one is an mmap system call.
+     */
+    public int getMappings() {
+        return _mappings;
+    }
+
+    @Override
+    public void close() throws IOException {
+        _channel.close();
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The Zwift fields used by a merge, kept in a memory mapped temp file
+ * rather than on the heap, so heap use stays flat however long the ride.
+ * <p>
+ * Records are appended while decoding and {@link #seal()} then copies them
+ * into fixed width slots. When the records span up to {@link #MAX_SPAN}
+ * there is one slot per second from the first timestamp, so finding a
+ * record is a single read at an offset worked out from its timestamp.
+ * Longer spans would leave a temp file of mostly empty slots, several GB
+ * where the file system has no sparse files, so the records are sorted
+ * into consecutive slots instead and found by binary search. As with
+ * {@link ZwiftTrack#merge(List)}, when two records share a timestamp the
+ * one from the Zwift file that starts later is kept. Not thread safe.
+ *
+ * @author Nicholas Rodie
+ */
+public final class MappedTrack implements ZwiftSink, Closeable {
+
+    // timestamp, or the rank of its file in a sealed slot, latitude, longitude
+    // and the file it came from, then altitude, distance and speed aligned
+    private static final int SLOT_SIZE = 40;
+    private static final int LATITUDE = 4, LONGITUDE = 8, SEGMENT = 12, ALTITUDE = 16, DISTANCE = 24, SPEED = 32;
+    // the most slots per mapping, 40 MB
+    private static final int WINDOW_SLOTS = 1 << 20;
+    // the first mapping of appended records, 160 KB, each one after is as big as all before it
+    private static final int FIRST_LOG_SLOTS = 1 << 12;
+    /** the most seconds the records can span and still get a slot per second, 6.9 MB of them */
+    static final long MAX_SPAN = 48L * 3600;
+
+    private final FileChannel _channel;
+    // appended records, then one slot per second once sealed
+    private final List<MappedByteBuffer> _log, _slots;
+    // the end of the file, and where the next record goes in the last log mapping
+    private long _end;
+    private int _logOffset;
+    private int[] _segmentStart, _segmentFirst;
+    private int _size, _segments, _records, _first, _last;
+    private long _span;
+    // one slot per second, or else sorted slots
+    private boolean _sealed, _dense;
+
+    /**
+     * @param dir where the temp file goes, null for the default temp folder
+     */
+    public MappedTrack(Path dir) throws IOException {
+        Path file = dir != null 
+                ? Files.createTempFile(dir, ".zmerge-track.", ".tmp") 
+                : Files.createTempFile("zmerge-track.", ".tmp");
+        try {
+            _channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, 
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        _log = new ArrayList<>();
+        _slots = new ArrayList<>();
+        _segmentStart = new int[4];
+        _segmentFirst = new int[4];
+        _first = Integer.MAX_VALUE;
+        _last = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Maps the next slots of the file, growing it to fit.
+     */
+    private MappedByteBuffer map(int slots) {
+        try {
+            MappedByteBuffer window = _channel.map(FileChannel.MapMode.READ_WRITE, _end, (long) slots * SLOT_SIZE);
+            window.order(ByteOrder.nativeOrder());
+            _end += (long) slots * SLOT_SIZE;
+            return window;
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.OUTPUT, "Unable to write Zwift track file.\n" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts a new segment, the next record added sets its start time.
+     */
+    @Override
+    public void startSegment() {
+        if(_segments == _segmentStart.length) {
+            _segmentStart = Arrays.copyOf(_segmentStart, _segments * 2);
+            _segmentFirst = Arrays.copyOf(_segmentFirst, _segments * 2);
+        }
+        _segmentFirst[_segments] = Integer.MAX_VALUE;
+        _segmentStart[_segments++] = Integer.MIN_VALUE;
+    }
+
+    @Override
+    public void add(int timestamp, double altitude, double distance, int latitude, int longitude, double speed) {
+        if(_sealed) throw new IllegalStateException("track is sealed");
+        if(_segments == 0) startSegment();
+        if(_segmentStart[_segments - 1] == Integer.MIN_VALUE) _segmentStart[_segments - 1] = timestamp;
+        MappedByteBuffer log = _log.isEmpty() ? null : _log.get(_log.size() - 1);
+        if(log == null || _logOffset == log.capacity()) {
+            // a short ride only maps what it needs
+            log = map(Math.min(WINDOW_SLOTS, Math.max(FIRST_LOG_SLOTS, _size)));
+            _log.add(log);
+            _logOffset = 0;
+        }
+        write(log, _logOffset, timestamp, _segments - 1, altitude, distance, latitude, longitude, speed);
+        _logOffset += SLOT_SIZE;
+        _segmentFirst[_segments - 1] = Math.min(_segmentFirst[_segments - 1], timestamp);
+        _first = Math.min(_first, timestamp);
+        _last = Math.max(_last, timestamp);
+        _size++;
+    }
+
+    private static void write(MappedByteBuffer buffer, int offset, int timestamp, int segment, double altitude, 
+            double distance, int latitude, int longitude, double speed) {
+        buffer.putInt(offset, timestamp);
+        buffer.putInt(offset + LATITUDE, latitude);
+        buffer.putInt(offset + LONGITUDE, longitude);
+        buffer.putInt(offset + SEGMENT, segment);
+        buffer.putDouble(offset + ALTITUDE, altitude);
+        buffer.putDouble(offset + DISTANCE, distance);
+        buffer.putDouble(offset + SPEED, speed);
+    }
+
+    /**
+     * Copies the records into their slots. The slots follow the appended
+     * records in the temp file. Within {@link #MAX_SPAN} they are mapped to
+     * just cover the seconds from the first record to the last, and seconds
+     * without a record are never written, so on file systems with sparse
+     * files they take no space. Beyond it they are sorted, which briefly
+     * takes 8 bytes of heap a record.
+     */
+    public void seal() {
+        if(_sealed) return;
+        _sealed = true;
+
+        // files ranked by their first timestamp, later files win a shared second
+        Integer[] order = new Integer[_segments];
+        for(int i = 0; i < _segments; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Integer.compare(_segmentFirst[a], _segmentFirst[b]));
+        int[] rank = new int[_segments];
+        for(int i = 0; i < _segments; i++) rank[order[i]] = i + 1;
+
+        // drop segments that never received a record
+        int segments = 0;
+        for(int i = 0; i < _segments; i++) 
+            if(_segmentStart[i] != Integer.MIN_VALUE) _segmentStart[segments++] = _segmentStart[i];
+        _segments = segments;
+        _segmentStart = Arrays.copyOf(_segmentStart, segments);
+        Arrays.sort(_segmentStart);
+
+        if(_size == 0) return;
+        _span = (long) _last - _first + 1;
+        _dense = _span <= MAX_SPAN;
+        if(_dense) fillSlots(rank);
+        else sortSlots(rank);
+        // the mappings go once they are collected
+        _log.clear();
+    }
+
+    /**
+     * Copies each record into the slot of its second.
+     */
+    private void fillSlots(int[] rank) {
+        for(long mapped = 0; mapped < _span; mapped += WINDOW_SLOTS) 
+            _slots.add(map((int) Math.min(WINDOW_SLOTS, _span - mapped)));
+
+        int window = 0, from = 0;
+        for(int i = 0; i < _size; i++, from += SLOT_SIZE) {
+            MappedByteBuffer log = _log.get(window);
+            if(from == log.capacity()) {
+                log = _log.get(++window);
+                from = 0;
+            }
+            long slot = (long) log.getInt(from) - _first;
+            MappedByteBuffer slots = _slots.get((int) (slot / WINDOW_SLOTS));
+            int to = (int) (slot % WINDOW_SLOTS) * SLOT_SIZE;
+            int segment = log.getInt(from + SEGMENT), held = slots.getInt(to);
+            if(held == 0) _records++;
+            else if(held > rank[segment]) continue;
+            write(slots, to, rank[segment], segment, log.getDouble(from + ALTITUDE), log.getDouble(from + DISTANCE), 
+                    log.getInt(from + LATITUDE), log.getInt(from + LONGITUDE), log.getDouble(from + SPEED));
+        }
+    }
+
+    /**
+     * Copies the records into consecutive slots in time order, one per
+     * timestamp, keeping the timestamp in the slot.
+     */
+    private void sortSlots(int[] rank) {
+        // timestamp then index of every record, and where each log mapping starts
+        long[] keys = new long[_size];
+        int[] starts = new int[_log.size()];
+        int window = 0, from = 0;
+        for(int i = 0; i < _size; i++, from += SLOT_SIZE) {
+            if(from == _log.get(window).capacity()) {
+                starts[++window] = i;
+                from = 0;
+            }
+            keys[i] = (long) _log.get(window).getInt(from) << 32 | i;
+        }
+        Arrays.sort(keys);
+        for(long mapped = 0; mapped < _size; mapped += WINDOW_SLOTS) 
+            _slots.add(map((int) Math.min(WINDOW_SLOTS, _size - mapped)));
+
+        for(int i = 0; i < _size; ) {
+            int timestamp = (int) (keys[i] >> 32);
+            MappedByteBuffer log = null;
+            int at = 0, best = 0;
+            for(; i < _size && (int) (keys[i] >> 32) == timestamp; i++) {
+                int record = (int) keys[i], w = Arrays.binarySearch(starts, record);
+                if(w < 0) w = -w - 2;
+                MappedByteBuffer candidate = _log.get(w);
+                int offset = (record - starts[w]) * SLOT_SIZE, segment = candidate.getInt(offset + SEGMENT);
+                if(rank[segment] < best) continue;
+                best = rank[segment];
+                log = candidate;
+                at = offset;
+            }
+            MappedByteBuffer slots = _slots.get(_records / WINDOW_SLOTS);
+            write(slots, (_records % WINDOW_SLOTS) * SLOT_SIZE, timestamp, log.getInt(at + SEGMENT), 
+                    log.getDouble(at + ALTITUDE), log.getDouble(at + DISTANCE), log.getInt(at + LATITUDE), 
+                    log.getInt(at + LONGITUDE), log.getDouble(at + SPEED));
+            _records++;
+        }
+    }
+
+    /**
+     * The timestamp in a sorted slot.
+     */
+    private int timestamp(int index) {
+        return _slots.get(index / WINDOW_SLOTS).getInt((index % WINDOW_SLOTS) * SLOT_SIZE);
+    }
+
+    /**
+     * The sorted slot of a timestamp, or -1.
+     */
+    private int find(int timestamp) {
+        int low = 0, high = _records - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1, found = timestamp(mid);
+            if(found < timestamp) low = mid + 1;
+            else if(found > timestamp) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * The number of records, once sealed.
+     */
+    public int size() {
+        return _records;
+    }
+
+    public int segments() {
+        return _segments;
+    }
+
+    /**
+     * A cursor for reading a sealed track. Any timestamp can be looked up,
+     * in any order.
+     */
+    public ZwiftCursor cursor() {
+        if(!_sealed) throw new IllegalStateException("track is not sealed");
+        return new ZwiftCursor() {
+            MappedByteBuffer _window;
+            int _offset, _timestamp, _index = -1;
+
+            @Override
+            public boolean seek(int timestamp) {
+                long slot = (long) timestamp - _first;
+                if(slot < 0 || slot >= _span) return false;
+                if(!_dense) {
+                    // a merge mostly seeks one record on, so that is tried before searching
+                    int next = _index + 1;
+                    slot = next < _records && timestamp(next) == timestamp ? next : find(timestamp);
+                    if(slot < 0) return false;
+                    _index = (int) slot;
+                }
+                MappedByteBuffer window = _slots.get((int) (slot / WINDOW_SLOTS));
+                int offset = (int) (slot % WINDOW_SLOTS) * SLOT_SIZE;
+                if(_dense && window.getInt(offset) == 0) return false;
+                _window = window;
+                _offset = offset;
+                _timestamp = timestamp;
+                return true;
+            }
+
+            @Override
+            public int segment() {
+                int segment = Arrays.binarySearch(_segmentStart, _timestamp);
+                return segment >= 0 ? segment : Math.max(0, -segment - 2);
+            }
+
+            @Override
+            public double altitude() {
+                return _window.getDouble(_offset + ALTITUDE);
+            }
+
+            @Override
+            public double distance() {
+                return _window.getDouble(_offset + DISTANCE);
+            }
+
+            @Override
+            public int latitude() {
+                return _window.getInt(_offset + LATITUDE);
+            }
+
+            @Override
+            public int longitude() {
+                return _window.getInt(_offset + LONGITUDE);
+            }
+
+            @Override
+            public double speed() {
+                return _window.getDouble(_offset + SPEED);
+            }
+        };
+    }
+
+    /**
+     * Closes and deletes the temp file. The mappings themselves are only
+     * released once collected, which on Windows also delays the delete.
+     */
+    @Override
+    public void close() throws IOException {
+        _log.clear();
+        _slots.clear();
+        _span = 0;
+        _channel.close();
+    }
+}
@@ -0,0 +1,1370 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import com.garmin.fit.BufferEncoder;
+import com.garmin.fit.Decode;
+import com.garmin.fit.FileEncoder;
+import com.garmin.fit.FileIdMesg;
+import com.garmin.fit.Fit;
+import com.garmin.fit.FitRuntimeException;
+import com.garmin.fit.LapMesg;
+import com.garmin.fit.Manufacturer;
+import com.garmin.fit.Mesg;
+import com.garmin.fit.MesgDefinition;
+import com.garmin.fit.MesgDefinitionListener;
+import com.garmin.fit.MesgListener;
+import com.garmin.fit.MesgNum;
+import com.garmin.fit.RecordMesg;
+import com.garmin.fit.SessionMesg;
+import com.garmin.fit.SubSport;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single merge of one Garmin file with one or more Zwift files. All state
+ * belongs to the instance, so separate merges can run on separate threads.
+ *
+ * @author Nicholas Rodie
+ */
+public class Merge {
+
+    /**
+     * What to do when an input file fails its CRC check.
+     */
+    public enum CrcPolicy {
+        /** add a warning and keep the merged file */
+        WARN,
+        /** fail the merge */
+        ABORT
+    };
+
+    /**
+     * How the Zwift records are fed to the Garmin rewrite.
+     */
+    public enum ZwiftMode {
+        /** decode and sort every zwift file before reading the garmin file */
+        LOAD,
+        /** decode the zwift files one by one alongside the garmin file, keeping only a small window */
+        STREAM,
+        /** decode every zwift file on its own thread while the garmin file is rewritten */
+        PIPELINE,
+        /** decode every zwift file into a memory mapped temp file before reading the garmin file */
+        MAPPED
+    };
+
+    /** message numbers the sdk has a profile for, others are dropped from the merge */
+    private static final BitSet KNOWN_MESGS = new BitSet(0x10000);
+    static {
+        for(int num = 0; num < 0x10000; num++) {
+            String name = MesgNum.getStringFromValue(num);
+            if(name != null && !name.isEmpty()) KNOWN_MESGS.set(num);
+        }
+    }
+
+    /**
+     * How the Garmin file is rewritten.
+     */
+    public enum GarminMode {
+        /** decode every message and encode it again */
+        ENCODE,
+        /** copy the file's bytes and overwrite only the merged fields, falling back to ENCODE for files that can't be patched */
+        PATCH
+    };
+
+    /**
+     * How the merged file is laid out.
+     */
+    public enum OutputMode {
+        /** the layout the rewrite produces */
+        STANDARD,
+        /** compressed timestamp headers wherever they fit */
+        COMPRESSED,
+        /** compressed timestamp headers, and no 16 bit altitude and speed fields where enhanced ones are present */
+        PRUNED
+    };
+
+    /**
+     * A merge input, either a file or a stream handed to {@link MergeEngine}.
+     */
+    interface Input {
+
+        /** how the input is named in messages */
+        String name();
+
+        /** size in bytes, -1 if not known */
+        long size();
+
+        InputStream open(FitInput.Mode mode) throws IOException;
+    }
+
+    private static Input fileInput(String path) {
+        return new Input() {
+            @Override
+            public String name() {
+                return path;
+            }
+
+            @Override
+            public long size() {
+                return new File(path).length();
+            }
+
+            @Override
+            public InputStream open(FitInput.Mode mode) throws IOException {
+                return FitInput.open(path, mode);
+            }
+        };
+    }
+
+    private final String _gPath, _mPath;
+    private final List<String> _zPaths;
+    private final Input _garmin;
+    private final List<Input> _zwift;
+    // where a stream merge is written, null when writing the merge file
+    private final OutputStream _output;
+    // a stream merge until it has passed every check
+    private SpoolOutputStream _pending;
+    private final List<String> _warnings;
+    private CrcPolicy _crcPolicy;
+    private FitInput.Mode _inputMode;
+    private ZwiftMode _zwiftMode;
+    private GarminMode _garminMode;
+    private OutputMode _outputMode;
+    private final AtomicLong _bytesRead;
+    private volatile long _bytesTotal, _records;
+    private volatile boolean _cancelled;
+    private File _tempFile;
+    private final MergeMetrics _metrics;
+    private MergeCache _cache;
+    // content hash of each input, known from the cache or worked out as the merge reads it
+    private Map<Input, String> _hashes;
+    // the inputs hashed as the merge reads them, with their attributes before the read
+    private Map<Input, BasicFileAttributes> _unhashed;
+    private Map<Input, MessageDigest> _digests;
+    private final List<String> _exports;
+    private final List<RideWriter> _rideWriters;
+    // every writer, open while the merge runs, null without any
+    private RideWriters _writers;
+
+    public Merge(String garminPath, List<String> zwiftPaths, String mergePath) {
+        this(garminPath, zwiftPaths, mergePath, fileInput(garminPath), fileInputs(zwiftPaths), null);
+    }
+
+    /**
+     * A merge of inputs that aren't files, written to a stream. Nothing is
+     * written to the stream unless the merge succeeds.
+     */
+    Merge(Input garmin, List<Input> zwift, OutputStream output) {
+        this(garmin.name(), names(zwift), null, garmin, zwift, output);
+    }
+
+    private Merge(String garminPath, List<String> zwiftPaths, String mergePath, 
+            Input garmin, List<Input> zwift, OutputStream output) {
+        _gPath = garminPath;
+        _zPaths = new ArrayList<>(zwiftPaths);
+        _mPath = mergePath;
+        _garmin = garmin;
+        _zwift = new ArrayList<>(zwift);
+        _output = output;
+        // zwift files may be decoded on another thread
+        _warnings = Collections.synchronizedList(new ArrayList<>());
+        _crcPolicy = CrcPolicy.WARN;
+        _inputMode = FitInput.Mode.BUFFERED;
+        _zwiftMode = ZwiftMode.PIPELINE;
+        _garminMode = GarminMode.ENCODE;
+        _outputMode = OutputMode.STANDARD;
+        _bytesRead = new AtomicLong();
+        _metrics = new MergeMetrics();
+        _exports = new ArrayList<>();
+        _rideWriters = new ArrayList<>();
+    }
+
+    private static List<Input> fileInputs(List<String> paths) {
+        List<Input> inputs = new ArrayList<>();
+        for(String path : paths) inputs.add(fileInput(path));
+        return inputs;
+    }
+
+    private static List<String> names(List<Input> inputs) {
+        List<String> names = new ArrayList<>();
+        for(Input input : inputs) names.add(input.name());
+        return names;
+    }
+
+    public CrcPolicy getCrcPolicy() {
+        return _crcPolicy;
+    }
+
+    public void setCrcPolicy(CrcPolicy crcPolicy) {
+        _crcPolicy = crcPolicy;
+    }
+
+    public FitInput.Mode getInputMode() {
+        return _inputMode;
+    }
+
+    public void setInputMode(FitInput.Mode inputMode) {
+        _inputMode = inputMode;
+    }
+
+    public GarminMode getGarminMode() {
+        return _garminMode;
+    }
+
+    /**
+     * PATCH is much faster on files full of data the merge doesn't touch,
+     * and keeps messages the SDK has no profile for, which ENCODE drops.
+     */
+    public void setGarminMode(GarminMode garminMode) {
+        _garminMode = garminMode;
+    }
+
+    public MergeCache getCache() {
+        return _cache;
+    }
+
+    /**
+     * Reuses decoded Zwift files and finished merges from the cache. Only
+     * merges written to a file use the cache.
+     */
+    public void setCache(MergeCache cache) {
+        _cache = cache;
+    }
+
+    public OutputMode getOutputMode() {
+        return _outputMode;
+    }
+
+    /**
+     * COMPRESSED and PRUNED make the merged file smaller. They cost a
+     * second pass over the merge, made in memory on its way to the file, so
+     * they hold a copy of the merge on the heap.
+     */
+    public void setOutputMode(OutputMode outputMode) {
+        _outputMode = outputMode;
+    }
+
+    /**
+     * Also writes the merged ride as GPX, TCX or CSV, going by the path's
+     * extension. An export replaces the path only if the merge succeeds.
+     */
+    public void addExport(String path) {
+        if(!RideWriters.isExport(path)) 
+            throw new MergeException("\"" + path + "\"\nExports must be .gpx, .tcx or .csv files.");
+        _exports.add(path);
+    }
+
+    public List<String> getExports() {
+        return Collections.unmodifiableList(_exports);
+    }
+
+    /**
+     * Gives each matched record of the merge to the writer as well. It is
+     * finished if the merge succeeds, and closed either way.
+     */
+    public void addWriter(RideWriter writer) {
+        _rideWriters.add(writer);
+    }
+
+    public ZwiftMode getZwiftMode() {
+        return _zwiftMode;
+    }
+
+    /**
+     * STREAM keeps memory use flat however long the ride, but needs the
+     * Zwift files in ride order. PIPELINE and STREAM both drop Zwift
+     * records that are out of time order within a file.
+     */
+    public void setZwiftMode(ZwiftMode zwiftMode) {
+        _zwiftMode = zwiftMode;
+    }
+
+    public String getGarminPath() {
+        return _gPath;
+    }
+
+    public List<String> getZwiftPaths() {
+        return Collections.unmodifiableList(_zPaths);
+    }
+
+    /**
+     * The merge file, null for a merge written to a stream.
+     */
+    public String getMergePath() {
+        return _mPath;
+    }
+
+    /**
+     * Non fatal problems found while merging, e.g. failed integrity checks.
+     */
+    public List<String> getWarnings() {
+        return Collections.unmodifiableList(_warnings);
+    }
+
+    /**
+     * Timings and counts for this merge, complete once {@link #run()} has
+     * returned or thrown.
+     */
+    public MergeMetrics getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * Bytes read from all inputs so far. Safe to call from any thread while
+     * the merge runs.
+     */
+    public long getBytesRead() {
+        return _bytesRead.get();
+    }
+
+    /**
+     * Total size of all inputs, known once the merge has started.
+     */
+    public long getBytesTotal() {
+        return _bytesTotal;
+    }
+
+    /**
+     * Garmin records processed so far.
+     */
+    public long getRecords() {
+        return _records;
+    }
+
+    /**
+     * Asks a running merge to stop. The merge throws
+     * {@link MergeCancelledException} and leaves the merge file as it was.
+     */
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            runMerge();
+        }
+        catch (RuntimeException e) {
+            _metrics.setError(e.getMessage() == null ? e.toString() : e.getMessage());
+            throw e;
+        }
+        finally {
+            _metrics.setWallNanos(System.nanoTime() - start);
+            MergeStats.get().add(_metrics);
+        }
+    }
+
+    /**
+     * Checks every input file at once without decoding it: that it is a
+     * FIT file from the right manufacturer and that it passes its CRC
+     * check. A failed CRC check is a problem under ABORT and a warning under
+     * WARN, which {@link #run()} doesn't repeat. {@link #run()} would find the
+     * same problems one at a time, this reports them all in one
+     * {@link MergeException}. Only merges of files can be validated.
+     */
+    public void validate() {
+        if(_output != null) throw new IllegalStateException("only merges of files can be validated");
+        if(_zwift.isEmpty()) 
+            throw new MergeException("You must set the file paths.");
+        List<Callable<MergeException>> checks = new ArrayList<>();
+        checks.add(() -> check(_garmin, Manufacturer.GARMIN, "Garmin", MergeException.Reason.GARMIN_INPUT));
+        for(Input zwift : _zwift) 
+            checks.add(() -> check(zwift, Manufacturer.ZWIFT, "Zwift", MergeException.Reason.ZWIFT_INPUT));
+
+        List<MergeException> problems = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(checks.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            for(Future<MergeException> result : pool.invokeAll(checks)) {
+                MergeException problem = result.get();
+                if(problem != null) problems.add(problem);
+            }
+        }
+        catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new MergeException("Unable to check the input files.\n" + e.getCause(), e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MergeCancelledException(e);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        if(problems.isEmpty()) return;
+        if(problems.size() == 1) throw problems.get(0);
+        StringBuilder message = new StringBuilder(problems.size() + " input files have problems.");
+        for(MergeException problem : problems) message.append("\n\n").append(problem.getMessage());
+        throw new MergeException(problems.get(0).getReason(), message.toString(), problems.get(0));
+    }
+
+    /**
+     * Scans one input for {@link #validate()}.
+     *
+     * @return the problem found, or null
+     */
+    private MergeException check(Input input, int manufacturer, String kind, MergeException.Reason reason) {
+        String path = input.name();
+        if(reason == MergeException.Reason.ZWIFT_INPUT && TrackFile.isTrackFile(path)) {
+            try {
+                TrackFile.open(Paths.get(path));
+                return null;
+            }
+            catch (IOException e) {
+                return new MergeException(reason, "\"" + path + "\"\nError reading Zwift track file.\n" + e.getMessage(), e);
+            }
+        }
+        try {
+            validatePath(path);
+        }
+        catch (MergeException e) {
+            return new MergeException(reason, e.getMessage());
+        }
+        // nothing counts towards progress, but a cancel still stops the scan
+        try (CrcInputStream stream = new CrcInputStream(
+                new ProgressInputStream(input.open(_inputMode), new AtomicLong(), () -> _cancelled))) {
+            if(FitScanner.manufacturer(stream) != manufacturer) 
+                return new MergeException(reason, "\"" + path + "\"\nManufacturer does not match " + kind + ".");
+            // the rest of the file only matters to the crc
+            stream.drain();
+            if(stream.isValid()) return null;
+            if(_crcPolicy == CrcPolicy.ABORT) 
+                return new MergeException(MergeException.Reason.INTEGRITY, "\"" + path + "\"\nFIT file integrity check failed.");
+            warn("\"" + path + "\"\nFIT file integrity check failed. Continuing...");
+            return null;
+        }
+        catch (IOException e) {
+            return new MergeException(reason, "\"" + path + "\"\nError reading " + kind + " file.\n" + e.getMessage(), e);
+        }
+    }
+
+    private void runMerge() {
+        if(_output != null) {
+            runStream();
+            return;
+        }
+        if(_zPaths.isEmpty()) 
+            throw new MergeException("You must set the file paths.");
+        if(_mPath.equals(_gPath) || _zPaths.contains(_mPath)) 
+            throw new MergeException("You are trying to overwrite an input file!");
+        validatePath(_gPath);
+        long total = new File(_gPath).length();
+        for(String zPath : _zPaths) {
+            if(!TrackFile.isTrackFile(zPath)) validatePath(zPath);
+            total += new File(zPath).length();
+        }
+        _bytesTotal = total;
+        checkOutStream(_mPath);
+        try {
+            openWriters();
+            String key = _cache != null ? cacheKey() : null;
+            // exports need the records, which a cached merge skips
+            if(key != null && _writers == null && _cache.getMerge(key, _tempFile.toPath(), _warnings)) {
+                _bytesRead.set(total);
+                commit();
+            }
+            else {
+                merge();
+                if(_writers != null) _writers.finish();
+                commit();
+                // the exports follow the merge file, never lead it
+                if(_writers != null) _writers.publish();
+                if(_cache != null) cacheMerge();
+            }
+        }
+        catch (RuntimeException e) {
+            // the merge file itself is untouched until commit
+            _tempFile.delete();
+            if(!_cancelled) throw e;
+            throw e instanceof MergeCancelledException ? e : new MergeCancelledException(e);
+        }
+        finally {
+            closeWriters();
+        }
+    }
+
+    /**
+     * Looks up the hash of each input's contents and returns the cache key
+     * of the merge, or null if an input has changed since the cache last
+     * saw it. Those inputs are hashed as the merge reads them instead.
+     */
+    private String cacheKey() {
+        _hashes = new ConcurrentHashMap<>();
+        _unhashed = new HashMap<>();
+        _digests = new ConcurrentHashMap<>();
+        List<Input> inputs = new ArrayList<>(_zwift);
+        inputs.add(_garmin);
+        for(Input input : inputs) {
+            Path path = Paths.get(input.name());
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            }
+            catch (IOException e) {
+                // the merge reports it
+                return null;
+            }
+            // TrackFile doesn't read through open(), so a track file goes by its path, size and time
+            String hash = TrackFile.isTrackFile(input.name()) ? MergeCache.statKey(path, attrs) : _cache.getHash(path, attrs);
+            if(hash != null) _hashes.put(input, hash);
+            else _unhashed.put(input, attrs);
+        }
+        return mergeKey();
+    }
+
+    /**
+     * The cache key of the merge, or null while the hash of an input is
+     * not known.
+     */
+    private String mergeKey() {
+        List<String> zwift = new ArrayList<>();
+        for(Input input : _zwift) {
+            String hash = _hashes.get(input);
+            if(hash == null) return null;
+            zwift.add(hash);
+        }
+        String garmin = _hashes.get(_garmin);
+        if(garmin == null) return null;
+        return MergeCache.mergeKey(garmin, zwift, _zwiftMode + "," + _garminMode + "," + _outputMode + "," + _crcPolicy);
+    }
+
+    /**
+     * Caches the committed merge, and the hashes of the inputs it read.
+     */
+    private void cacheMerge() {
+        if(_unhashed == null) return;
+        for(Map.Entry<Input, BasicFileAttributes> input : _unhashed.entrySet()) {
+            String hash = readHash(input.getKey());
+            if(hash == null) return;
+            _cache.putHash(Paths.get(input.getKey().name()), input.getValue(), hash);
+        }
+        String key = mergeKey();
+        if(key != null) _cache.putMerge(key, Paths.get(_mPath), _warnings);
+    }
+
+    /**
+     * The hash of an input the merge has read to the end, or null if it
+     * hasn't.
+     */
+    private String readHash(Input input) {
+        String hash = _hashes.get(input);
+        if(hash != null) return hash;
+        MessageDigest digest = _digests.remove(input);
+        if(digest == null) return null;
+        hash = MergeCache.hex(digest.digest());
+        _hashes.put(input, hash);
+        return hash;
+    }
+
+    private void runStream() {
+        if(_zwift.isEmpty()) 
+            throw new MergeException("You must give at least one Zwift input.");
+        long total = _garmin.size();
+        for(Input input : _zwift) total = total < 0 || input.size() < 0 ? -1 : total + input.size();
+        _bytesTotal = Math.max(0, total);
+        // the garmin file's size is a fair guess at the merge's
+        _pending = new SpoolOutputStream(SpoolOutputStream.MEMORY_LIMIT, _garmin.size());
+        try {
+            openWriters();
+            merge();
+            if(_writers != null) _writers.finish();
+            // only now have the CRC checks and the zwift decoders all finished
+            deliver();
+            if(_writers != null) _writers.publish();
+        }
+        catch (RuntimeException e) {
+            if(!_cancelled) throw e;
+            throw e instanceof MergeCancelledException ? e : new MergeCancelledException(e);
+        }
+        finally {
+            try {
+                _pending.close();
+            }
+            catch (IOException e) {
+                // only the spool file is left behind
+            }
+            _pending = null;
+            closeWriters();
+        }
+    }
+
+    private void deliver() {
+        try {
+            _pending.writeTo(_output);
+            _output.flush();
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.OUTPUT, "Unable to write merge.\n" + e.getMessage(), e);
+        }
+    }
+
+    private void openWriters() {
+        if(_exports.isEmpty() && _rideWriters.isEmpty()) return;
+        _writers = new RideWriters(_rideWriters);
+        for(String path : _exports) {
+            try {
+                _writers.export(Paths.get(path));
+            }
+            catch (IOException e) {
+                throw new MergeException(MergeException.Reason.OUTPUT, "\"" + path + "\"\nUnable to write export.\n" + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void closeWriters() {
+        if(_writers == null) return;
+        _writers.close();
+        _writers = null;
+    }
+
+    private void merge() {
+        // a lone track file is read in place a block at a time, whatever the mode
+        if(_output == null && _zwift.size() == 1 && TrackFile.isTrackFile(_zwift.get(0).name())) {
+            rewriteGarmin(trackCursor(_zwift.get(0)));
+            return;
+        }
+        switch (_zwiftMode) {
+            case LOAD:
+                rewriteGarmin(getZwiftTrack().cursor());
+                break;
+            case STREAM:
+                ZwiftStream stream = new ZwiftStream(this::getZwiftData).start();
+                try {
+                    rewriteGarmin(stream);
+                    stream.finish();
+                }
+                finally {
+                    stream.close();
+                }
+                break;
+            case PIPELINE:
+                pipeline();
+                break;
+            case MAPPED:
+                mapped();
+                break;
+        }
+    }
+
+    /**
+     * Decodes the zwift files off the heap, next to the merge file when
+     * there is one.
+     */
+    private void mapped() {
+        Path dir = _tempFile != null ? _tempFile.getAbsoluteFile().getParentFile().toPath() : null;
+        try (MappedTrack track = new MappedTrack(dir)) {
+            for(Input zwift : _zwift) decodeZwift(zwift, track);
+            track.seal();
+            rewriteGarmin(track.cursor());
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.OUTPUT, "Unable to write Zwift track file.\n" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Rewrites the garmin file while the zwift files are still decoding.
+     */
+    private void pipeline() {
+        ZwiftPipeline pipeline = new ZwiftPipeline();
+        ExecutorService pool = Executors.newFixedThreadPool(_zwift.size());
+        try {
+            for(Input zwift : _zwift) {
+                ZwiftPipeline.Part part = pipeline.newPart();
+                pool.execute(() -> {
+                    RuntimeException error = null;
+                    try {
+                        decodeZwift(zwift, part);
+                    }
+                    catch (RuntimeException e) {
+                        error = e;
+                    }
+                    finally {
+                        part.done(error);
+                    }
+                });
+            }
+            rewriteGarmin(pipeline);
+            // the rest of each zwift file still has to pass its CRC check
+            pipeline.finish();
+        }
+        finally {
+            pipeline.close();
+            pool.shutdownNow();
+        }
+    }
+
+    private CrcInputStream open(Input input) throws IOException {
+        InputStream in = new ProgressInputStream(input.open(_inputMode), _bytesRead, () -> _cancelled);
+        // hashed for the cache in the same read, the crc check reads it to the end
+        if(_unhashed != null && _unhashed.containsKey(input)) {
+            MessageDigest digest = MergeCache.sha256();
+            _digests.put(input, digest);
+            in = new DigestInputStream(in, digest);
+        }
+        return new CrcInputStream(in);
+    }
+
+    static void validatePath(String path) {
+        if(path.isEmpty()) 
+            throw new MergeException("You must set the file paths.");
+        else if(!path.toLowerCase().endsWith(".fit")) 
+            throw new MergeException("\"" + path + "\"\nFilenames must end with .fit extension.");
+    }
+
+    /**
+     * Checks the CRC of an input once the merge has decoded it.
+     *
+     * @return false if the check failed and the policy is to warn
+     */
+    private boolean checkCrc(CrcInputStream stream, String path) throws IOException {
+        long start = System.nanoTime(), allocated = MergeMetrics.allocated(), count = stream.getCount();
+        stream.drain();
+        _metrics.add(MergeMetrics.Phase.INTEGRITY_CHECK, start, stream.getCount() - count, allocated);
+        if(!stream.isValid()) crcFailed(path);
+        return stream.isValid();
+    } 
+
+    private void crcFailed(String path) {
+        if(_crcPolicy == CrcPolicy.ABORT) 
+            throw new MergeException(MergeException.Reason.INTEGRITY, "\"" + path + "\"\nFIT file integrity check failed.");
+        warn("\"" + path + "\"\nFIT file integrity check failed. Continuing...");
+    }
+
+    /**
+     * Adds a warning once, as {@link #validate()} may already have given it.
+     */
+    private void warn(String warning) {
+        synchronized (_warnings) {
+            if(!_warnings.contains(warning)) _warnings.add(warning);
+        }
+    }
+    
+    /**
+     * Creates the temp file the merge is written to, next to the merge file
+     * so that it can be renamed over it.
+     */
+    private void checkOutStream(String path) {        
+        validatePath(path);
+        File file = new File(path).getAbsoluteFile();
+        try {            
+            _tempFile = File.createTempFile("." + file.getName() + ".", ".tmp", file.getParentFile());
+        }
+        catch (IOException | SecurityException e) {
+            throw new MergeException(MergeException.Reason.OUTPUT, "\"" + path + "\"\nUnable to write file.\n" + e.getMessage(), e);
+        }			
+    }
+
+    /**
+     * Moves the finished temp file over the merge file, so readers see either
+     * the old file or the complete new one.
+     */
+    private void commit() {
+        Path temp = _tempFile.toPath();
+        Path target = Paths.get(_mPath);
+        long start = System.nanoTime(), allocated = MergeMetrics.allocated();
+        try {
+            _metrics.setBytesWritten(_tempFile.length());
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            _metrics.add(MergeMetrics.Phase.COMMIT, start, 0, allocated);
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.OUTPUT, "\"" + _mPath + "\"\nUnable to write file.\n" + e.getMessage(), e);
+        }
+    }
+
+    private void decodeZwift(Input zwift, ZwiftSink sink) {        
+        if(_output == null && TrackFile.isTrackFile(zwift.name())) {
+            readTrackFile(zwift, sink);
+            return;
+        }
+        String hash = _hashes != null ? _hashes.get(zwift) : null;
+        ZwiftTrack copy = null;
+        if(hash != null) {
+            MergeCache.Track cached = _cache.getTrack(hash);
+            if(cached != null) {
+                replay(cached._track, sink);
+                _bytesRead.addAndGet(Math.max(0, zwift.size()));
+                if(!cached._crcValid) crcFailed(zwift.name());
+                return;
+            }
+        }
+        if(_hashes != null) {
+            // a copy would defeat the point of streaming or mapping
+            if(sink instanceof ZwiftTrack) copy = (ZwiftTrack) sink;
+            else if(_zwiftMode != ZwiftMode.STREAM && _zwiftMode != ZwiftMode.MAPPED) copy = new ZwiftTrack();
+        }
+        ZwiftSink out = copy != null && copy != sink ? tee(sink, copy) : sink;
+        MergeMetrics.MesgCounter counter = new MergeMetrics.MesgCounter();
+        class Listener implements MesgListener {  
+            
+            @Override
+            public void onMesg(Mesg mesg) { 
+
+                int type = mesg.getNum(); 
+                counter.count(type);
+                switch (type) {
+                    
+                    case MesgNum.RECORD:
+                    
+                        // make sure not to read any records that don't have required data
+                        Double altitude = mesg.getFieldDoubleValue(RecordMesg.AltitudeFieldNum);
+                        if(altitude == null) return;
+                        Double distance = mesg.getFieldDoubleValue(RecordMesg.DistanceFieldNum);
+                        if(distance == null) return;
+                        Integer latitude = mesg.getFieldIntegerValue(RecordMesg.PositionLatFieldNum);
+                        if(latitude == null) return;
+                        Integer longitude = mesg.getFieldIntegerValue(RecordMesg.PositionLongFieldNum);
+                        if(longitude == null) return;
+                        Double speed = mesg.getFieldDoubleValue(RecordMesg.SpeedFieldNum);
+                        if(speed == null) return;
+
+                        // save selected fields for each timestamp
+                        Integer timestamp = mesg.getFieldIntegerValue(RecordMesg.TimestampFieldNum);
+                        if(timestamp == null) return;
+                        out.add(timestamp, altitude, distance, latitude, longitude, speed);
+                        break;
+                    
+                    case MesgNum.FILE_ID:
+
+                        Integer man = mesg.getFieldIntegerValue(FileIdMesg.ManufacturerFieldNum);
+                        if(man == null || man != Manufacturer.ZWIFT)
+                            throw new FitRuntimeException("Manufacturer does not match Zwift."); 
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+        }
+
+        // each zwift file is a new segment, used to join the files later
+        out.startSegment();
+        try (CrcInputStream stream = open(zwift)) {
+            long start = System.nanoTime(), allocated = MergeMetrics.allocated();
+            Decode decode = new Decode();
+            decode.addListener((MesgListener) new Listener()); 
+            decode.read(stream);
+            _metrics.add(MergeMetrics.Phase.ZWIFT_DECODE, start, stream.getCount(), allocated);
+            _metrics.addMesgs(counter, false);
+            boolean valid = checkCrc(stream, zwift.name());
+            String read = copy != null ? readHash(zwift) : null;
+            if(read != null) _cache.putTrack(read, copy, valid);
+        } 
+        catch (FitRuntimeException | IOException e) {
+            throw new MergeException(MergeException.Reason.ZWIFT_INPUT, 
+                    "\"" + zwift.name() + "\"\nError reading Zwift file.\n" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads a track file written by {@link TrackFile} in place of a Zwift
+     * file.
+     */
+    private void readTrackFile(Input zwift, ZwiftSink sink) {
+        long start = System.nanoTime(), allocated = MergeMetrics.allocated(), size = Math.max(0, zwift.size());
+        try {
+            replay(TrackFile.open(Paths.get(zwift.name())).toTrack(), sink);
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.ZWIFT_INPUT, 
+                    "\"" + zwift.name() + "\"\nError reading Zwift track file.\n" + e.getMessage(), e);
+        }
+        _bytesRead.addAndGet(size);
+        _metrics.add(MergeMetrics.Phase.ZWIFT_DECODE, start, size, allocated);
+    }
+
+    /**
+     * A cursor over a track file that decodes only the blocks the Garmin
+     * records seek into.
+     */
+    private ZwiftCursor trackCursor(Input zwift) {
+        long start = System.nanoTime(), allocated = MergeMetrics.allocated(), size = Math.max(0, zwift.size());
+        ZwiftCursor cursor;
+        try {
+            cursor = TrackFile.open(Paths.get(zwift.name())).cursor();
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.ZWIFT_INPUT, 
+                    "\"" + zwift.name() + "\"\nError reading Zwift track file.\n" + e.getMessage(), e);
+        }
+        _bytesRead.addAndGet(size);
+        _metrics.add(MergeMetrics.Phase.ZWIFT_DECODE, start, size, allocated);
+        return new ZwiftCursor() {
+            @Override
+            public boolean seek(int timestamp) {
+                try {
+                    return cursor.seek(timestamp);
+                }
+                catch (IllegalStateException e) {
+                    throw new MergeException(MergeException.Reason.ZWIFT_INPUT, 
+                            "\"" + zwift.name() + "\"\nError reading Zwift track file.\n" + e.getMessage(), e);
+                }
+            }
+
+            @Override
+            public int segment() {
+                return cursor.segment();
+            }
+
+            @Override
+            public double altitude() {
+                return cursor.altitude();
+            }
+
+            @Override
+            public double distance() {
+                return cursor.distance();
+            }
+
+            @Override
+            public int latitude() {
+                return cursor.latitude();
+            }
+
+            @Override
+            public int longitude() {
+                return cursor.longitude();
+            }
+
+            @Override
+            public double speed() {
+                return cursor.speed();
+            }
+        };
+    }
+
+    private static void replay(ZwiftTrack track, ZwiftSink sink) {
+        sink.startSegment();
+        for(int i = 0; i < track.size(); i++) 
+            sink.add(track.timestamp(i), track.altitude(i), track.distance(i), 
+                    track.latitude(i), track.longitude(i), track.speed(i));
+    }
+
+    private static ZwiftSink tee(ZwiftSink sink, ZwiftTrack copy) {
+        return new ZwiftSink() {
+            @Override
+            public void startSegment() {
+                sink.startSegment();
+            }
+
+            @Override
+            public void add(int timestamp, double altitude, double distance, int latitude, int longitude, double speed) {
+                sink.add(timestamp, altitude, distance, latitude, longitude, speed);
+                copy.add(timestamp, altitude, distance, latitude, longitude, speed);
+            }
+        };
+    }
+
+    /**
+     * Decodes one Zwift file on its own, as a merge would, e.g. to write a
+     * {@link TrackFile} from it.
+     *
+     * @param warnings gets any warnings, such as a failed CRC check under
+     *                 {@link CrcPolicy#WARN}
+     */
+    static ZwiftTrack decodeZwiftTrack(String path, CrcPolicy crcPolicy, List<String> warnings) {
+        Input zwift = fileInput(path);
+        Merge decode = new Merge(null, Collections.singletonList(path), null, null, Collections.singletonList(zwift), null);
+        decode.setCrcPolicy(crcPolicy);
+        ZwiftTrack track = new ZwiftTrack();
+        try {
+            decode.decodeZwift(zwift, track);
+        }
+        finally {
+            warnings.addAll(decode._warnings);
+        }
+        track.seal();
+        return track;
+    }
+
+    /**
+     * Decodes the zwift files one after another, in the order given.
+     */
+    private void getZwiftData(ZwiftSink sink) {
+        for(Input zwift : _zwift) decodeZwift(zwift, sink);
+    }
+
+    /**
+     * Decodes each zwift file on its own thread and merges them into one
+     * track, with the segments in ride order.
+     */
+    ZwiftTrack getZwiftTrack() {
+        List<ZwiftTrack> tracks = new ArrayList<>();
+        if(_zwift.size() == 1) {
+            ZwiftTrack track = new ZwiftTrack();
+            decodeZwift(_zwift.get(0), track);
+            tracks.add(track);
+        }
+        else {
+            ExecutorService pool = Executors.newFixedThreadPool(
+                    Math.min(_zwift.size(), Runtime.getRuntime().availableProcessors()));
+            try {
+                List<Future<ZwiftTrack>> results = new ArrayList<>();
+                for(Input zwift : _zwift) {
+                    results.add(pool.submit(() -> {
+                        ZwiftTrack track = new ZwiftTrack();
+                        decodeZwift(zwift, track);
+                        return track;
+                    }));
+                }
+                for(Future<ZwiftTrack> result : results) tracks.add(result.get());
+            }
+            catch (ExecutionException e) {
+                if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new MergeException(MergeException.Reason.ZWIFT_INPUT, "Error reading Zwift file.\n" + e.getCause(), e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MergeCancelledException(e);
+            }
+            finally {
+                pool.shutdownNow();
+            }
+        }
+        for(ZwiftTrack track : tracks) track.seal();
+        return ZwiftTrack.merge(tracks);
+    }
+
+
+    
+    private void rewriteGarmin(ZwiftCursor zwift) {
+        if(_output != null) createNewGarminFile(zwift, null, _pending);
+        else createNewGarminFile(zwift, _tempFile, null);
+    }
+
+    void createNewGarminFile(ZwiftCursor zwift, File out) {
+        createNewGarminFile(zwift, out, null);
+    }
+
+    void createNewGarminFile(ZwiftCursor zwift, OutputStream out) {
+        createNewGarminFile(zwift, null, out);
+    }
+
+    /**
+     * Writes the merge to the file, or else the stream. A compacted merge
+     * is rewritten into memory and compacted on its way out, so the file is
+     * still only written once.
+     */
+    private void createNewGarminFile(ZwiftCursor zwift, File file, OutputStream stream) {
+        if(_outputMode == OutputMode.STANDARD) {
+            rewriteGarminFile(zwift, file, stream);
+            return;
+        }
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        rewriteGarminFile(zwift, null, merged);
+        compact(merged.toByteArray(), file, stream);
+    }
+
+    private void rewriteGarminFile(ZwiftCursor zwift, File file, OutputStream stream) {
+        if(_garminMode == GarminMode.PATCH && isPatchable()) patchGarminFile(zwift, file, stream);
+        else encodeGarminFile(zwift, file, stream);
+    }
+
+    /**
+     * Reads the definitions of the garmin file to find whether it can be
+     * patched, before any zwift record is used. Its time counts towards the
+     * rewrite, its bytes don't.
+     */
+    private boolean isPatchable() {
+        long start = System.nanoTime(), allocated = MergeMetrics.allocated();
+        // nothing counts towards progress, but a cancel still stops the scan
+        try (InputStream in = new ProgressInputStream(_garmin.open(_inputMode), new AtomicLong(), () -> _cancelled)) {
+            GarminPatcher.check(in);
+            return true;
+        }
+        catch (GarminPatcher.NotPatchableException e) {
+            // the encoder reads it instead
+            return false;
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.GARMIN_INPUT, "Error reading Garmin file.\n" + e.getMessage(), e);
+        }
+        finally {
+            _metrics.add(MergeMetrics.Phase.GARMIN_REWRITE, start, 0, allocated);
+        }
+    }
+
+    private void compact(byte[] merged, File file, OutputStream out) {
+        long start = System.nanoTime(), allocated = MergeMetrics.allocated();
+        boolean prune = _outputMode == OutputMode.PRUNED;
+        try {
+            if(file != null) {
+                FitCompactor.compact(new ByteArrayInputStream(merged), file, prune);
+            }
+            else {
+                FitCompactor compactor = FitCompactor.compact(new ByteArrayInputStream(merged), out, prune);
+                _metrics.setBytesWritten(compactor._written);
+            }
+            _metrics.add(MergeMetrics.Phase.COMPACT, start, merged.length, allocated);
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.OUTPUT, "Unable to write merge.\n" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Patches the garmin file in the one read, once {@link #isPatchable()}
+     * has found it can be.
+     */
+    private void patchGarminFile(ZwiftCursor zwift, File file, OutputStream out) {
+        MergeMetrics.MesgCounter counter = new MergeMetrics.MesgCounter();
+        try (CrcInputStream stream = open(_garmin)) {
+            long start = System.nanoTime(), allocated = MergeMetrics.allocated();
+            GarminPatcher patcher;
+            try {
+                patcher = file != null 
+                        ? GarminPatcher.patch(stream, file, new RideTotals(zwift), () -> _records++, _writers, counter)
+                        : GarminPatcher.patch(stream, out, new RideTotals(zwift), () -> _records++, _writers, counter);
+            }
+            catch (GarminPatcher.NotPatchableException e) {
+                // only if the file changed since it was checked
+                throw new MergeException(MergeException.Reason.GARMIN_INPUT, 
+                        "Error reading Garmin file.\n" + e.getMessage(), e);
+            }
+            if(file == null) _metrics.setBytesWritten(patcher._written);
+            _metrics.add(MergeMetrics.Phase.GARMIN_REWRITE, start, stream.getCount(), allocated);
+            _metrics.addMesgs(counter, true);
+            _metrics.addRecords(patcher._matched, patcher._unmatched);
+            checkCrc(stream, _gPath);
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.GARMIN_INPUT, "Error reading Garmin file.\n" + e.getMessage(), e);
+        }
+    }
+
+    private void encodeGarminFile(ZwiftCursor zwift, File file, OutputStream out) {
+        class Listener implements MesgListener, MesgDefinitionListener {
+            final private int VIRTUAL_ACTIVITY = SubSport.VIRTUAL_ACTIVITY.getValue();
+            // one or the other
+            FileEncoder _encode;
+            BufferEncoder _buffer;
+            final RideTotals _totals = new RideTotals(zwift);
+            long _matched, _unmatched;
+            final MergeMetrics.MesgCounter _counter = new MergeMetrics.MesgCounter();
+
+            public Listener() {
+                if(file != null) _encode = new FileEncoder(file, Fit.ProtocolVersion.V2_0);
+                else _buffer = new BufferEncoder(Fit.ProtocolVersion.V2_0);
+            }
+
+            @Override
+            public void onMesg(Mesg mesg) { 
+                
+                int type = mesg.getNum(); 
+                _counter.count(type);
+                if(KNOWN_MESGS.get(type)) {
+                    
+                    switch (type) {
+                        
+                        case MesgNum.RECORD:                            
+                            
+                            _records++;
+                            Integer timestamp = mesg.getFieldIntegerValue(RecordMesg.TimestampFieldNum);
+                            
+                            // ignore records that dont match a Zwift timestamp
+                            if(timestamp == null || !_totals.record(timestamp)) {
+                                _unmatched++;
+                                return;
+                            }
+                            _matched++;
+                            
+                            // update the selected Garmin fields, the sdk takes boxed values
+                            // so box each value once for both fields
+                            // elevation
+                            Double boxed = _totals.altitude();
+                            mesg.setFieldValue(RecordMesg.AltitudeFieldNum, boxed);
+                            mesg.setFieldValue(RecordMesg.EnhancedAltitudeFieldNum, boxed);
+                            // distance
+                            mesg.setFieldValue(RecordMesg.DistanceFieldNum, _totals.distance());
+                            // location
+                            mesg.setFieldValue(RecordMesg.PositionLatFieldNum, _totals.latitude());
+                            mesg.setFieldValue(RecordMesg.PositionLongFieldNum, _totals.longitude());
+                            // speed
+                            boxed = _totals.speed();
+                            mesg.setFieldValue(RecordMesg.SpeedFieldNum, boxed);
+                            mesg.setFieldValue(RecordMesg.EnhancedSpeedFieldNum, boxed);
+                            // exports
+                            if(_writers != null) 
+                                _writers.record(timestamp, _totals.altitude(), _totals.distance(), _totals.latitude(), 
+                                        _totals.longitude(), _totals.speed(), intValue(mesg, RecordMesg.HeartRateFieldNum), 
+                                        intValue(mesg, RecordMesg.CadenceFieldNum), intValue(mesg, RecordMesg.PowerFieldNum));
+                            break;
+                            
+                        case MesgNum.LAP:
+                            
+                            // calculate lap values
+                            int lapTime = _totals.lapTime();
+                            double lapDist = _totals.lapDistance();
+                            
+                            // update the selected Garmin fields
+                            // elevation
+                            mesg.setFieldValue(LapMesg.TotalAscentFieldNum, _totals.lapAscent());
+                            mesg.setFieldValue(LapMesg.TotalDescentFieldNum, _totals.lapDescent());
+                            // distance
+                            mesg.setFieldValue(LapMesg.TotalDistanceFieldNum, lapDist);
+                            // speed
+                            mesg.setFieldValue(LapMesg.AvgSpeedFieldNum, lapDist / lapTime);
+                            mesg.setFieldValue(LapMesg.MaxSpeedFieldNum, _totals.maxLapSpeed());
+                            mesg.setFieldValue(LapMesg.EnhancedAvgSpeedFieldNum, lapDist / lapTime);
+                            mesg.setFieldValue(LapMesg.EnhancedMaxSpeedFieldNum, _totals.maxLapSpeed());                            
+                            // time
+                            mesg.setFieldValue(LapMesg.TotalElapsedTimeFieldNum, lapTime);
+                            mesg.setFieldValue(LapMesg.TotalTimerTimeFieldNum, lapTime);
+                            // set virtual
+                            mesg.setFieldValue(LapMesg.SubSportFieldNum, VIRTUAL_ACTIVITY);
+                            
+                            _totals.endLap();
+                            break;
+                            
+                        case MesgNum.SESSION:
+                            
+                            int elapsedTime = _totals.elapsedTime();
+                            double totDist = _totals.distance();
+                            // update the selected Garmin fields
+                            // elevation
+                            mesg.setFieldValue(SessionMesg.TotalAscentFieldNum, _totals.ascent());
+                            mesg.setFieldValue(SessionMesg.TotalDescentFieldNum, _totals.descent());
+                            // speed
+                            mesg.setFieldValue(SessionMesg.AvgSpeedFieldNum, totDist / elapsedTime);
+                            mesg.setFieldValue(SessionMesg.MaxSpeedFieldNum, _totals.maxSpeed());
+                            mesg.setFieldValue(SessionMesg.EnhancedAvgSpeedFieldNum, totDist / elapsedTime);
+                            mesg.setFieldValue(SessionMesg.EnhancedMaxSpeedFieldNum, _totals.maxSpeed());
+                            // distance
+                            mesg.setFieldValue(SessionMesg.TotalDistanceFieldNum, totDist);
+                            // time
+                            mesg.setFieldValue(SessionMesg.TotalElapsedTimeFieldNum, elapsedTime);
+                            mesg.setFieldValue(SessionMesg.TotalTimerTimeFieldNum, elapsedTime);
+                            //set virtual
+                            mesg.setFieldValue(SessionMesg.SubSportFieldNum, VIRTUAL_ACTIVITY);
+                            break;
+                            
+                        case MesgNum.FILE_ID:
+                            
+                            Integer man = mesg.getFieldIntegerValue(FileIdMesg.ManufacturerFieldNum);
+                            if(man == null || man != Manufacturer.GARMIN) 
+                                throw new FitRuntimeException("Manufacturer does not match Garmin.");
+                            break;
+                            
+                        default:
+                            break;                     
+                    }
+                    if(_encode != null) _encode.write(mesg);
+                    else _buffer.write(mesg);
+                }
+            }
+
+            @Override
+            public void onMesgDefinition(MesgDefinition mesg) {
+                if(!KNOWN_MESGS.get(mesg.getNum())) return;
+                if(_encode != null) _encode.write(mesg);
+                else _buffer.write(mesg);
+            }
+
+            private void close() {
+                if(_encode != null) _encode.close();
+            }
+        }
+
+        Listener listener = new Listener();
+            
+        try (CrcInputStream stream = open(_garmin)) {
+            long start = System.nanoTime(), allocated = MergeMetrics.allocated();
+            Decode decode = new Decode();
+            decode.addListener((MesgListener) listener);
+            decode.addListener((MesgDefinitionListener) listener);    
+            try {
+                decode.read(stream);
+            }
+            finally {
+                listener.close();              
+            }
+            if(listener._buffer != null) write(listener._buffer.close(), out);
+            _metrics.add(MergeMetrics.Phase.GARMIN_REWRITE, start, stream.getCount(), allocated);
+            _metrics.addMesgs(listener._counter, true);
+            _metrics.addRecords(listener._matched, listener._unmatched);
+            checkCrc(stream, _gPath);
+        } 
+        catch (FitRuntimeException | IOException e) {     
+            throw new MergeException(MergeException.Reason.GARMIN_INPUT, "Error reading Garmin file.\n" + e.getMessage(), e);
+        }
+    }
+
+    private static int intValue(Mesg mesg, int num) {
+        Integer value = mesg.getFieldIntegerValue(num);
+        return value == null ? -1 : value;
+    }
+
+    private void write(byte[] merged, OutputStream out) {
+        try {
+            out.write(merged);
+            out.flush();
+            _metrics.setBytesWritten(merged.length);
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.OUTPUT, "Unable to write merge.\n" + e.getMessage(), e);
+        }
+    }
+}
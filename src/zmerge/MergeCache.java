@@ -0,0 +1,351 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A disk cache of decoded Zwift tracks and finished merges, keyed by the
+ * SHA-256 of the input files' contents. The least recently used entries are
+ * evicted once the cache grows past its size limit.
+ * <p>
+ * A file's hash is worked out while a merge reads it, and recorded under
+ * its path, size and modified time, so a file that hasn't changed since is
+ * looked up without being read.
+ * <p>
+ * Entries are written to a temp file and renamed into place, and unreadable
+ * entries count as misses, so a cache shared by several processes can at
+ * worst lose an entry.
+ *
+ * @author Nicholas Rodie
+ */
+public final class MergeCache {
+
+    private static final int TRACK_MAGIC = 0x5A54524B, MERGE_MAGIC = 0x5A4D5247, HASH_MAGIC = 0x5A485348;
+    private static final int VERSION = 2;
+    private static final String TRACK = ".track", MERGE = ".merge", HASH = ".hash";
+    /** size limit used by the command line, in MiB */
+    static final long DEFAULT_SIZE_MB = 1024;
+
+    private final Path _dir;
+    private final long _maxBytes;
+    // file name to size, least recently used first
+    private final LinkedHashMap<String, Long> _entries;
+    private long _bytes;
+
+    /**
+     * A cached decode of one Zwift file, stored in the {@link TrackFile}
+     * format.
+     */
+    static final class Track {
+        final ZwiftTrack _track;
+        final boolean _crcValid;
+
+        Track(ZwiftTrack track, boolean crcValid) {
+            _track = track;
+            _crcValid = crcValid;
+        }
+    }
+
+    public MergeCache(Path dir, long maxBytes) throws IOException {
+        _dir = dir;
+        _maxBytes = maxBytes;
+        _entries = new LinkedHashMap<>(16, 0.75f, true);
+        Files.createDirectories(dir);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for(Path path : stream) {
+                String name = path.getFileName().toString();
+                if(name.endsWith(TRACK) || name.endsWith(MERGE) || name.endsWith(HASH)) files.add(path);
+            }
+        }
+        List<Object[]> found = new ArrayList<>();
+        for(Path path : files) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                found.add(new Object[] {path.getFileName().toString(), attrs.size(), attrs.lastModifiedTime().toMillis()});
+            }
+            catch (NoSuchFileException e) {
+                // evicted by another process
+            }
+        }
+        // a hit touches the file, so modified time is last use
+        found.sort((a, b) -> Long.compare((Long) a[2], (Long) b[2]));
+        for(Object[] entry : found) {
+            _entries.put((String) entry[0], (Long) entry[1]);
+            _bytes += (Long) entry[1];
+        }
+        evict();
+    }
+
+    /**
+     * A file's path, size and modified time, hashed. Stands in for the
+     * hash of its contents until they are read.
+     */
+    static String statKey(Path file, BasicFileAttributes attrs) {
+        String stat = file.toAbsolutePath() + "|" + attrs.size() + "|" + attrs.lastModifiedTime().toMillis();
+        return hex(sha256().digest(stat.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * The key of a merge, from the hashes of its inputs in order and
+     * anything else that changes its output.
+     */
+    static String mergeKey(String garminHash, List<String> zwiftHashes, String options) {
+        StringBuilder key = new StringBuilder("v").append(VERSION).append("|").append(garminHash);
+        for(String hash : zwiftHashes) key.append('|').append(hash);
+        key.append('|').append(options);
+        return hex(sha256().digest(key.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    /**
+     * The hash of a file's contents, if it was recorded when the file had
+     * these attributes, or null.
+     */
+    String getHash(Path file, BasicFileAttributes attrs) {
+        String name = statKey(file, attrs) + HASH;
+        Path path = hit(name);
+        if(path == null) return null;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            if(in.readInt() != HASH_MAGIC || in.readInt() != VERSION) return null;
+            return in.readUTF();
+        }
+        catch (IOException e) {
+            remove(name);
+            return null;
+        }
+    }
+
+    /**
+     * Records the hash of a file's contents, read while it had these
+     * attributes.
+     */
+    void putHash(Path file, BasicFileAttributes attrs, String hash) {
+        put(statKey(file, attrs) + HASH, out -> {
+            out.writeInt(HASH_MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(hash);
+        });
+    }
+
+    /**
+     * The sealed track for a Zwift file's hash, or null.
+     */
+    Track getTrack(String hash) {
+        Path path = hit(hash + TRACK);
+        if(path == null) return null;
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+            if(buf.getInt() != TRACK_MAGIC || buf.getInt() != VERSION) return null;
+            boolean crcValid = buf.get() != 0;
+            return new Track(TrackFile.read(buf).toTrack(), crcValid);
+        }
+        catch (IOException | BufferUnderflowException e) {
+            remove(hash + TRACK);
+            return null;
+        }
+    }
+
+    void putTrack(String hash, ZwiftTrack track, boolean crcValid) {
+        put(hash + TRACK, out -> {
+            out.writeInt(TRACK_MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(crcValid);
+            out.write(TrackFile.encode(track));
+        });
+    }
+
+    /**
+     * Copies a cached merge to a file.
+     *
+     * @param warnings gets the warnings of the cached merge
+     * @return false if the merge is not cached
+     */
+    boolean getMerge(String key, Path target, List<String> warnings) {
+        Path path = hit(key + MERGE);
+        if(path == null) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if(in.readInt() != MERGE_MAGIC || in.readInt() != VERSION) return false;
+            List<String> cached = new ArrayList<>();
+            for(int i = in.readInt(); i > 0; i--) cached.add(in.readUTF());
+            long length = in.readLong();
+            try (OutputStream out = Files.newOutputStream(target)) {
+                byte[] buf = new byte[64 * 1024];
+                while(length > 0) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, length));
+                    if(n < 0) throw new IOException("Cache entry is truncated");
+                    out.write(buf, 0, n);
+                    length -= n;
+                }
+            }
+            warnings.addAll(cached);
+            return true;
+        }
+        catch (IOException e) {
+            remove(key + MERGE);
+            return false;
+        }
+    }
+
+    void putMerge(String key, Path merged, List<String> warnings) {
+        put(key + MERGE, out -> {
+            out.writeInt(MERGE_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(warnings.size());
+            for(String warning : warnings) out.writeUTF(warning);
+            out.writeLong(Files.size(merged));
+            Files.copy(merged, out);
+        });
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes an entry. A cache that can't be written is only slower, so
+     * failures are ignored.
+     */
+    private void put(String name, Writer writer) {
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(_dir, "." + name, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                writer.write(out);
+            }
+            Path path = _dir.resolve(name);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            long size = Files.size(path);
+            synchronized(this) {
+                Long old = _entries.put(name, size);
+                _bytes += size - (old == null ? 0 : old);
+                evict();
+            }
+        }
+        catch (IOException e) {
+            // fall through to clean up
+        }
+        finally {
+            try {
+                if(temp != null) Files.deleteIfExists(temp);
+            }
+            catch (IOException e) {
+                // left for the next run to ignore
+            }
+        }
+    }
+
+    /**
+     * Marks an entry used and returns its path, or null if there is none.
+     */
+    private Path hit(String name) {
+        synchronized(this) {
+            if(_entries.get(name) == null) return null;
+        }
+        Path path = _dir.resolve(name);
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return path;
+        }
+        catch (IOException e) {
+            remove(name);
+            return null;
+        }
+    }
+
+    private synchronized void remove(String name) {
+        Long size = _entries.remove(name);
+        if(size != null) _bytes -= size;
+        try {
+            Files.deleteIfExists(_dir.resolve(name));
+        }
+        catch (IOException e) {
+            // evicted again next time
+        }
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> it = _entries.entrySet().iterator();
+        while(_bytes > _maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            it.remove();
+            _bytes -= entry.getValue();
+            try {
+                Files.deleteIfExists(_dir.resolve(entry.getKey()));
+            }
+            catch (IOException e) {
+                // evicted again next time
+            }
+        }
+    }
+
+    public synchronized long size() {
+        return _bytes;
+    }
+}
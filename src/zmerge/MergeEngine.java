@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges FIT data from streams or channels rather than files, e.g. fully in
+ * memory or over pipes. The only files written are temp files in the
+ * default temp folder: the MAPPED Zwift mode's, and the spool of a merge
+ * over 8 MB.
+ * <p>
+ * The merge is written to the output only once it has succeeded, and every
+ * failure comes back as a {@link MergeResult} rather than an exception. To
+ * keep that promise without holding a long ride's merge on the heap until
+ * then, a merge beyond 8 MB is spooled to disk and copied to the output at
+ * the end, which costs a second write of it. The caller owns the streams;
+ * they are read to the end but not closed.
+ *
+ * @author Nicholas Rodie
+ */
+public final class MergeEngine {
+
+    private Merge.CrcPolicy _crcPolicy;
+    private Merge.ZwiftMode _zwiftMode;
+    private Merge.GarminMode _garminMode;
+    private Merge.OutputMode _outputMode;
+
+    public MergeEngine() {
+        _crcPolicy = Merge.CrcPolicy.WARN;
+        _zwiftMode = Merge.ZwiftMode.PIPELINE;
+        _garminMode = Merge.GarminMode.ENCODE;
+        _outputMode = Merge.OutputMode.STANDARD;
+    }
+
+    public Merge.CrcPolicy getCrcPolicy() {
+        return _crcPolicy;
+    }
+
+    public void setCrcPolicy(Merge.CrcPolicy crcPolicy) {
+        _crcPolicy = crcPolicy;
+    }
+
+    public Merge.ZwiftMode getZwiftMode() {
+        return _zwiftMode;
+    }
+
+    /**
+     * See {@link Merge#setZwiftMode(Merge.ZwiftMode)}. PIPELINE reads the
+     * Zwift streams on their own threads, and MAPPED decodes them into a
+     * temp file in the default temp folder.
+     */
+    public void setZwiftMode(Merge.ZwiftMode zwiftMode) {
+        _zwiftMode = zwiftMode;
+    }
+
+    public Merge.GarminMode getGarminMode() {
+        return _garminMode;
+    }
+
+    /**
+     * See {@link Merge#setGarminMode(Merge.GarminMode)}. PATCH reads the
+     * Garmin stream into memory first, as it is read twice: once to check
+     * its definitions can be patched, then by the patch or the encoder.
+     */
+    public void setGarminMode(Merge.GarminMode garminMode) {
+        _garminMode = garminMode;
+    }
+
+    public Merge.OutputMode getOutputMode() {
+        return _outputMode;
+    }
+
+    /**
+     * See {@link Merge#setOutputMode(Merge.OutputMode)}. Anything but
+     * STANDARD holds a second copy of the merge in memory while compacting.
+     */
+    public void setOutputMode(Merge.OutputMode outputMode) {
+        _outputMode = outputMode;
+    }
+
+    public MergeResult merge(InputStream garmin, List<? extends InputStream> zwift, OutputStream out) {
+        Merge.Input garminInput;
+        if(_garminMode == Merge.GarminMode.PATCH) {
+            try {
+                garminInput = new BytesInput("garmin", readAll(garmin));
+            }
+            catch (IOException e) {
+                return new MergeResult(MergeException.Reason.GARMIN_INPUT, "Error reading Garmin file.\n" + e.getMessage(), 
+                        new ArrayList<>(), new MergeMetrics());
+            }
+            catch (RuntimeException e) {
+                return new MergeResult(MergeException.Reason.INTERNAL, e.toString(), new ArrayList<>(), new MergeMetrics());
+            }
+        }
+        else {
+            garminInput = new StreamInput("garmin", garmin);
+        }
+        List<Merge.Input> zwiftInputs = new ArrayList<>();
+        for(int i = 0; i < zwift.size(); i++) zwiftInputs.add(new StreamInput("zwift " + (i + 1), zwift.get(i)));
+
+        Merge merge = new Merge(garminInput, zwiftInputs, out);
+        merge.setCrcPolicy(_crcPolicy);
+        merge.setZwiftMode(_zwiftMode);
+        merge.setGarminMode(_garminMode);
+        merge.setOutputMode(_outputMode);
+        try {
+            merge.run();
+            return new MergeResult(null, null, merge.getWarnings(), merge.getMetrics());
+        }
+        catch (MergeException e) {
+            return new MergeResult(e.getReason(), e.getMessage(), merge.getWarnings(), merge.getMetrics());
+        }
+        catch (RuntimeException e) {
+            return new MergeResult(MergeException.Reason.INTERNAL, e.toString(), merge.getWarnings(), merge.getMetrics());
+        }
+    }
+
+    public MergeResult merge(ReadableByteChannel garmin, List<? extends ReadableByteChannel> zwift, WritableByteChannel out) {
+        List<InputStream> zwiftStreams = new ArrayList<>();
+        for(ReadableByteChannel channel : zwift) zwiftStreams.add(Channels.newInputStream(channel));
+        return merge(Channels.newInputStream(garmin), zwiftStreams, Channels.newOutputStream(out));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while((n = in.read(buf)) != -1) bytes.write(buf, 0, n);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A caller's stream, which can be opened once and is left open.
+     */
+    private static final class StreamInput implements Merge.Input {
+        private final String _name;
+        private InputStream _in;
+
+        StreamInput(String name, InputStream in) {
+            _name = name;
+            _in = in;
+        }
+
+        @Override
+        public String name() {
+            return _name;
+        }
+
+        @Override
+        public long size() {
+            return -1;
+        }
+
+        @Override
+        public synchronized InputStream open(FitInput.Mode mode) throws IOException {
+            if(_in == null) throw new IOException("The " + _name + " stream has already been read");
+            InputStream in = new FilterInputStream(_in) {
+                @Override
+                public void close() {
+                    // the caller's to close
+                }
+            };
+            _in = null;
+            return mode == FitInput.Mode.DIRECT ? in : FitInput.wrap(in, FitInput.Mode.BUFFERED);
+        }
+    }
+
+    private static final class BytesInput implements Merge.Input {
+        private final String _name;
+        private final byte[] _bytes;
+
+        BytesInput(String name, byte[] bytes) {
+            _name = name;
+            _bytes = bytes;
+        }
+
+        @Override
+        public String name() {
+            return _name;
+        }
+
+        @Override
+        public long size() {
+            return _bytes.length;
+        }
+
+        @Override
+        public InputStream open(FitInput.Mode mode) {
+            return new ByteArrayInputStream(_bytes);
+        }
+    }
+}
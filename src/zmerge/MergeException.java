@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+/**
+ * Thrown when a merge cannot be completed. The message is suitable for
+ * showing to the user as is, and the reason says which part failed.
+ *
+ * @author Nicholas Rodie
+ */
+public class MergeException extends RuntimeException {
+
+    private static final long serialVersionUID = 6101712880413531402L;
+
+    public enum Reason {
+        /** missing or unusable paths or settings */
+        USAGE,
+        /** the garmin input could not be read or is not a garmin file */
+        GARMIN_INPUT,
+        /** a zwift input could not be read or is not a zwift file */
+        ZWIFT_INPUT,
+        /** an input failed its CRC check with {@link Merge.CrcPolicy#ABORT} */
+        INTEGRITY,
+        /** the merge could not be written */
+        OUTPUT,
+        /** the merge was cancelled */
+        CANCELLED,
+        /** an unexpected error, most likely a bug rather than a bad input */
+        INTERNAL
+    };
+
+    private final Reason _reason;
+
+    public MergeException(String message) {
+        this(Reason.USAGE, message);
+    }
+
+    public MergeException(String message, Throwable cause) {
+        this(Reason.USAGE, message, cause);
+    }
+
+    public MergeException(Reason reason, String message) {
+        super(message);
+        _reason = reason;
+    }
+
+    public MergeException(Reason reason, String message, Throwable cause) {
+        super(message, cause);
+        _reason = reason;
+    }
+
+    public Reason getReason() {
+        return _reason;
+    }
+}
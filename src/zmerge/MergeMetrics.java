@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import com.garmin.fit.MesgNum;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Where a merge spent its time, what it read and wrote and how many Garmin
+ * records it could match against Zwift data. Phases running on several
+ * threads, e.g. one Zwift decode per file, add up.
+ *
+ * @author Nicholas Rodie
+ */
+public final class MergeMetrics {
+
+    public enum Phase {
+        ZWIFT_DECODE,
+        INTEGRITY_CHECK,
+        GARMIN_REWRITE,
+        COMPACT,
+        COMMIT
+    };
+
+    /**
+     * Counts messages by global message number, for one decode on one
+     * thread. Common message numbers are counted without boxing.
+     */
+    static final class MesgCounter {
+        private final long[] _low = new long[256];
+        private final Map<Integer, Long> _high = new TreeMap<>();
+
+        void count(int num) {
+            if(num < _low.length) _low[num]++;
+            else _high.merge(num, 1L, Long::sum);
+        }
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final int PHASES = Phase.values().length;
+    private final long[] _nanos = new long[PHASES], _bytes = new long[PHASES], _allocated = new long[PHASES];
+    private final Map<Integer, Long> _zwiftMesgs = new TreeMap<>(), _garminMesgs = new TreeMap<>();
+    private long _wallNanos, _bytesWritten, _matched, _unmatched;
+    private String _error;
+
+    /**
+     * Bytes allocated by the current thread so far, or -1 if the JVM can't
+     * tell.
+     */
+    static long allocated() {
+        if(THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) 
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Adds one run of a phase on the current thread.
+     *
+     * @param startNanos {@link System#nanoTime()} when the phase started
+     * @param startAllocated {@link #allocated()} when the phase started
+     */
+    synchronized void add(Phase phase, long startNanos, long bytes, long startAllocated) {
+        _nanos[phase.ordinal()] += System.nanoTime() - startNanos;
+        _bytes[phase.ordinal()] += bytes;
+        if(startAllocated >= 0) _allocated[phase.ordinal()] += allocated() - startAllocated;
+    }
+
+    synchronized void addMesgs(MesgCounter counter, boolean garmin) {
+        Map<Integer, Long> mesgs = garmin ? _garminMesgs : _zwiftMesgs;
+        for(int i = 0; i < counter._low.length; i++) 
+            if(counter._low[i] > 0) mesgs.merge(i, counter._low[i], Long::sum);
+        for(Map.Entry<Integer, Long> e : counter._high.entrySet()) mesgs.merge(e.getKey(), e.getValue(), Long::sum);
+    }
+
+    synchronized void addRecords(long matched, long unmatched) {
+        _matched += matched;
+        _unmatched += unmatched;
+    }
+
+    synchronized void setBytesWritten(long bytesWritten) {
+        _bytesWritten = bytesWritten;
+    }
+
+    synchronized void setWallNanos(long wallNanos) {
+        _wallNanos = wallNanos;
+    }
+
+    synchronized void setError(String error) {
+        _error = error;
+    }
+
+    public synchronized long getNanos(Phase phase) {
+        return _nanos[phase.ordinal()];
+    }
+
+    public synchronized long getBytes(Phase phase) {
+        return _bytes[phase.ordinal()];
+    }
+
+    /**
+     * Bytes allocated during the phase, 0 if the JVM doesn't support
+     * allocation counting.
+     */
+    public synchronized long getAllocated(Phase phase) {
+        return _allocated[phase.ordinal()];
+    }
+
+    public synchronized long getWallNanos() {
+        return _wallNanos;
+    }
+
+    public synchronized long getBytesRead() {
+        long bytes = 0;
+        for(Phase phase : new Phase[] {Phase.ZWIFT_DECODE, Phase.GARMIN_REWRITE, Phase.INTEGRITY_CHECK}) 
+            bytes += _bytes[phase.ordinal()];
+        return bytes;
+    }
+
+    /** messages read from the garmin file */
+    public synchronized long getGarminMesgs() {
+        long mesgs = 0;
+        for(long count : _garminMesgs.values()) mesgs += count;
+        return mesgs;
+    }
+
+    public synchronized long getBytesWritten() {
+        return _bytesWritten;
+    }
+
+    /** garmin records rewritten with zwift data */
+    public synchronized long getMatched() {
+        return _matched;
+    }
+
+    /** garmin records dropped because no zwift record has their timestamp */
+    public synchronized long getUnmatched() {
+        return _unmatched;
+    }
+
+    public synchronized String getError() {
+        return _error;
+    }
+
+    /**
+     * The metrics as a JSON object, with message counts keyed by message
+     * name.
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"wallMillis\":").append(_wallNanos / 1000000.0);
+        json.append(",\"ok\":").append(_error == null);
+        if(_error != null) json.append(",\"error\":").append(quote(_error));
+        json.append(",\"bytesRead\":").append(getBytesRead());
+        json.append(",\"bytesWritten\":").append(_bytesWritten);
+        json.append(",\"records\":{\"matched\":").append(_matched).append(",\"unmatched\":").append(_unmatched).append('}');
+        json.append(",\"phases\":{");
+        for(Phase phase : Phase.values()) {
+            int i = phase.ordinal();
+            if(i > 0) json.append(',');
+            json.append(quote(phase.name().toLowerCase())).append(":{");
+            json.append("\"millis\":").append(_nanos[i] / 1000000.0);
+            json.append(",\"bytes\":").append(_bytes[i]);
+            json.append(",\"allocatedBytes\":").append(_allocated[i]);
+            json.append('}');
+        }
+        json.append("},\"messages\":{\"zwift\":");
+        appendMesgs(json, _zwiftMesgs);
+        json.append(",\"garmin\":");
+        appendMesgs(json, _garminMesgs);
+        json.append("}}");
+        return json.toString();
+    }
+
+    private static void appendMesgs(StringBuilder json, Map<Integer, Long> mesgs) {
+        json.append('{');
+        boolean first = true;
+        for(Map.Entry<Integer, Long> e : mesgs.entrySet()) {
+            if(!first) json.append(',');
+            first = false;
+            String name = MesgNum.getStringFromValue(e.getKey());
+            json.append(quote(name == null || name.isEmpty() ? String.valueOf(e.getKey()) : name)).append(':').append(e.getValue());
+        }
+        json.append('}');
+    }
+
+    static String quote(String s) {
+        StringBuilder q = new StringBuilder("\"");
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': q.append("\\\""); break;
+                case '\\': q.append("\\\\"); break;
+                case '\n': q.append("\\n"); break;
+                case '\r': q.append("\\r"); break;
+                case '\t': q.append("\\t"); break;
+                default:
+                    if(c < 0x20) q.append(String.format("\\u%04x", (int) c));
+                    else q.append(c);
+            }
+        }
+        return q.append('"').toString();
+    }
+}
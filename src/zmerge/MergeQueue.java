@@ -0,0 +1,520 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.swing.*;
+import javax.swing.filechooser.*;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * A queue of merges run side by side on a pool of workers. Rides are added
+ * by selecting or dropping Garmin and Zwift files or whole folders, which
+ * are paired by time as in {@link Watch}. Each ride is merged next to its
+ * Garmin file as {@code <garmin name>_zmerge.fit}.
+ *
+ * @author Nicholas Rodie
+ */
+public class MergeQueue extends JPanel implements ActionListener {
+
+    private static final String APP_NAME = "Zmerge";
+    private static final long serialVersionUID = 4417089123746152907L;
+
+    private enum State {
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED,
+        CANCELLED,
+        SKIPPED
+    };
+
+    private static final class Job {
+        final Merge _merge;
+        private State _state = State.QUEUED;
+        volatile long _start, _end;
+        volatile String _message;
+        Future<?> _future;
+
+        Job(Merge merge) {
+            _merge = merge;
+        }
+
+        synchronized State state() {
+            return _state;
+        }
+
+        synchronized void setState(State state) {
+            _state = state;
+        }
+
+        /**
+         * @return false if the job was cancelled before it started
+         */
+        synchronized boolean start() {
+            if(_state != State.QUEUED) return false;
+            _state = State.RUNNING;
+            _start = System.nanoTime();
+            return true;
+        }
+
+        synchronized void cancel() {
+            if(_state == State.QUEUED) _state = State.CANCELLED;
+            else if(_state == State.RUNNING) _merge.cancel();
+        }
+
+        synchronized boolean isFinished() {
+            return _state != State.QUEUED && _state != State.RUNNING;
+        }
+    }
+
+    private static final class JobModel extends AbstractTableModel {
+        private static final long serialVersionUID = 7046528816271940553L;
+        private static final String[] COLUMNS = {"Garmin File", "Zwift Files", "Merged File", "Status", "Time"};
+
+        final List<Job> _jobs = new ArrayList<>();
+
+        @Override
+        public int getRowCount() {
+            return _jobs.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            Job job = _jobs.get(row);
+            Merge merge = job._merge;
+            switch (column) {
+                case 0:
+                    return new File(merge.getGarminPath()).getName();
+                case 1:
+                    StringBuilder names = new StringBuilder();
+                    for(String path : merge.getZwiftPaths()) {
+                        if(names.length() > 0) names.append(", ");
+                        names.append(new File(path).getName());
+                    }
+                    return names.toString();
+                case 2:
+                    return new File(merge.getMergePath()).getName();
+                case 3:
+                    return status(job);
+                default:
+                    return time(job);
+            }
+        }
+
+        void updated(Job job) {
+            int row = _jobs.indexOf(job);
+            if(row >= 0) fireTableRowsUpdated(row, row);
+        }
+    }
+
+    private JButton _addBtn, _startBtn, _cancelBtn, _clearBtn;
+    private JSpinner _workers;
+    private JLabel _status;
+    private JTable _table;
+    private Timer _timer;
+    private JFrame _frame;
+    private final JobModel _model = new JobModel();
+    private ThreadPoolExecutor _pool;
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        if(e.getSource() == _addBtn) {
+            List<File> files = selectFiles();
+            if(files != null) add(files);
+        }
+        else if(e.getSource() == _startBtn) {
+            start();
+        }
+        else if(e.getSource() == _cancelBtn) {
+            for(Job job : _model._jobs) job.cancel();
+            refresh();
+        }
+        else if(e.getSource() == _clearBtn) {
+            _model._jobs.removeIf(Job::isFinished);
+            _model.fireTableDataChanged();
+            refresh();
+        }
+        else if(e.getSource() == _timer) {
+            for(Job job : _model._jobs) if(job.state() == State.RUNNING) _model.updated(job);
+        }
+    }
+
+    private void error(String message) {
+        JOptionPane.showMessageDialog(this, message, APP_NAME, JOptionPane.ERROR_MESSAGE);
+    }
+
+    private void info(String message) {
+        JOptionPane.showMessageDialog(this, message, APP_NAME, JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private Boolean select(String message) {
+        return JOptionPane.showConfirmDialog(this, message, APP_NAME, JOptionPane.YES_NO_OPTION) == 0;
+    }
+
+    void createGui() {
+        setLayout(new BorderLayout());
+
+        _table = new JTable(_model) {
+            private static final long serialVersionUID = 3190576617307842851L;
+
+            @Override
+            public String getToolTipText(MouseEvent e) {
+                // the whole failure or warnings
+                int row = rowAtPoint(e.getPoint());
+                if(row < 0) return null;
+                String message = _model._jobs.get(convertRowIndexToModel(row))._message;
+                return message == null ? null : "<html>" + message.replace("&", "&amp;").replace("<", "&lt;").replace("\n", "<br>");
+            }
+        };
+        _table.setFillsViewportHeight(true);
+        _table.getColumnModel().getColumn(3).setPreferredWidth(160);
+        _table.getColumnModel().getColumn(4).setPreferredWidth(50);
+        // files and folders can be dropped anywhere on the queue
+        TransferHandler drop = new DropHandler();
+        _table.setTransferHandler(drop);
+        setTransferHandler(drop);
+        add(new JScrollPane(_table), BorderLayout.CENTER);
+
+        _addBtn = new JButton("Add Rides...");
+        _addBtn.addActionListener(this);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        _workers = new JSpinner(new SpinnerNumberModel(Math.max(1, cores / 2), 1, cores * 2, 1));
+        _workers.addChangeListener(e -> resize());
+
+        _startBtn = new JButton("Start");
+        _startBtn.addActionListener(this);
+
+        _cancelBtn = new JButton("Cancel");
+        _cancelBtn.addActionListener(this);
+
+        _clearBtn = new JButton("Clear Finished");
+        _clearBtn.addActionListener(this);
+
+        _status = new JLabel();
+
+        _timer = new Timer(250, this);
+        _timer.start();
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(_status);
+        buttons.add(_addBtn);
+        buttons.add(new JLabel("Workers"));
+        buttons.add(_workers);
+        buttons.add(_startBtn);
+        buttons.add(_cancelBtn);
+        buttons.add(_clearBtn);
+        add(buttons, BorderLayout.SOUTH);
+        refresh();
+
+        _frame = new JFrame(APP_NAME + " Queue");
+        _frame.add(this);
+        _frame.setSize(760, 420);
+        // jobs keep running while the queue is hidden
+        _frame.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+        _frame.setLocationRelativeTo(null);
+        _frame.setVisible(true);
+    }
+
+    void showGui() {
+        _frame.setVisible(true);
+        _frame.toFront();
+    }
+
+    private List<File> selectFiles() {
+        JFileChooser fc = new JFileChooser();
+        fc.setFileFilter(new FileFilter() {
+            @Override
+            public String getDescription() {
+                return "FIT Files (*.fit) and Folders";
+            }
+            @Override
+            public boolean accept(File file) {
+                if(file.isDirectory()) return true;
+                else return file.getName().toLowerCase().endsWith(".fit");
+            }
+        });
+        fc.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        fc.setMultiSelectionEnabled(true);
+        if(fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return null;
+        List<File> files = new ArrayList<>();
+        for(File file : fc.getSelectedFiles()) files.add(file);
+        return files;
+    }
+
+    /**
+     * Pairs the files, and the files under any folders, in the background
+     * and queues a job for each ride.
+     */
+    private void add(List<File> files) {
+        List<Path> paths = new ArrayList<>();
+        for(File file : files) paths.add(file.toPath());
+        List<String> skipped = new ArrayList<>();
+        _addBtn.setEnabled(false);
+        _status.setText("Reading files...");
+        SwingWorker<Map<Path, List<Path>>, Void> worker = new SwingWorker<Map<Path, List<Path>>, Void>() {
+            @Override
+            protected Map<Path, List<Path>> doInBackground() throws IOException {
+                return Watch.pairFiles(Watch.findInputs(paths), null, skipped::add);
+            }
+
+            @Override
+            protected void done() {
+                _addBtn.setEnabled(true);
+                try {
+                    queue(get(), skipped);
+                }
+                catch (ExecutionException e) {
+                    error("Unable to read the files.\n" + e.getCause().getMessage());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                refresh();
+            }
+        };
+        worker.execute();
+    }
+
+    private void queue(Map<Path, List<Path>> pairs, List<String> skipped) {
+        int added = 0;
+        for(Map.Entry<Path, List<Path>> pair : pairs.entrySet()) {
+            Path garmin = pair.getKey();
+            String mPath = Watch.mergePath(garmin.toAbsolutePath().getParent(), garmin).toString();
+            // a ride already waiting or running isn't queued twice
+            boolean queued = false;
+            for(Job job : _model._jobs) 
+                queued |= !job.isFinished() && job._merge.getMergePath().equals(mPath);
+            if(queued) continue;
+            List<String> zPaths = new ArrayList<>();
+            for(Path zwift : pair.getValue()) zPaths.add(zwift.toString());
+            _model._jobs.add(new Job(new Merge(garmin.toString(), zPaths, mPath)));
+            added++;
+        }
+        if(added > 0) _model.fireTableRowsInserted(_model._jobs.size() - added, _model._jobs.size() - 1);
+        if(!skipped.isEmpty()) 
+            error(skipped.size() + " files could not be read.\n" + String.join("\n", skipped));
+        if(pairs.isEmpty()) info("No Garmin rides with overlapping Zwift files were found.");
+    }
+
+    /**
+     * Hands every queued job to the workers.
+     */
+    private void start() {
+        List<Job> jobs = new ArrayList<>();
+        int existing = 0;
+        for(Job job : _model._jobs) {
+            if(job.state() != State.QUEUED || job._future != null) continue;
+            jobs.add(job);
+            if(new File(job._merge.getMergePath()).exists()) existing++;
+        }
+        if(jobs.isEmpty()) return;
+        boolean overwrite = existing == 0 
+                || select(existing + " of the merge files already exist. Do you want to overwrite them?");
+        if(_pool == null) {
+            int workers = (Integer) _workers.getValue();
+            _pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), 
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "zmerge-queue");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        for(Job job : jobs) {
+            if(!overwrite && new File(job._merge.getMergePath()).exists()) {
+                job.setState(State.SKIPPED);
+                continue;
+            }
+            job._future = _pool.submit(() -> run(job));
+        }
+        _model.fireTableDataChanged();
+        refresh();
+    }
+
+    /**
+     * Changes the number of workers, letting running merges finish.
+     */
+    private void resize() {
+        if(_pool == null) return;
+        int workers = (Integer) _workers.getValue();
+        if(workers > _pool.getMaximumPoolSize()) {
+            _pool.setMaximumPoolSize(workers);
+            _pool.setCorePoolSize(workers);
+        }
+        else {
+            _pool.setCorePoolSize(workers);
+            _pool.setMaximumPoolSize(workers);
+        }
+    }
+
+    /**
+     * Runs on a worker.
+     */
+    private void run(Job job) {
+        if(!job.start()) return;
+        SwingUtilities.invokeLater(() -> { 
+            _model.updated(job); 
+            refresh();
+        });
+        Merge merge = job._merge;
+        State state;
+        try {
+            merge.validate();
+            merge.run();
+            state = State.DONE;
+            if(!merge.getWarnings().isEmpty()) job._message = String.join("\n", merge.getWarnings());
+        }
+        catch (MergeCancelledException e) {
+            state = State.CANCELLED;
+        }
+        catch (MergeException e) {
+            state = State.FAILED;
+            job._message = e.getMessage();
+        }
+        catch (RuntimeException e) {
+            state = State.FAILED;
+            job._message = e.toString();
+        }
+        job._end = System.nanoTime();
+        job.setState(state);
+        SwingUtilities.invokeLater(() -> { 
+            _model.updated(job); 
+            refresh();
+        });
+    }
+
+    /**
+     * Sums up the queue and enables the buttons that apply.
+     */
+    private void refresh() {
+        int queued = 0, waiting = 0, running = 0, done = 0, failed = 0;
+        for(Job job : _model._jobs) {
+            switch (job.state()) {
+                case QUEUED:
+                    queued++;
+                    // not yet handed to the workers
+                    if(job._future == null) waiting++;
+                    break;
+                case RUNNING:
+                    running++;
+                    break;
+                case DONE:
+                    done++;
+                    break;
+                case FAILED:
+                    failed++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if(_addBtn.isEnabled()) 
+            _status.setText(String.format("%d queued, %d running, %d done, %d failed", queued, running, done, failed));
+        _startBtn.setEnabled(waiting > 0);
+        _cancelBtn.setEnabled(queued + running > 0);
+        _clearBtn.setEnabled(_model._jobs.size() > queued + running);
+    }
+
+    private static String status(Job job) {
+        Merge merge = job._merge;
+        switch (job.state()) {
+            case QUEUED:
+                return "Queued";
+            case RUNNING:
+                long total = merge.getBytesTotal();
+                if(merge.isCancelled()) return "Cancelling...";
+                if(total <= 0) return "Starting...";
+                return String.format("%.0f%%", Math.min(1.0, (double) merge.getBytesRead() / total) * 100);
+            case DONE:
+                int warnings = merge.getWarnings().size();
+                return warnings == 0 ? "Done" : warnings == 1 ? "Done, 1 warning" : "Done, " + warnings + " warnings";
+            case FAILED:
+                String message = job._message;
+                return "Failed: " + (message == null ? "" : message.replace('\n', ' '));
+            case CANCELLED:
+                return "Cancelled";
+            default:
+                return "Skipped";
+        }
+    }
+
+    private static String time(Job job) {
+        State state = job.state();
+        if(state == State.QUEUED || job._start == 0) return "";
+        long end = state == State.RUNNING ? System.nanoTime() : job._end;
+        return String.format("%.1f s", (end - job._start) / 1e9);
+    }
+
+    /**
+     * Queues files and folders dropped from the file manager.
+     */
+    private final class DropHandler extends TransferHandler {
+        private static final long serialVersionUID = 1865720491937446618L;
+
+        @Override
+        public boolean canImport(TransferSupport support) {
+            return support.isDataFlavorSupported(DataFlavor.javaFileListFlavor);
+        }
+
+        @Override
+        public boolean importData(TransferSupport support) {
+            if(!canImport(support) || !_addBtn.isEnabled()) return false;
+            try {
+                @SuppressWarnings("unchecked")
+                List<File> files = (List<File>) support.getTransferable().getTransferData(DataFlavor.javaFileListFlavor);
+                add(files);
+                return true;
+            }
+            catch (UnsupportedFlavorException | IOException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a {@link MergeEngine} merge.
+ *
+ * @author Nicholas Rodie
+ */
+public final class MergeResult {
+
+    private final MergeException.Reason _reason;
+    private final String _message;
+    private final List<String> _warnings;
+    private final MergeMetrics _metrics;
+
+    MergeResult(MergeException.Reason reason, String message, List<String> warnings, MergeMetrics metrics) {
+        _reason = reason;
+        _message = message;
+        _warnings = Collections.unmodifiableList(new ArrayList<>(warnings));
+        _metrics = metrics;
+    }
+
+    public boolean isOk() {
+        return _reason == null;
+    }
+
+    /**
+     * Why the merge failed, null if it didn't.
+     */
+    public MergeException.Reason getReason() {
+        return _reason;
+    }
+
+    /**
+     * What went wrong, in words suitable for the user, null if the merge
+     * succeeded.
+     */
+    public String getMessage() {
+        return _message;
+    }
+
+    /**
+     * Non fatal problems, e.g. failed integrity checks with
+     * {@link Merge.CrcPolicy#WARN}.
+     */
+    public List<String> getWarnings() {
+        return _warnings;
+    }
+
+    public MergeMetrics getMetrics() {
+        return _metrics;
+    }
+
+    @Override
+    public String toString() {
+        return isOk() ? "OK" : _reason + ": " + _message.replace('\n', ' ');
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Totals of the {@link MergeMetrics} of every merge run in this JVM.
+ * Optionally published over JMX as {@code zmerge:type=MergeStats}.
+ *
+ * @author Nicholas Rodie
+ */
+public final class MergeStats implements MergeStatsMBean {
+
+    static final String OBJECT_NAME = "zmerge:type=MergeStats";
+
+    private static final MergeStats INSTANCE = new MergeStats();
+
+    private static final int MERGES = 0, FAILURES = 1, MATCHED = 2, UNMATCHED = 3, READ = 4, WRITTEN = 5,
+            WALL = 6, ALLOCATED = 7, PHASE = 8;
+
+    private final AtomicLongArray _totals = new AtomicLongArray(PHASE + MergeMetrics.Phase.values().length);
+
+    private MergeStats() {}
+
+    public static MergeStats get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Publishes the totals on the platform MBean server. Does nothing if
+     * already published.
+     */
+    public static synchronized void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(!server.isRegistered(name)) server.registerMBean(INSTANCE, name);
+        }
+        catch (JMException e) {
+            throw new IllegalStateException("Unable to register " + OBJECT_NAME, e);
+        }
+    }
+
+    void add(MergeMetrics metrics) {
+        _totals.incrementAndGet(MERGES);
+        if(metrics.getError() != null) _totals.incrementAndGet(FAILURES);
+        _totals.addAndGet(MATCHED, metrics.getMatched());
+        _totals.addAndGet(UNMATCHED, metrics.getUnmatched());
+        _totals.addAndGet(READ, metrics.getBytesRead());
+        _totals.addAndGet(WRITTEN, metrics.getBytesWritten());
+        _totals.addAndGet(WALL, metrics.getWallNanos());
+        for(MergeMetrics.Phase phase : MergeMetrics.Phase.values()) {
+            _totals.addAndGet(PHASE + phase.ordinal(), metrics.getNanos(phase));
+            _totals.addAndGet(ALLOCATED, metrics.getAllocated(phase));
+        }
+    }
+
+    private long millis(int index) {
+        return _totals.get(index) / 1000000;
+    }
+
+    @Override
+    public long getMerges() {
+        return _totals.get(MERGES);
+    }
+
+    @Override
+    public long getFailures() {
+        return _totals.get(FAILURES);
+    }
+
+    @Override
+    public long getRecordsMatched() {
+        return _totals.get(MATCHED);
+    }
+
+    @Override
+    public long getRecordsUnmatched() {
+        return _totals.get(UNMATCHED);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return _totals.get(READ);
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return _totals.get(WRITTEN);
+    }
+
+    @Override
+    public long getWallMillis() {
+        return millis(WALL);
+    }
+
+    @Override
+    public long getZwiftDecodeMillis() {
+        return millis(PHASE + MergeMetrics.Phase.ZWIFT_DECODE.ordinal());
+    }
+
+    @Override
+    public long getIntegrityCheckMillis() {
+        return millis(PHASE + MergeMetrics.Phase.INTEGRITY_CHECK.ordinal());
+    }
+
+    @Override
+    public long getGarminRewriteMillis() {
+        return millis(PHASE + MergeMetrics.Phase.GARMIN_REWRITE.ordinal());
+    }
+
+    @Override
+    public long getCompactMillis() {
+        return millis(PHASE + MergeMetrics.Phase.COMPACT.ordinal());
+    }
+
+    @Override
+    public long getCommitMillis() {
+        return millis(PHASE + MergeMetrics.Phase.COMMIT.ordinal());
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return _totals.get(ALLOCATED);
+    }
+}
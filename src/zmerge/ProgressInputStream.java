@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Adds the bytes read through it to a shared counter and stops the read
+ * once the merge is cancelled. The counter is updated in steps, the
+ * decoder reads far too little at a time to touch it on every read.
+ *
+ * @author Nicholas Rodie
+ */
+class ProgressInputStream extends FilterInputStream {
+
+    private static final int STEP = 64 * 1024;
+
+    private final AtomicLong _counter;
+    private final BooleanSupplier _cancelled;
+    private int _pending;
+
+    ProgressInputStream(InputStream in, AtomicLong counter, BooleanSupplier cancelled) {
+        super(in);
+        _counter = counter;
+        _cancelled = cancelled;
+    }
+
+    private void count(long n) {
+        if(n <= 0) return;
+        _pending += n;
+        if(_pending >= STEP) {
+            _counter.addAndGet(_pending);
+            _pending = 0;
+            if(_cancelled.getAsBoolean()) throw new MergeCancelledException();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if(b >= 0) count(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        count(n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        _counter.addAndGet(_pending);
+        _pending = 0;
+        super.close();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+/**
+ * The Zwift values for each matched Garmin record, and the running ride and
+ * lap totals the Garmin LAP and SESSION messages are rewritten with.
+ *
+ * @author Nicholas Rodie
+ */
+final class RideTotals {
+
+    private final ZwiftCursor _zwift;
+    private double _ascent, _descent, _distOffset, _lapAscent, _lapDescent, _lastAlt, _totDist, _lapDist, _maxSpd, _maxLapSpd;
+    private int _lapTime, _lastTime, _startTime;
+    private int _segment;
+    private double _altitude, _speed;
+
+    RideTotals(ZwiftCursor zwift) {
+        _zwift = zwift;
+        // set from the first matched record
+        _distOffset = Double.NaN;
+    }
+
+    /**
+     * Moves to the Zwift record for a Garmin record and adds it to the
+     * totals.
+     *
+     * @return false if there is no Zwift record with the timestamp
+     */
+    boolean record(int timestamp) {
+        if(!_zwift.seek(timestamp)) return false;
+        double altitude = _zwift.altitude();
+        double distance = _zwift.distance();
+        double speed = _zwift.speed();
+        // first zwift file
+        if(_startTime == 0) {
+            _segment = _zwift.segment();
+            _startTime = timestamp;
+            _lapTime = timestamp;
+            _lastAlt = altitude;
+        }
+        // additional zwift file/s
+        else if(_zwift.segment() > _segment) {
+            _segment = _zwift.segment();
+
+            // add distance from previous file
+            _distOffset = _totDist;
+
+            // reset alt so not big jumps from change in location
+            _lastAlt = altitude;
+
+            // start a new lap
+            _lapAscent = _lapDescent = _maxLapSpd = 0.0;
+            _lapTime = timestamp;
+            _lapDist = _totDist;
+        }
+
+        // calculate altitudes
+        if(altitude > _lastAlt) {
+            _ascent += altitude - _lastAlt;
+            _lapAscent += altitude - _lastAlt;
+        }
+        else if(altitude < _lastAlt) {
+            _descent += _lastAlt - altitude;
+            _lapDescent += _lastAlt - altitude;
+        }
+
+        // distance offset removes any Zwift distance not covered by Garmin timestamps
+        // or adds any difference when combining input files
+        if(Double.isNaN(_distOffset)) _distOffset = distance * -1;
+        _totDist = distance + _distOffset;
+
+        // watch for max speeds
+        if(speed > _maxSpd) _maxSpd = speed;
+        if(speed > _maxLapSpd) _maxLapSpd = speed;
+
+        _altitude = altitude;
+        _speed = speed;
+        _lastAlt = altitude;
+        _lastTime = timestamp;
+        return true;
+    }
+
+    // the current record
+
+    double altitude() {
+        return _altitude;
+    }
+
+    /** ride distance so far */
+    double distance() {
+        return _totDist;
+    }
+
+    int latitude() {
+        return _zwift.latitude();
+    }
+
+    int longitude() {
+        return _zwift.longitude();
+    }
+
+    double speed() {
+        return _speed;
+    }
+
+    // the current lap
+
+    int lapTime() {
+        return _lastTime - _lapTime;
+    }
+
+    double lapDistance() {
+        return _totDist - _lapDist;
+    }
+
+    double lapAscent() {
+        return _lapAscent;
+    }
+
+    double lapDescent() {
+        return _lapDescent;
+    }
+
+    double maxLapSpeed() {
+        return _maxLapSpd;
+    }
+
+    /**
+     * Starts the next lap from the last record.
+     */
+    void endLap() {
+        _lapAscent = _lapDescent = _maxLapSpd = 0.0;
+        _lapTime = _lastTime;
+        _lapDist = _totDist;
+    }
+
+    // the whole ride
+
+    int elapsedTime() {
+        return _lastTime - _startTime;
+    }
+
+    double ascent() {
+        return _ascent;
+    }
+
+    double descent() {
+        return _descent;
+    }
+
+    double maxSpeed() {
+        return _maxSpd;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives the merged records while the Garmin file is rewritten, to write
+ * the ride in another format in the same pass. Records arrive in time
+ * order, one for each record of the merged FIT file.
+ * <p>
+ * {@link #finish()} is called once every record has arrived, before the
+ * merge is written out, and {@link #close()} always. The merge can still
+ * fail after finish(), so a writer that publishes a file should do it as late
+ * as it can; the built in exports wait until the merge has been written.
+ *
+ * @author Nicholas Rodie
+ */
+public interface RideWriter extends Closeable {
+
+    /**
+     * Latitude and longitude are in semicircles, as in FIT. Heart rate,
+     * cadence and power are -1 when the Garmin record has none.
+     */
+    void record(int timestamp, double altitude, double distance, int latitude, int longitude, double speed, 
+            int heartRate, int cadence, int power) throws IOException;
+
+    void finish() throws IOException;
+}
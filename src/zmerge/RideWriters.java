@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link RideWriter}s of one merge. Write errors are thrown as
+ * {@link MergeException}s so the rewrite can pass them straight up.
+ *
+ * @author Nicholas Rodie
+ */
+final class RideWriters {
+
+    /** seconds from the unix epoch to the fit epoch, 1989-12-31 00:00 UTC */
+    private static final long FIT_EPOCH = 631065600L;
+    private static final double DEGREES_PER_SEMICIRCLE = 180.0 / (1L << 31);
+
+    private final List<RideWriter> _writers;
+    private final List<Export> _exports;
+
+    RideWriters(List<RideWriter> writers) {
+        _writers = new ArrayList<>(writers);
+        _exports = new ArrayList<>();
+    }
+
+    void add(RideWriter writer) {
+        _writers.add(writer);
+    }
+
+    /**
+     * True if a path's extension is one {@link #export(Path)} can write.
+     */
+    static boolean isExport(String path) {
+        String lower = path.toLowerCase();
+        return lower.endsWith(".gpx") || lower.endsWith(".tcx") || lower.endsWith(".csv");
+    }
+
+    /**
+     * Adds a writer for the format given by the path's extension. It writes
+     * to a temp file that only replaces the path in {@link #publish()}.
+     */
+    void export(Path path) throws IOException {
+        Export export = new Export(path);
+        _writers.add(export);
+        _exports.add(export);
+    }
+
+    /**
+     * An export written to a temp file beside its path.
+     */
+    private static final class Export implements RideWriter {
+        private final Path _path;
+        private final Path _temp;
+        private final RideWriter _writer;
+        private boolean _published;
+
+        Export(Path path) throws IOException {
+            if(!isExport(path.toString())) throw new IllegalArgumentException("Unknown export format " + path);
+            // as the merge's temp file, so the export gets the usual permissions
+            _path = path;
+            _temp = File.createTempFile("." + path.getFileName() + ".", ".tmp", path.toAbsolutePath().getParent().toFile()).toPath();
+            Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(_temp), StandardCharsets.UTF_8), 
+                    FitInput.BUFFER_SIZE);
+            String lower = path.toString().toLowerCase();
+            try {
+                _writer = lower.endsWith(".gpx") ? new GpxWriter(out) : lower.endsWith(".tcx") ? new TcxWriter(out) : new CsvWriter(out);
+            }
+            catch (IOException | RuntimeException e) {
+                out.close();
+                Files.deleteIfExists(_temp);
+                throw e;
+            }
+        }
+
+        @Override
+        public void record(int timestamp, double altitude, double distance, int latitude, int longitude, double speed, 
+                int heartRate, int cadence, int power) throws IOException {
+            _writer.record(timestamp, altitude, distance, latitude, longitude, speed, heartRate, cadence, power);
+        }
+
+        /**
+         * Completes the temp file, leaving the path as it was.
+         */
+        @Override
+        public void finish() throws IOException {
+            _writer.finish();
+            _writer.close();
+        }
+
+        void publish() throws IOException {
+            try {
+                Files.move(_temp, _path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(_temp, _path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            _published = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(_published) return;
+            try {
+                _writer.close();
+            }
+            finally {
+                Files.deleteIfExists(_temp);
+            }
+        }
+    }
+
+    void record(int timestamp, double altitude, double distance, int latitude, int longitude, double speed, 
+            int heartRate, int cadence, int power) {
+        try {
+            for(RideWriter writer : _writers) 
+                writer.record(timestamp, altitude, distance, latitude, longitude, speed, heartRate, cadence, power);
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.OUTPUT, "Unable to write export.\n" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Finishes every writer. The exports are complete but still in their
+     * temp files, so a merge that fails after this leaves no export behind.
+     */
+    void finish() {
+        try {
+            for(RideWriter writer : _writers) writer.finish();
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.OUTPUT, "Unable to write export.\n" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Moves the finished exports into place, once the merge itself is.
+     */
+    void publish() {
+        for(Export export : _exports) {
+            try {
+                export.publish();
+            }
+            catch (IOException e) {
+                throw new MergeException(MergeException.Reason.OUTPUT, 
+                        "\"" + export._path + "\"\nUnable to write export.\n" + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Closes every writer, ignoring errors as the merge has either
+     * finished them or already failed.
+     */
+    void close() {
+        for(RideWriter writer : _writers) {
+            try {
+                writer.close();
+            }
+            catch (IOException e) {
+                // nothing more to lose
+            }
+        }
+    }
+
+    /**
+     * A FIT timestamp as an ISO 8601 UTC time.
+     */
+    static String time(int timestamp) {
+        return Instant.ofEpochSecond((timestamp & 0xFFFFFFFFL) + FIT_EPOCH).toString();
+    }
+
+    static double degrees(int semicircles) {
+        return semicircles * DEGREES_PER_SEMICIRCLE;
+    }
+
+    /**
+     * Appends a number with a fixed number of decimals, without the cost of
+     * a formatter.
+     */
+    static StringBuilder fixed(StringBuilder out, double value, int decimals) {
+        long scale = 1;
+        for(int i = 0; i < decimals; i++) scale *= 10;
+        long scaled = Math.round(Math.abs(value) * scale);
+        if(value < 0 && scaled != 0) out.append('-');
+        out.append(scaled / scale);
+        if(decimals > 0) {
+            String fraction = Long.toString(scaled % scale);
+            out.append('.');
+            for(int i = fraction.length(); i < decimals; i++) out.append('0');
+            out.append(fraction);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merge service. Accepts a multipart/form-data POST to {@code /merge} with
+ * one {@code garmin} file and one or more {@code zwift} files and answers
+ * with the merged FIT file. Merges run in memory through {@link MergeEngine}.
+ * <p>
+ * Requests are handled on virtual threads where the JVM has them. A request
+ * body and its merge are held in memory, so those of all requests in flight
+ * are kept under a memory limit, and only a set number of merges run at once.
+ * Each request reserves its share of the limit in one go, worked out from its
+ * Content-Length, so it never waits for memory while holding some.
+ * Requests that can't get either in time are turned away with 503. Zwift
+ * files are decoded with {@link Merge.ZwiftMode#LOAD} on the request's own
+ * thread, so a request never starts threads of its own.
+ *
+ * @author Nicholas Rodie
+ */
+public class Service {
+
+    private static final String USAGE = 
+            "Usage: zmerge --serve [--port <port>] [--merges <n>] [--memory <MB>] [--garmin encode|patch]\n"
+            + "       [--output standard|compressed|pruned]";
+
+    /** how long a request waits for memory or a merge slot */
+    private static final long WAIT_SECONDS = 30;
+
+    /** the decoded zwift track, with room to grow, and its merged copy */
+    private static final int ZWIFT_COPIES = 3;
+
+    /** the largest body that fits in an array */
+    static final long MAX_BODY = Integer.MAX_VALUE - 8;
+
+    /** the largest memory limit, in MB, as the limit is counted in KiB in an int */
+    static final long MAX_MEMORY_MB = Integer.MAX_VALUE / 1024;
+
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+    private final Semaphore _merges;
+    // in KiB, so large limits fit in an int
+    private final Semaphore _memory;
+    private final int _memoryKiB;
+    private final MergeEngine _engine;
+
+    public Service(int port, int merges, long memoryBytes) throws IOException {
+        if(merges < 1) throw new IllegalArgumentException("merges must be at least 1");
+        if(memoryBytes < 1024 * 1024) throw new IllegalArgumentException("memory must be at least 1 MB");
+        if(memoryBytes / (1024 * 1024) > MAX_MEMORY_MB) 
+            throw new IllegalArgumentException("memory must be at most " + MAX_MEMORY_MB + " MB");
+        _memoryKiB = (int) (memoryBytes / 1024);
+        _merges = new Semaphore(merges, true);
+        _memory = new Semaphore(_memoryKiB, true);
+        _engine = new MergeEngine();
+        _engine.setZwiftMode(Merge.ZwiftMode.LOAD);
+        _executor = newExecutor();
+        _server = HttpServer.create(new InetSocketAddress(port), 0);
+        _server.setExecutor(_executor);
+        _server.createContext("/merge", this::handle);
+    }
+
+    /**
+     * A virtual thread per request on JVMs that have them, a pooled thread
+     * otherwise.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void setGarminMode(Merge.GarminMode garminMode) {
+        _engine.setGarminMode(garminMode);
+    }
+
+    public void setOutputMode(Merge.OutputMode outputMode) {
+        _engine.setOutputMode(outputMode);
+    }
+
+    public int getPort() {
+        return _server.getAddress().getPort();
+    }
+
+    public void start() {
+        _server.start();
+    }
+
+    public void stop() {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if(!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                send(exchange, 405, "Use POST");
+                return;
+            }
+            String boundary = Multipart.boundary(exchange.getRequestHeaders().getFirst("Content-Type"));
+            if(boundary == null) {
+                send(exchange, 400, "Expected multipart/form-data");
+                return;
+            }
+            long length = contentLength(exchange);
+            if(length < 0) {
+                send(exchange, 411, "Content-Length is required");
+                return;
+            }
+            // the body and its merge together, before the body is read
+            int kiB = length > MAX_BODY ? Integer.MAX_VALUE : kiB(length * (1 + mergeCopies()));
+            if(length > MAX_BODY || kiB > _memoryKiB) {
+                send(exchange, 413, "Request is larger than the service memory limit");
+                return;
+            }
+            if(!_memory.tryAcquire(kiB, WAIT_SECONDS, TimeUnit.SECONDS)) {
+                busy(exchange);
+                return;
+            }
+            try {
+                byte[] body = read(exchange.getRequestBody(), (int) length);
+                merge(exchange, new Multipart(body, boundary));
+            }
+            finally {
+                _memory.release(kiB);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(exchange, 503, "Service is stopping");
+        }
+        catch (IOException e) {
+            fail(exchange, 400, e.getMessage());
+        }
+        catch (RuntimeException e) {
+            fail(exchange, 500, e.toString());
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void merge(HttpExchange exchange, Multipart multipart) throws IOException, InterruptedException {
+        List<Multipart.Part> garmin = multipart.get("garmin"), zwift = multipart.get("zwift");
+        if(garmin.size() != 1 || zwift.isEmpty()) {
+            send(exchange, 400, "Expected one garmin part and one or more zwift parts");
+            return;
+        }
+        merge(exchange, garmin.get(0), zwift);
+    }
+
+    /**
+     * The copies of the body a merge may hold at once. The body could be
+     * all Garmin file or all Zwift files, so it is the larger of the two.
+     */
+    private int mergeCopies() {
+        return Math.max(garminCopies(), ZWIFT_COPIES);
+    }
+
+    /**
+     * The copies of the garmin file a merge holds at once, as each is about
+     * the same size: the merge held back until it has passed its checks and
+     * the response, ENCODE's buffer and the bytes it returns, PATCH's copy
+     * of the input, its body and the bytes of that, and the uncompacted
+     * merge when compacting.
+     */
+    private int garminCopies() {
+        int copies = _engine.getGarminMode() == Merge.GarminMode.PATCH ? 5 : 4;
+        return _engine.getOutputMode() == Merge.OutputMode.STANDARD ? copies : copies + 1;
+    }
+
+    private static int kiB(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, (bytes + 1023) / 1024);
+    }
+
+    private void merge(HttpExchange exchange, Multipart.Part garmin, List<Multipart.Part> zwift) 
+            throws IOException, InterruptedException {
+        if(!_merges.tryAcquire(WAIT_SECONDS, TimeUnit.SECONDS)) {
+            busy(exchange);
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MergeResult result;
+        try {
+            List<InputStream> zwiftStreams = new ArrayList<>();
+            for(Multipart.Part part : zwift) zwiftStreams.add(part.open());
+            result = _engine.merge(garmin.open(), zwiftStreams, out);
+        }
+        finally {
+            _merges.release();
+        }
+        if(!result.isOk()) {
+            MergeException.Reason reason = result.getReason();
+            send(exchange, reason == MergeException.Reason.USAGE ? 400 : reason == MergeException.Reason.INTERNAL ? 500 : 422, 
+                    result.getMessage());
+            return;
+        }
+
+        for(String warning : result.getWarnings()) 
+            exchange.getResponseHeaders().add("X-Zmerge-Warning", oneLine(warning));
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"merged.fit\"");
+        // a length of 0 would mean chunked
+        exchange.sendResponseHeaders(200, out.size() > 0 ? out.size() : -1);
+        try (OutputStream body = exchange.getResponseBody()) {
+            out.writeTo(body);
+        }
+    }
+
+    private static long contentLength(HttpExchange exchange) {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            return length == null ? -1 : Long.parseLong(length.trim());
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] read(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+        int off = 0;
+        while(off < length) {
+            int n = in.read(body, off, length - off);
+            if(n < 0) throw new IOException("Request body is shorter than its Content-Length");
+            off += n;
+        }
+        return body;
+    }
+
+    private static void busy(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "5");
+        send(exchange, 503, "Too many merges in progress, try again later");
+    }
+
+    /**
+     * Reports an error, unless the response is already under way.
+     */
+    private static void fail(HttpExchange exchange, int status, String message) throws IOException {
+        if(exchange.getResponseCode() < 0) send(exchange, status, message);
+    }
+
+    private static void send(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = (oneLine(message) + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    private static String oneLine(String message) {
+        return message == null ? "" : message.replace('\n', ' ').trim();
+    }
+
+    /**
+     * A multipart/form-data body held in memory.
+     */
+    static final class Multipart {
+
+        static final class Part {
+            final String _name;
+            final byte[] _body;
+            final int _off, _len;
+
+            Part(String name, byte[] body, int off, int len) {
+                _name = name;
+                _body = body;
+                _off = off;
+                _len = len;
+            }
+
+            InputStream open() {
+                return new ByteArrayInputStream(_body, _off, _len);
+            }
+        }
+
+        private final List<Part> _parts;
+
+        Multipart(byte[] body, String boundary) throws IOException {
+            _parts = new ArrayList<>();
+            byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            int at = indexOf(body, delimiter, 0);
+            if(at < 0) throw new IOException("Multipart boundary not found");
+            while(true) {
+                at += delimiter.length;
+                // the closing delimiter ends with --
+                if(at + 1 < body.length && body[at] == '-' && body[at + 1] == '-') break;
+                int headersStart = indexOf(body, CRLF, at) + 2;
+                int headersEnd = indexOf(body, CRLFCRLF, headersStart);
+                if(headersStart < 2 || headersEnd < 0) throw new IOException("Bad multipart headers");
+                String headers = new String(body, headersStart, headersEnd - headersStart, StandardCharsets.UTF_8);
+                int contentStart = headersEnd + 4;
+                int next = indexOf(body, delimiter, contentStart);
+                if(next < 0) throw new IOException("Multipart body is not closed");
+                if(next - 2 < contentStart) throw new IOException("Bad multipart part");
+                // the CRLF before a delimiter belongs to the delimiter
+                _parts.add(new Part(name(headers), body, contentStart, next - 2 - contentStart));
+                at = next;
+            }
+        }
+
+        private static final byte[] CRLF = {'\r', '\n'}, CRLFCRLF = {'\r', '\n', '\r', '\n'};
+
+        List<Part> get(String name) {
+            List<Part> parts = new ArrayList<>();
+            for(Part part : _parts) if(name.equals(part._name)) parts.add(part);
+            return parts;
+        }
+
+        static String boundary(String contentType) {
+            if(contentType == null || !contentType.toLowerCase().startsWith("multipart/form-data")) return null;
+            for(String param : contentType.split(";")) {
+                param = param.trim();
+                if(param.toLowerCase().startsWith("boundary=")) {
+                    String boundary = param.substring(9);
+                    if(boundary.startsWith("\"") && boundary.endsWith("\"") && boundary.length() > 1) 
+                        boundary = boundary.substring(1, boundary.length() - 1);
+                    return boundary.isEmpty() ? null : boundary;
+                }
+            }
+            return null;
+        }
+
+        private static String name(String headers) {
+            for(String header : headers.split("\r\n")) {
+                if(!header.toLowerCase().startsWith("content-disposition:")) continue;
+                for(String param : header.split(";")) {
+                    param = param.trim();
+                    if(param.startsWith("name=")) {
+                        String name = param.substring(5);
+                        if(name.startsWith("\"") && name.endsWith("\"") && name.length() > 1) 
+                            name = name.substring(1, name.length() - 1);
+                        return name;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static int indexOf(byte[] body, byte[] pattern, int from) {
+            outer:
+            for(int i = Math.max(0, from); i <= body.length - pattern.length; i++) {
+                for(int j = 0; j < pattern.length; j++) 
+                    if(body[i + j] != pattern[j]) continue outer;
+                return i;
+            }
+            return -1;
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = 8080;
+        int merges = Runtime.getRuntime().availableProcessors();
+        long memory = 256;
+        Merge.GarminMode garminMode = Merge.GarminMode.ENCODE;
+        Merge.OutputMode outputMode = Merge.OutputMode.STANDARD;
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--serve":
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--merges":
+                        merges = Integer.parseInt(args[++i]);
+                        break;
+                    case "--memory":
+                        memory = Long.parseLong(args[++i]);
+                        if(memory < 1 || memory > MAX_MEMORY_MB) throw new IllegalArgumentException("Bad --memory " + memory);
+                        break;
+                    case "--garmin":
+                        garminMode = Merge.GarminMode.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "--output":
+                        outputMode = Merge.OutputMode.valueOf(args[++i].toUpperCase());
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        try {
+            Service service = new Service(port, merges, memory * 1024 * 1024);
+            service.setGarminMode(garminMode);
+            service.setOutputMode(outputMode);
+            service.start();
+            System.out.println("Serving merges on port " + service.getPort());
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+    }
+}
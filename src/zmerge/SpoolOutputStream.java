@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Holds a stream merge until it has passed every check. It is kept in
+ * memory up to a limit and spilled to a temp file in the default temp
+ * folder beyond it, so a long ride doesn't cost its whole size in heap.
+ * Write errors are thrown as {@link MergeException}s so the rewrite can pass
+ * them straight up.
+ *
+ * @author Nicholas Rodie
+ */
+final class SpoolOutputStream extends OutputStream {
+
+    /** the most bytes held in memory, a merge of several hours */
+    static final int MEMORY_LIMIT = 8 << 20;
+
+    private final int _limit;
+    private ByteArrayOutputStream _memory;
+    // once spilled
+    private Path _file;
+    private OutputStream _disk;
+    private long _size;
+
+    /**
+     * @param expected a guess at the size, for the first buffer
+     */
+    SpoolOutputStream(int limit, long expected) {
+        _limit = limit;
+        _memory = new ByteArrayOutputStream((int) Math.max(32, Math.min(limit, expected)));
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        try {
+            if(_disk == null && _size + len > _limit) spill();
+            if(_disk != null) _disk.write(b, off, len);
+            else _memory.write(b, off, len);
+            _size += len;
+        }
+        catch (IOException e) {
+            throw new MergeException(MergeException.Reason.OUTPUT, "Unable to write merge.\n" + e.getMessage(), e);
+        }
+    }
+
+    private void spill() throws IOException {
+        _file = Files.createTempFile("zmerge-merge.", ".tmp");
+        _disk = new BufferedOutputStream(Files.newOutputStream(_file), FitInput.BUFFER_SIZE);
+        _memory.writeTo(_disk);
+        _memory = null;
+    }
+
+    long size() {
+        return _size;
+    }
+
+    boolean isSpilled() {
+        return _file != null;
+    }
+
+    /**
+     * Copies everything written so far to the stream.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if(_disk == null) {
+            _memory.writeTo(out);
+            return;
+        }
+        _disk.flush();
+        Files.copy(_file, out);
+    }
+
+    /**
+     * Deletes the temp file, if there is one.
+     */
+    @Override
+    public void close() throws IOException {
+        if(_disk == null) return;
+        try {
+            _disk.close();
+        }
+        finally {
+            Files.deleteIfExists(_file);
+        }
+    }
+}
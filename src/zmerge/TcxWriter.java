@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes merged records as a TCX activity with a single lap.
+ * <p>
+ * TCX puts the lap totals before the track points, so the points go to a
+ * temp file until the totals are known. Memory use stays the same however
+ * long the ride.
+ *
+ * @author Nicholas Rodie
+ */
+public final class TcxWriter implements RideWriter {
+
+    private final Writer _out;
+    private final Path _temp;
+    private final Writer _points;
+    private final StringBuilder _point;
+    private int _first = -1, _last;
+    private double _startDistance, _distance, _maxSpeed;
+
+    public TcxWriter(Writer out) throws IOException {
+        _out = out;
+        _temp = Files.createTempFile("zmerge", ".tcx");
+        _points = Files.newBufferedWriter(_temp, StandardCharsets.UTF_8);
+        _point = new StringBuilder(512);
+    }
+
+    @Override
+    public void record(int timestamp, double altitude, double distance, int latitude, int longitude, double speed, 
+            int heartRate, int cadence, int power) throws IOException {
+        if(_first < 0) {
+            _first = timestamp;
+            _startDistance = distance;
+        }
+        _last = timestamp;
+        _distance = distance;
+        _maxSpeed = Math.max(_maxSpeed, speed);
+
+        _point.setLength(0);
+        _point.append("     <Trackpoint><Time>").append(RideWriters.time(timestamp)).append("</Time><Position><LatitudeDegrees>");
+        RideWriters.fixed(_point, RideWriters.degrees(latitude), 7).append("</LatitudeDegrees><LongitudeDegrees>");
+        RideWriters.fixed(_point, RideWriters.degrees(longitude), 7).append("</LongitudeDegrees></Position><AltitudeMeters>");
+        RideWriters.fixed(_point, altitude, 1).append("</AltitudeMeters><DistanceMeters>");
+        RideWriters.fixed(_point, distance, 2).append("</DistanceMeters>");
+        if(heartRate >= 0) _point.append("<HeartRateBpm><Value>").append(heartRate).append("</Value></HeartRateBpm>");
+        if(cadence >= 0) _point.append("<Cadence>").append(cadence).append("</Cadence>");
+        _point.append("<Extensions><ns3:TPX><ns3:Speed>");
+        RideWriters.fixed(_point, speed, 3).append("</ns3:Speed>");
+        if(power >= 0) _point.append("<ns3:Watts>").append(power).append("</ns3:Watts>");
+        _point.append("</ns3:TPX></Extensions></Trackpoint>\n");
+        _points.append(_point);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        _points.close();
+        String start = RideWriters.time(Math.max(0, _first));
+        StringBuilder head = new StringBuilder(1024);
+        head.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<TrainingCenterDatabase xmlns=\"http://www.garmin.com/xmlschemas/TrainingCenterDatabase/v2\"" 
+                + " xmlns:ns3=\"http://www.garmin.com/xmlschemas/ActivityExtension/v2\">\n"
+                + " <Activities>\n  <Activity Sport=\"Biking\">\n   <Id>").append(start).append("</Id>\n");
+        head.append("   <Lap StartTime=\"").append(start).append("\"><TotalTimeSeconds>").append(_first < 0 ? 0 : _last - _first);
+        head.append("</TotalTimeSeconds><DistanceMeters>");
+        RideWriters.fixed(head, _distance - _startDistance, 2).append("</DistanceMeters><MaximumSpeed>");
+        RideWriters.fixed(head, _maxSpeed, 3).append("</MaximumSpeed><Calories>0</Calories>");
+        head.append("<Intensity>Active</Intensity><TriggerMethod>Manual</TriggerMethod>\n    <Track>\n");
+        _out.append(head);
+        try (BufferedReader points = Files.newBufferedReader(_temp, StandardCharsets.UTF_8)) {
+            char[] buf = new char[8192];
+            int n;
+            while((n = points.read(buf)) > 0) _out.write(buf, 0, n);
+        }
+        _out.write("    </Track>\n   </Lap>\n  </Activity>\n </Activities>\n</TrainingCenterDatabase>\n");
+        _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            _points.close();
+            _out.close();
+        }
+        finally {
+            Files.deleteIfExists(_temp);
+        }
+    }
+}
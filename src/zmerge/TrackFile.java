@@ -0,0 +1,439 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact, seekable copy of a {@link ZwiftTrack}, usually kept next to the
+ * Zwift file as a {@code .ztrk} sidecar.
+ * <p>
+ * The records are split into blocks of {@value #BLOCK_SIZE}. Each field is
+ * stored as a zigzag varint delta from the record before, starting again
+ * from 0 at each block, so a block can be decoded without the ones before
+ * it. A small index of each block's first timestamp and offset follows the
+ * header. Altitude, distance and speed are stored at their FIT scale when
+ * that gives back exactly the same values, otherwise as raw doubles.
+ * <pre>
+ * int    magic "ZTRK"
+ * short  version
+ * short  flags, bit 0-2 set when altitude, distance, speed are scaled
+ * int    records, int block size
+ * int    segments, int[segments] segment start times
+ * int    blocks, {int first timestamp, int offset}[blocks]
+ * blocks
+ * </pre>
+ * All ints are big endian. Files are read by memory mapping them.
+ *
+ * @author Nicholas Rodie
+ */
+public final class TrackFile {
+
+    static final String EXTENSION = ".ztrk";
+    private static final int MAGIC = 0x5A54524B;
+    private static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 256;
+
+    // fit profile scale and offset of altitude, distance and speed
+    private static final double[] SCALE = {5, 100, 1000};
+    private static final double[] OFFSET = {500, 0, 0};
+
+    private final ByteBuffer _buf;
+    private final int _flags, _size, _blockSize;
+    private final int[] _segmentStart, _blockTimestamp, _blockOffset;
+
+    private TrackFile(ByteBuffer buf) throws IOException {
+        _buf = buf;
+        try {
+            if(buf.getInt(0) != MAGIC) throw new IOException("Not a track file");
+            if(buf.getShort(4) != VERSION) throw new IOException("Unsupported track file version " + buf.getShort(4));
+            ByteBuffer in = buf.duplicate();
+            in.position(6);
+            _flags = in.getShort();
+            _size = in.getInt();
+            _blockSize = in.getInt();
+            _segmentStart = new int[checkCount(in.getInt(), in, 4)];
+            for(int i = 0; i < _segmentStart.length; i++) _segmentStart[i] = in.getInt();
+            int blocks = checkCount(in.getInt(), in, 8);
+            _blockTimestamp = new int[blocks];
+            _blockOffset = new int[blocks];
+            for(int i = 0; i < blocks; i++) {
+                _blockTimestamp[i] = in.getInt();
+                _blockOffset[i] = in.getInt();
+                if(_blockOffset[i] < in.position() || _blockOffset[i] > buf.limit() || (i > 0 && _blockOffset[i] < _blockOffset[i - 1])) 
+                    throw new IOException("Track file is corrupt");
+            }
+            if(_size < 0 || _blockSize < 1 || blocks != (_size + _blockSize - 1) / _blockSize) 
+                throw new IOException("Track file is corrupt");
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Track file is truncated", e);
+        }
+    }
+
+    private static int checkCount(int count, ByteBuffer in, int bytesEach) throws IOException {
+        if(count < 0 || (long) count * bytesEach > in.remaining()) throw new IOException("Track file is corrupt");
+        return count;
+    }
+
+    /**
+     * Maps a track file. The file can be changed or deleted once this
+     * returns, on systems that allow it for mapped files.
+     */
+    public static TrackFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) throw new IOException("Track file is too large");
+            return new TrackFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads a track file from the buffer's position to its limit.
+     */
+    static TrackFile read(ByteBuffer buf) throws IOException {
+        return new TrackFile(buf.slice());
+    }
+
+    /**
+     * Writes a sealed track, replacing the file in one step.
+     */
+    public static void write(ZwiftTrack track, Path path) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, "." + path.getFileName(), ".tmp");
+        try {
+            Files.write(temp, encode(track));
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * The track file bytes of a sealed track.
+     */
+    static byte[] encode(ZwiftTrack track) {
+        track.seal();
+        int size = track.size();
+        int flags = 0;
+        for(int f = 0; f < 3; f++) if(scalable(track, f)) flags |= 1 << f;
+        int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        Out out = new Out(64 + size * 12);
+        out.putInt(MAGIC);
+        out.putShort(VERSION);
+        out.putShort(flags);
+        out.putInt(size);
+        out.putInt(BLOCK_SIZE);
+        int[] starts = track.segmentStarts();
+        out.putInt(starts.length);
+        for(int start : starts) out.putInt(start);
+        out.putInt(blocks);
+        int index = out._size;
+        for(int b = 0; b < blocks; b++) {
+            out.putInt(track.timestamp(b * BLOCK_SIZE));
+            out.putInt(0);
+        }
+
+        long[] last = new long[6];
+        for(int i = 0; i < size; i++) {
+            if(i % BLOCK_SIZE == 0) {
+                // patch the offset into the index
+                Out.putInt(out._bytes, index + (i / BLOCK_SIZE) * 8 + 4, out._size);
+                Arrays.fill(last, 0);
+            }
+            last[0] = out.putDelta(track.timestamp(i), last[0]);
+            last[1] = out.putDelta(track.latitude(i), last[1]);
+            last[2] = out.putDelta(track.longitude(i), last[2]);
+            last[3] = putValue(out, track.altitude(i), 0, flags, last[3]);
+            last[4] = putValue(out, track.distance(i), 1, flags, last[4]);
+            last[5] = putValue(out, track.speed(i), 2, flags, last[5]);
+        }
+        return Arrays.copyOf(out._bytes, out._size);
+    }
+
+    private static long putValue(Out out, double value, int field, int flags, long last) {
+        if((flags & (1 << field)) == 0) {
+            out.putLong(Double.doubleToRawLongBits(value));
+            return last;
+        }
+        return out.putDelta(Math.round((value + OFFSET[field]) * SCALE[field]), last);
+    }
+
+    private static double value(long raw, int field) {
+        return raw / SCALE[field] - OFFSET[field];
+    }
+
+    /**
+     * True if every value of the field survives scaling and back.
+     */
+    private static boolean scalable(ZwiftTrack track, int field) {
+        for(int i = 0; i < track.size(); i++) {
+            double v = field == 0 ? track.altitude(i) : field == 1 ? track.distance(i) : track.speed(i);
+            double scaled = (v + OFFSET[field]) * SCALE[field];
+            if(Math.abs(scaled) >= 1L << 52 || value(Math.round(scaled), field) != v) return false;
+        }
+        return true;
+    }
+
+    /**
+     * A growable big endian byte array.
+     */
+    private static final class Out {
+        byte[] _bytes;
+        int _size;
+
+        Out(int capacity) {
+            _bytes = new byte[capacity];
+        }
+
+        private void ensure(int n) {
+            if(_size + n > _bytes.length) _bytes = Arrays.copyOf(_bytes, Math.max(_size + n, _bytes.length * 2));
+        }
+
+        void putShort(int v) {
+            ensure(2);
+            _bytes[_size++] = (byte) (v >> 8);
+            _bytes[_size++] = (byte) v;
+        }
+
+        void putInt(int v) {
+            ensure(4);
+            putInt(_bytes, _size, v);
+            _size += 4;
+        }
+
+        static void putInt(byte[] bytes, int at, int v) {
+            bytes[at] = (byte) (v >> 24);
+            bytes[at + 1] = (byte) (v >> 16);
+            bytes[at + 2] = (byte) (v >> 8);
+            bytes[at + 3] = (byte) v;
+        }
+
+        void putLong(long v) {
+            putInt((int) (v >> 32));
+            putInt((int) v);
+        }
+
+        /**
+         * Writes the zigzag varint of value - last and returns value.
+         */
+        long putDelta(long value, long last) {
+            long delta = value - last;
+            long v = (delta << 1) ^ (delta >> 63);
+            ensure(10);
+            while((v & ~0x7FL) != 0) {
+                _bytes[_size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            _bytes[_size++] = (byte) v;
+            return value;
+        }
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public int segments() {
+        return _segmentStart.length;
+    }
+
+    /**
+     * Decodes one block into the columns, from index 0.
+     */
+    private int decodeBlock(int block, int[] timestamp, int[] latitude, int[] longitude, 
+            double[] altitude, double[] distance, double[] speed) {
+        ByteBuffer in = _buf.duplicate();
+        in.position(_blockOffset[block]);
+        int n = Math.min(_blockSize, _size - block * _blockSize);
+        long[] last = new long[6];
+        for(int i = 0; i < n; i++) {
+            timestamp[i] = (int) (last[0] = getDelta(in, last[0]));
+            latitude[i] = (int) (last[1] = getDelta(in, last[1]));
+            longitude[i] = (int) (last[2] = getDelta(in, last[2]));
+            for(int f = 0; f < 3; f++) {
+                double v;
+                if((_flags & (1 << f)) == 0) v = Double.longBitsToDouble(in.getLong());
+                else v = value(last[3 + f] = getDelta(in, last[3 + f]), f);
+                if(f == 0) altitude[i] = v;
+                else if(f == 1) distance[i] = v;
+                else speed[i] = v;
+            }
+        }
+        return n;
+    }
+
+    private static long getDelta(ByteBuffer in, long last) {
+        long v = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if(b >= 0) break;
+            if(shift > 63) throw new IllegalStateException("Track file is corrupt");
+        }
+        return last + ((v >>> 1) ^ -(v & 1));
+    }
+
+    /**
+     * Loads the whole track.
+     */
+    public ZwiftTrack toTrack() throws IOException {
+        ZwiftTrack track = new ZwiftTrack();
+        for(int start : _segmentStart) track.addSegment(start);
+        int[] timestamp = new int[_blockSize], latitude = new int[_blockSize], longitude = new int[_blockSize];
+        double[] altitude = new double[_blockSize], distance = new double[_blockSize], speed = new double[_blockSize];
+        try {
+            for(int b = 0; b < _blockOffset.length; b++) {
+                int n = decodeBlock(b, timestamp, latitude, longitude, altitude, distance, speed);
+                for(int i = 0; i < n; i++) 
+                    track.add(timestamp[i], altitude[i], distance[i], latitude[i], longitude[i], speed[i]);
+            }
+        }
+        catch (BufferUnderflowException | IllegalStateException e) {
+            throw new IOException("Track file is corrupt", e);
+        }
+        track.seal();
+        return track;
+    }
+
+    /**
+     * A cursor that decodes only the blocks it seeks into, so it is cheap to
+     * open however long the track. A merge with one track file as its Zwift
+     * input reads it this way. Throws {@link IllegalStateException} if it
+     * finds the file corrupt.
+     */
+    public ZwiftCursor cursor() {
+        return new ZwiftCursor() {
+            final int[] _timestamp = new int[_blockSize], _latitude = new int[_blockSize], _longitude = new int[_blockSize];
+            final double[] _altitude = new double[_blockSize], _distance = new double[_blockSize], _speed = new double[_blockSize];
+            int _block = -1, _n, _index;
+
+            @Override
+            public boolean seek(int timestamp) {
+                int block = Arrays.binarySearch(_blockTimestamp, timestamp);
+                if(block < 0) block = -block - 2;
+                if(block < 0) return false;
+                if(block != _block) {
+                    try {
+                        _n = decodeBlock(block, _timestamp, _latitude, _longitude, _altitude, _distance, _speed);
+                    }
+                    catch (BufferUnderflowException e) {
+                        throw new IllegalStateException("Track file is corrupt", e);
+                    }
+                    _block = block;
+                }
+                int index = Arrays.binarySearch(_timestamp, 0, _n, timestamp);
+                if(index < 0) return false;
+                _index = index;
+                return true;
+            }
+
+            @Override
+            public int segment() {
+                int segment = Arrays.binarySearch(_segmentStart, _timestamp[_index]);
+                return segment >= 0 ? segment : Math.max(0, -segment - 2);
+            }
+
+            @Override
+            public double altitude() {
+                return _altitude[_index];
+            }
+
+            @Override
+            public double distance() {
+                return _distance[_index];
+            }
+
+            @Override
+            public int latitude() {
+                return _latitude[_index];
+            }
+
+            @Override
+            public int longitude() {
+                return _longitude[_index];
+            }
+
+            @Override
+            public double speed() {
+                return _speed[_index];
+            }
+        };
+    }
+
+    static boolean isTrackFile(String path) {
+        return path.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Writes a {@code .ztrk} sidecar next to each Zwift file.
+     */
+    public static void main(String[] args) {
+        List<String> paths = new ArrayList<>();
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("--extract")) continue;
+            if(args[i].startsWith("--")) {
+                System.err.println("Usage: zmerge --extract <zwift.fit> [<zwift.fit> ...]");
+                System.exit(2);
+            }
+            paths.add(args[i]);
+        }
+        int failed = 0;
+        for(String path : paths) {
+            String out = path.replaceFirst("(?i)\\.fit$", "") + EXTENSION;
+            try {
+                Merge.validatePath(path);
+                List<String> warnings = new ArrayList<>();
+                ZwiftTrack track = Merge.decodeZwiftTrack(path, Merge.CrcPolicy.WARN, warnings);
+                write(track, Paths.get(out));
+                for(String warning : warnings) System.err.println("WARN   " + path + ": " + warning.replace('\n', ' '));
+                System.out.println("OK     " + out + " " + track.size() + " records, " 
+                        + Files.size(Paths.get(out)) * 100 / Math.max(1, Files.size(Paths.get(path))) + "% of FIT size");
+            }
+            catch (MergeException | IOException e) {
+                failed++;
+                System.out.println("FAILED " + path + ": " + String.valueOf(e.getMessage()).replace('\n', ' '));
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import com.garmin.fit.Manufacturer;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Watch folder mode. Waits for new FIT files in the Zwift and Garmin folders
+ * and merges each Garmin ride with the Zwift files that overlap it in time.
+ * <p>
+ * A file is only read once its size and modified time have stayed the same
+ * for the settle time, so files still being written or synced are left
+ * alone. Nothing is polled while there is nothing pending, so an idle watch
+ * just sits blocked on the file system.
+ *
+ * @author Nicholas Rodie
+ */
+public class Watch {
+
+    private static final String USAGE = 
+            "Usage: zmerge --watch <zwift folder> <garmin folder> --out <folder> [--settle <seconds>]\n"
+            + "       [--crc warn|abort] [--index <file>] [--cache <folder> [--cache-size <MB>]]\n"
+            + "       zmerge --pair <zwift folder> <garmin folder> --out <folder> [--index <file>]";
+
+    /** zwift writes the ride here until it is saved */
+    private static final String IN_PROGRESS = "inprogressactivity.fit";
+    /** appended to the garmin file name for the merged file */
+    private static final String SUFFIX = "_zmerge.fit";
+    /** on start up only files this recent are read, so an old archive is not decoded */
+    private static final long RECENT_MILLIS = TimeUnit.DAYS.toMillis(2);
+
+    private final List<Path> _dirs;
+    private final Path _outDir;
+    private final long _settleNanos;
+    private Merge.CrcPolicy _crcPolicy;
+    private FitIndex _index;
+    private MergeCache _cache;
+
+    // files seen changing and not yet read
+    private final Map<Path, Pending> _pending;
+    private final Map<Path, FitInfo> _zwift, _garmin;
+    // each file as it was when read
+    private final Map<Path, Stamp> _stamps;
+    // the files each garmin file was last merged with, itself included, as they were then
+    private final Map<Path, Map<Path, Stamp>> _merged;
+
+    private static final class Pending {
+        long _size, _modified, _changed;
+    }
+
+    private static final class Stamp {
+        final long _size, _modified;
+
+        Stamp(BasicFileAttributes attrs) {
+            _size = attrs.size();
+            _modified = attrs.lastModifiedTime().toMillis();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Stamp && ((Stamp) other)._size == _size && ((Stamp) other)._modified == _modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(_size) * 31 + Long.hashCode(_modified);
+        }
+    }
+
+    public Watch(Path zwiftDir, Path garminDir, Path outDir, long settleMillis) {
+        _dirs = new ArrayList<>();
+        _dirs.add(zwiftDir.toAbsolutePath().normalize());
+        if(!_dirs.contains(garminDir.toAbsolutePath().normalize())) 
+            _dirs.add(garminDir.toAbsolutePath().normalize());
+        _outDir = outDir.toAbsolutePath().normalize();
+        if(_dirs.contains(_outDir)) 
+            throw new IllegalArgumentException("The output folder must not be a watched folder");
+        _settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+        _crcPolicy = Merge.CrcPolicy.WARN;
+        _pending = new HashMap<>();
+        _zwift = new HashMap<>();
+        _garmin = new HashMap<>();
+        _stamps = new HashMap<>();
+        _merged = new HashMap<>();
+    }
+
+    public void setCrcPolicy(Merge.CrcPolicy crcPolicy) {
+        _crcPolicy = crcPolicy;
+    }
+
+    /**
+     * Looks files up in an index instead of decoding them every time the
+     * watch starts.
+     */
+    public void setIndex(FitIndex index) {
+        _index = index;
+    }
+
+    /**
+     * Keeps decoded Zwift files in a cache, so a ride that is merged again
+     * when another Zwift file turns up only decodes the new file.
+     */
+    public void setCache(MergeCache cache) {
+        _cache = cache;
+    }
+
+    /**
+     * Watches until the thread is interrupted.
+     */
+    public void run() throws IOException, InterruptedException {
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            Map<WatchKey, Path> keys = new HashMap<>();
+            for(Path dir : _dirs) {
+                keys.put(dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, 
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+            }
+            for(Path dir : _dirs) scan(dir, System.currentTimeMillis() - RECENT_MILLIS);
+            log("Watching " + _dirs + ", merging into " + _outDir);
+
+            while(true) {
+                WatchKey key;
+                if(_pending.isEmpty()) {
+                    key = service.take();
+                }
+                else {
+                    key = service.poll(Math.max(1, untilSettled()), TimeUnit.NANOSECONDS);
+                }
+                // drain everything already queued before reading files
+                while(key != null) {
+                    Path dir = keys.get(key);
+                    for(WatchEvent<?> event : key.pollEvents()) {
+                        if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            if(dir != null) {
+                                prune(dir);
+                                scan(dir, 0);
+                            }
+                        }
+                        else if(dir != null && event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            forget(dir.resolve((Path) event.context()));
+                        }
+                        else if(dir != null) {
+                            touch(dir.resolve((Path) event.context()));
+                        }
+                    }
+                    if(!key.reset()) {
+                        keys.remove(key);
+                        log("No longer watching " + dir);
+                        if(keys.isEmpty()) return;
+                    }
+                    key = service.poll();
+                }
+                settle();
+            }
+        }
+    }
+
+    private void scan(Path dir, long since) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for(Path path : files) {
+                try {
+                    if(Files.getLastModifiedTime(path).toMillis() >= since) touch(path);
+                }
+                catch (NoSuchFileException e) {
+                    // gone already
+                }
+            }
+        }
+    }
+
+    /**
+     * Notes that a file has changed, restarting its settle time.
+     */
+    private void touch(Path path) {
+        if(!isInput(path)) return;
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch (IOException e) {
+            return;
+        }
+        Pending pending = _pending.get(path);
+        if(pending == null) {
+            pending = new Pending();
+            _pending.put(path, pending);
+        }
+        pending._size = attrs.size();
+        pending._modified = attrs.lastModifiedTime().toMillis();
+        pending._changed = System.nanoTime();
+    }
+
+    /**
+     * Drops a deleted file, so a long running watch doesn't hold on to
+     * every file it has ever seen.
+     */
+    private void forget(Path path) {
+        _pending.remove(path);
+        _zwift.remove(path);
+        _garmin.remove(path);
+        _stamps.remove(path);
+        _merged.remove(path);
+    }
+
+    /**
+     * Forgets the files in a folder that are gone, for when the events
+     * saying so were lost.
+     */
+    private void prune(Path dir) {
+        Set<Path> known = new HashSet<>(_stamps.keySet());
+        known.addAll(_pending.keySet());
+        for(Path path : known) 
+            if(dir.equals(path.getParent()) && !Files.exists(path)) forget(path);
+    }
+
+    private static boolean isInput(Path path) {
+        String name = path.getFileName().toString().toLowerCase();
+        return name.endsWith(".fit") && !name.equals(IN_PROGRESS) && !name.endsWith(SUFFIX) && !name.startsWith(".");
+    }
+
+    static Path mergePath(Path outDir, Path garmin) {
+        String name = garmin.getFileName().toString();
+        return outDir.resolve(name.substring(0, name.length() - 4) + SUFFIX);
+    }
+
+    private long untilSettled() {
+        long now = System.nanoTime(), wait = _settleNanos;
+        for(Pending pending : _pending.values()) wait = Math.min(wait, pending._changed + _settleNanos - now);
+        return wait;
+    }
+
+    /**
+     * Reads every pending file that has settled and merges whatever it pairs
+     * with.
+     */
+    private void settle() {
+        long now = System.nanoTime();
+        Set<Path> garmins = new TreeSet<>();
+        boolean read = false;
+        Iterator<Map.Entry<Path, Pending>> it = _pending.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Path, Pending> entry = it.next();
+            Path path = entry.getKey();
+            Pending pending = entry.getValue();
+            if(now - pending._changed < _settleNanos) continue;
+
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            }
+            catch (IOException e) {
+                it.remove();
+                continue;
+            }
+            // some writers do not raise an event for every write
+            if(attrs.size() != pending._size || attrs.lastModifiedTime().toMillis() != pending._modified) {
+                pending._size = attrs.size();
+                pending._modified = attrs.lastModifiedTime().toMillis();
+                pending._changed = now;
+                continue;
+            }
+            it.remove();
+
+            FitInfo info;
+            try {
+                info = _index != null ? _index.get(path) : FitInfo.read(path);
+                read = true;
+            }
+            catch (IOException | RuntimeException e) {
+                // a later write will bring it back
+                log("Skipped " + path + ": " + e.getMessage());
+                continue;
+            }
+            _zwift.remove(path);
+            _garmin.remove(path);
+            if(info.getRecords() == 0) continue;
+            _stamps.put(path, new Stamp(attrs));
+            if(info.getManufacturer() == Manufacturer.ZWIFT) {
+                _zwift.put(path, info);
+                for(Map.Entry<Path, FitInfo> garmin : _garmin.entrySet()) 
+                    if(garmin.getValue().overlaps(info)) garmins.add(garmin.getKey());
+            }
+            else {
+                _garmin.put(path, info);
+                garmins.add(path);
+            }
+        }
+        if(read && _index != null) {
+            try {
+                _index.save();
+            }
+            catch (IOException e) {
+                log("Could not save index: " + e.getMessage());
+            }
+        }
+        for(Path garmin : garmins) pair(garmin);
+    }
+
+    /**
+     * Merges a garmin file with every zwift file that overlaps it, unless it
+     * has already been merged with exactly those files and none of them
+     * have changed since.
+     */
+    private void pair(Path garmin) {
+        FitInfo info = _garmin.get(garmin);
+        // zwift files in ride order
+        List<Map.Entry<Path, FitInfo>> matches = new ArrayList<>();
+        for(Map.Entry<Path, FitInfo> zwift : _zwift.entrySet()) 
+            if(zwift.getValue().overlaps(info)) matches.add(zwift);
+        if(matches.isEmpty()) return;
+        matches.sort((a, b) -> Integer.compare(a.getValue().getStart(), b.getValue().getStart()));
+        Set<Path> zwifts = new LinkedHashSet<>();
+        for(Map.Entry<Path, FitInfo> match : matches) zwifts.add(match.getKey());
+        Map<Path, Stamp> inputs = new HashMap<>();
+        inputs.put(garmin, _stamps.get(garmin));
+        for(Path zwift : zwifts) inputs.put(zwift, _stamps.get(zwift));
+        if(inputs.equals(_merged.get(garmin))) return;
+
+        Path out = mergePath(_outDir, garmin);
+        // merged before this watch started
+        if(!_merged.containsKey(garmin) && isNewer(out, garmin, zwifts)) {
+            _merged.put(garmin, inputs);
+            return;
+        }
+        List<String> zwiftPaths = new ArrayList<>();
+        for(Path zwift : zwifts) zwiftPaths.add(zwift.toString());
+        Merge merge = new Merge(garmin.toString(), zwiftPaths, out.toString());
+        merge.setCrcPolicy(_crcPolicy);
+        merge.setCache(_cache);
+        try {
+            merge.run();
+            _merged.put(garmin, inputs);
+            for(String warning : merge.getWarnings()) log("WARN   " + out + ": " + warning.replace('\n', ' '));
+            log("OK     " + out + " from " + garmin + " + " + zwifts);
+        }
+        catch (RuntimeException e) {
+            // not retried until one of its files changes
+            _merged.put(garmin, inputs);
+            String message = e instanceof MergeException ? e.getMessage() : e.toString();
+            log("FAILED " + out + ": " + message.replace('\n', ' '));
+        }
+    }
+
+    /**
+     * Pairs every Garmin file under the folders with the Zwift files that
+     * overlap it and prints a batch manifest line for each pair. With an
+     * index only new or changed files are decoded.
+     */
+    static void pairAll(List<Path> dirs, Path outDir, FitIndex index) throws IOException {
+        Map<Path, List<Path>> pairs = pairFiles(findInputs(dirs), index, skipped -> System.err.println("Skipped " + skipped));
+        for(Map.Entry<Path, List<Path>> pair : pairs.entrySet()) {
+            StringBuilder line = new StringBuilder();
+            line.append(mergePath(outDir, pair.getKey())).append('\t').append(pair.getKey());
+            for(Path zwift : pair.getValue()) line.append('\t').append(zwift);
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * The FIT files that could be merged under each folder, or the file
+     * itself for a file.
+     */
+    static List<Path> findInputs(List<Path> paths) throws IOException {
+        List<Path> inputs = new ArrayList<>();
+        for(Path path : paths) {
+            try (Stream<Path> walk = Files.walk(path)) {
+                walk.filter(file -> Files.isRegularFile(file) && isInput(file)).forEach(inputs::add);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Pairs each Garmin file with the Zwift files that overlap it, in ride
+     * order. Garmin files without any are left out, and files that can't be
+     * read are passed to skipped.
+     */
+    static Map<Path, List<Path>> pairFiles(List<Path> paths, FitIndex index, Consumer<String> skipped) throws IOException {
+        List<Path> zwiftPaths = new ArrayList<>(), garminPaths = new ArrayList<>();
+        List<FitInfo> zwiftInfos = new ArrayList<>(), garminInfos = new ArrayList<>();
+        for(Path path : new TreeSet<>(paths)) {
+            FitInfo info;
+            try {
+                info = index != null ? index.get(path) : FitInfo.read(path);
+            }
+            catch (IOException | RuntimeException e) {
+                skipped.accept(path + ": " + e.getMessage());
+                continue;
+            }
+            if(info.getRecords() == 0) continue;
+            if(info.getManufacturer() == Manufacturer.ZWIFT) {
+                zwiftPaths.add(path);
+                zwiftInfos.add(info);
+            }
+            else {
+                garminPaths.add(path);
+                garminInfos.add(info);
+            }
+        }
+        if(index != null) {
+            index.prune();
+            index.save();
+        }
+
+        // zwift files by start time, so each garmin ride only looks at a short run of them
+        Integer[] order = new Integer[zwiftInfos.size()];
+        int longest = 0;
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+            longest = Math.max(longest, zwiftInfos.get(i).getEnd() - zwiftInfos.get(i).getStart());
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(zwiftInfos.get(a).getStart(), zwiftInfos.get(b).getStart()));
+        int[] starts = new int[order.length];
+        for(int i = 0; i < order.length; i++) starts[i] = zwiftInfos.get(order[i]).getStart();
+
+        Map<Path, List<Path>> pairs = new LinkedHashMap<>();
+        for(int g = 0; g < garminPaths.size(); g++) {
+            FitInfo garmin = garminInfos.get(g);
+            // first zwift file that starts after the ride ends
+            int hi = upperBound(starts, garmin.getEnd());
+            int lo = hi;
+            while(lo > 0 && starts[lo - 1] >= garmin.getStart() - longest) lo--;
+            List<Path> zwifts = new ArrayList<>();
+            for(int z = lo; z < hi; z++) {
+                if(zwiftInfos.get(order[z]).overlaps(garmin)) zwifts.add(zwiftPaths.get(order[z]));
+            }
+            if(!zwifts.isEmpty()) pairs.put(garminPaths.get(g), zwifts);
+        }
+        return pairs;
+    }
+
+    private static int upperBound(int[] values, int value) {
+        int lo = 0, hi = values.length;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(values[mid] <= value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static boolean isNewer(Path out, Path garmin, Set<Path> zwifts) {
+        try {
+            long modified = Files.getLastModifiedTime(out).toMillis();
+            if(Files.getLastModifiedTime(garmin).toMillis() > modified) return false;
+            for(Path zwift : zwifts) 
+                if(Files.getLastModifiedTime(zwift).toMillis() > modified) return false;
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void log(String message) {
+        System.out.println(message);
+    }
+
+    public static void main(String[] args) {
+        Path zwiftDir = null, garminDir = null, outDir = null, indexFile = null, cacheDir = null;
+        long cacheSize = MergeCache.DEFAULT_SIZE_MB;
+        boolean pair = false;
+        long settle = 10;
+        Merge.CrcPolicy crcPolicy = Merge.CrcPolicy.WARN;
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--watch":
+                    case "--pair":
+                        pair = args[i].equals("--pair");
+                        zwiftDir = Paths.get(args[++i]);
+                        garminDir = Paths.get(args[++i]);
+                        break;
+                    case "--out":
+                        outDir = Paths.get(args[++i]);
+                        break;
+                    case "--settle":
+                        settle = Long.parseLong(args[++i]);
+                        break;
+                    case "--crc":
+                        crcPolicy = Merge.CrcPolicy.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "--index":
+                        indexFile = Paths.get(args[++i]);
+                        break;
+                    case "--cache":
+                        cacheDir = Paths.get(args[++i]);
+                        break;
+                    case "--cache-size":
+                        cacheSize = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if(zwiftDir == null || outDir == null) throw new IllegalArgumentException("Missing folders or --out");
+            if(settle < 0) throw new IllegalArgumentException("settle must not be negative");
+        }
+        catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        try {
+            FitIndex index = indexFile != null ? new FitIndex(indexFile) : null;
+            if(pair) {
+                pairAll(Arrays.asList(zwiftDir, garminDir), outDir.toAbsolutePath(), index);
+                return;
+            }
+            Files.createDirectories(outDir);
+            Watch watch = new Watch(zwiftDir, garminDir, outDir, TimeUnit.SECONDS.toMillis(settle));
+            watch.setCrcPolicy(crcPolicy);
+            watch.setIndex(index);
+            if(cacheDir != null) watch.setCache(new MergeCache(cacheDir, cacheSize << 20));
+            watch.run();
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
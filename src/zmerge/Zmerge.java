@@ -23,31 +23,15 @@
  */
 package zmerge;
 
-import com.garmin.fit.Decode;
-import com.garmin.fit.FileEncoder;
-import com.garmin.fit.FileIdMesg;
-import com.garmin.fit.Fit;
-import com.garmin.fit.FitRuntimeException;
-import com.garmin.fit.LapMesg;
-import com.garmin.fit.Manufacturer;
-import com.garmin.fit.Mesg;
-import com.garmin.fit.MesgDefinition;
-import com.garmin.fit.MesgDefinitionListener;
-import com.garmin.fit.MesgListener;
-import com.garmin.fit.MesgNum;
-import com.garmin.fit.RecordMesg;
-import com.garmin.fit.SessionMesg;
-import com.garmin.fit.SubSport;
 import java.awt.event.*;
 import java.awt.Color;
-import java.io.IOException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
 import javax.swing.*;
 import javax.swing.filechooser.*;
 import javax.swing.border.*;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 /**
  *
@@ -58,27 +42,22 @@ public class Zmerge extends JPanel implements ActionListener, FocusListener {
     private static final String APP_NAME = "Zmerge";
     private static final String VERSION = "0.1.0";
     private static final long serialVersionUID = 2829528799561163826L;  
-    private static final int ZWIFT_FILES = 3;
-    
-    private enum FIELD {
-        ALTITUDE,
-        DISTANCE,
-        LATITUDE,
-        LONGITUDE,
-        SPEED
-     };
     
     private enum ACTION {
         OPEN_FILE,
+        OPEN_FILES,
         SAVE_FILE
     };
 
-    private JButton _gFileBtn, _zFileBtn1, _zFileBtn2, _zFileBtn3, _mFileBtn, _mergeBtn, _resetBtn, _quitBtn;
+    private JButton _gFileBtn, _zFileBtn1, _zFileBtn2, _zFileBtn3, _mFileBtn, _mergeBtn, _cancelBtn, _resetBtn, _queueBtn, _quitBtn;
     private JTextArea _gText, _zText1, _zText2, _zText3, _mText;
+    private JProgressBar _progress;
+    private JLabel _status;
+    private Timer _timer;
     private String _gPath, _zPath1, _zPath2, _zPath3, _mPath;
-    private HashMap<Integer, HashMap<Enum, Double>> _records;
-    private Integer[] _fileTimestamp;
-    private int _fileIndex;
+    private Merge _merge;
+    private long _mergeStart;
+    private MergeQueue _queue;
     
     @Override
     public void focusGained(FocusEvent e) {}
@@ -113,21 +92,21 @@ public class Zmerge extends JPanel implements ActionListener, FocusListener {
             }
         }
         else if(e.getSource() == _zFileBtn1) {
-            String filePath = selectFile(ACTION.OPEN_FILE);
+            String filePath = selectFile(ACTION.OPEN_FILES);
             if(filePath != null) {
                 _zText1.setText(filePath);
                 _zText1.setCaretPosition(0);
             }
         }
         else if(e.getSource() == _zFileBtn2) {
-            String filePath = selectFile(ACTION.OPEN_FILE);
+            String filePath = selectFile(ACTION.OPEN_FILES);
             if(filePath != null) {
                 _zText2.setText(filePath);
                 _zText2.setCaretPosition(0);
             }
         }
         else if(e.getSource() == _zFileBtn3) {
-            String filePath = selectFile(ACTION.OPEN_FILE);
+            String filePath = selectFile(ACTION.OPEN_FILES);
             if(filePath != null) {
                 _zText3.setText(filePath);
                 _zText3.setCaretPosition(0);
@@ -143,6 +122,16 @@ public class Zmerge extends JPanel implements ActionListener, FocusListener {
         else if(e.getSource() == _mergeBtn) {
             merge();
         } 
+        else if(e.getSource() == _cancelBtn) {
+            if(_merge != null) {
+                _merge.cancel();
+                _cancelBtn.setEnabled(false);
+                _status.setText("Cancelling...");
+            }
+        } 
+        else if(e.getSource() == _timer) {
+            showProgress();
+        } 
         else if(e.getSource() == _resetBtn) {
             _gText.setText(null);
             _zText1.setText(null);
@@ -150,6 +139,14 @@ public class Zmerge extends JPanel implements ActionListener, FocusListener {
             _zText3.setText(null);
             _mText.setText(null);
         } 
+        else if(e.getSource() == _queueBtn) {
+            // one queue for the life of the app
+            if(_queue == null) {
+                _queue = new MergeQueue();
+                _queue.createGui();
+            }
+            else _queue.showGui();
+        } 
         else if(e.getSource() == _quitBtn) {
             System.exit(0);
         }
@@ -157,7 +154,6 @@ public class Zmerge extends JPanel implements ActionListener, FocusListener {
 
     private void error(String message) {
         JOptionPane.showMessageDialog(this, message, APP_NAME, JOptionPane.ERROR_MESSAGE);
-        throw new RuntimeException(message);
     }
 
     private void warn(String message) {
@@ -219,6 +215,21 @@ public class Zmerge extends JPanel implements ActionListener, FocusListener {
         _mergeBtn = new JButton("Merge");        
         _mergeBtn.addActionListener(this);
 
+        _cancelBtn = new JButton("Cancel");        
+        _cancelBtn.addActionListener(this);
+        _cancelBtn.setEnabled(false);
+
+        _progress = new JProgressBar(0, 1000);
+        _progress.setStringPainted(true);
+        _progress.setString("");
+
+        _status = new JLabel();
+
+        _timer = new Timer(250, this);
+
+        _queueBtn = new JButton("Queue...");
+        _queueBtn.addActionListener(this);
+
         _quitBtn = new JButton("Quit");        
         _quitBtn.addActionListener(this);
 
@@ -234,7 +245,11 @@ public class Zmerge extends JPanel implements ActionListener, FocusListener {
         gui.add(zPane3);        
         gui.add(_mFileBtn);
         gui.add(mPane);        
+        gui.add(_progress);
+        gui.add(_queueBtn);
+        gui.add(_status);
         gui.add(_mergeBtn);
+        gui.add(_cancelBtn);
         gui.add(_resetBtn);
         gui.add(_quitBtn);
         
@@ -257,53 +272,20 @@ public class Zmerge extends JPanel implements ActionListener, FocusListener {
         zPane3.setBounds(2 * px + fbw, 4 * py + 3 * bh, ww - bx - fbw - 3 * px, bh);
         _mFileBtn.setBounds(px, 5 * py + 4 * bh, fbw, bh);
         mPane.setBounds(2 * px + fbw, 5 * py + 4 * bh, ww - bx - fbw - 3 * px, bh);
-        _mergeBtn.setBounds(ww - 3 * (abw + px) - bx - 1, 6 * py + 5 * bh, abw, bh);
-        _resetBtn.setBounds(ww - 2 * (abw + px) - bx - 1, 6 * py + 5 * bh, abw, bh);
-        _quitBtn.setBounds(ww - abw - px - bx - 1, 6 * py + 5 * bh, abw, bh);
-        gui.setSize(ww, by + 7 * py + 6 * bh);
+        _progress.setBounds(px, 6 * py + 5 * bh, ww - abw - bx - 3 * px - 1, bh);
+        _queueBtn.setBounds(ww - abw - px - bx - 1, 6 * py + 5 * bh, abw, bh);
+        _status.setBounds(px, 7 * py + 6 * bh, ww - 4 * (abw + px) - bx - 2 * px - 1, bh);
+        _mergeBtn.setBounds(ww - 4 * (abw + px) - bx - 1, 7 * py + 6 * bh, abw, bh);
+        _cancelBtn.setBounds(ww - 3 * (abw + px) - bx - 1, 7 * py + 6 * bh, abw, bh);
+        _resetBtn.setBounds(ww - 2 * (abw + px) - bx - 1, 7 * py + 6 * bh, abw, bh);
+        _quitBtn.setBounds(ww - abw - px - bx - 1, 7 * py + 6 * bh, abw, bh);
+        gui.setSize(ww, by + 8 * py + 7 * bh);
         
         gui.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         gui.setLocationRelativeTo(null); 
         gui.setVisible(true);
     }    
 
-    private void checkInStream(String path) {
-        InputStream stream;
-        Decode decode;
-        try {            
-            validatePath(path);            
-            stream = new FileInputStream(path);
-            decode = new Decode();
-            if(!decode.checkFileIntegrity((InputStream) stream)) 
-                warn("\"" + path + "\"\nFIT file integrity check failed. Continuing...");
-            stream.close();            
-        }
-        catch (FitRuntimeException | IOException e) {
-            error("\"" + path + "\"\nError reading file.\n" + e.getMessage());  
-            throw new RuntimeException();
-        }
-    } 
-    
-    private void checkOutStream(String path) {        
-        File file;
-        FileEncoder encoder;
-        FileIdMesg fileIdMesg;
-        try {            
-            validatePath(path);
-            file = new File(path);
-            if(file.exists() && !select("\"" + path + "\"\nThe merge file already exists. Do you want to overwrite?")) 
-                throw new RuntimeException(); 
-            encoder = new FileEncoder(new File(path), Fit.ProtocolVersion.V2_0);
-            fileIdMesg = new FileIdMesg();
-            encoder.write(fileIdMesg);
-            encoder.close();
-        }
-        catch (RuntimeException e) {
-            error("\"" + path + "\"\nUnable to write file.\n" + e.getMessage());  
-            throw new RuntimeException();
-        }			
-    }
-
     private String selectFile(ACTION action) {
         JFileChooser fc = new JFileChooser();  
         fc.setFileFilter(new FileFilter() {
@@ -317,9 +299,19 @@ public class Zmerge extends JPanel implements ActionListener, FocusListener {
                 else return file.getName().toLowerCase().endsWith(".fit");
             }
         });    
+        fc.setMultiSelectionEnabled(action == ACTION.OPEN_FILES);
         if(action == ACTION.OPEN_FILE && fc.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
             return fc.getSelectedFile().getPath();
         }
+        else if(action == ACTION.OPEN_FILES && fc.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
+            // several zwift files can share a slot, e.g. after restarting Zwift a few times
+            StringBuilder paths = new StringBuilder();
+            for(File file : fc.getSelectedFiles()) {
+                if(paths.length() > 0) paths.append(File.pathSeparator);
+                paths.append(file.getPath());
+            }
+            return paths.toString();
+        }
         else if(action == ACTION.SAVE_FILE && fc.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) {
             String path = fc.getSelectedFile().getPath();
             if(path.toLowerCase().endsWith(".fit")) return path;
@@ -328,317 +320,123 @@ public class Zmerge extends JPanel implements ActionListener, FocusListener {
         else return null;
     }    
 
-    private void validatePath(String path) {
-        if(path.isEmpty()) {
-            info("You must set the file paths.");
-            throw new RuntimeException();
-        }
-        else if(!path.toLowerCase().endsWith(".fit")) {
-            info("\"" + path + "\"\nFilenames must end with .fit extension.");
-            throw new RuntimeException();
-        }
-    }    
-
-    private void getZwiftData() {        
-        class Listener implements MesgListener {  
-            
-            @Override
-            public void onMesg(Mesg mesg) { 
-
-                int type = mesg.getNum(); 
-                switch (type) {
-                    
-                    case MesgNum.RECORD:
-                    
-                        // make sure not to read any records that don't have required data
-                        Double altitude = mesg.getFieldDoubleValue(RecordMesg.AltitudeFieldNum);
-                        if(altitude == null) return;
-                        Double distance = mesg.getFieldDoubleValue(RecordMesg.DistanceFieldNum);
-                        if(distance == null) return;
-                        Double latitude = mesg.getFieldDoubleValue(RecordMesg.PositionLatFieldNum);
-                        if(latitude == null) return;
-                        Double longitude = mesg.getFieldDoubleValue(RecordMesg.PositionLongFieldNum);
-                        if(longitude == null) return;
-                        Double speed = mesg.getFieldDoubleValue(RecordMesg.SpeedFieldNum);
-                        if(speed == null) return;
-
-                        // save selected fields for each timestamp
-                        Integer timestamp = mesg.getFieldIntegerValue(RecordMesg.TimestampFieldNum);
-                        HashMap<Enum, Double> zData = new HashMap<>();  
-                        _records.put(timestamp, zData);
-                        zData.put(FIELD.ALTITUDE, altitude);
-                        zData.put(FIELD.DISTANCE, distance);            
-                        zData.put(FIELD.LATITUDE, latitude);
-                        zData.put(FIELD.LONGITUDE, longitude);
-                        zData.put(FIELD.SPEED, speed);                        
-                        break;
-                        
-                    case MesgNum.SESSION: 
-                        
-                            // save session timestamp to join zwift files later if required
-                            _fileTimestamp[_fileIndex] = mesg.getFieldIntegerValue(SessionMesg.TimestampFieldNum);
-                            _fileIndex++;                            
-                            break;
-                    
-                    case MesgNum.FILE_ID:
+    public void merge() {
 
-                        Integer man = mesg.getFieldIntegerValue(FileIdMesg.ManufacturerFieldNum);
-                        if(man == null || man != Manufacturer.ZWIFT)
-                            throw new FitRuntimeException("Manufacturer does not match Zwift."); 
-                        break;
+        _gPath = _gText.getText();
+        _zPath1 = _zText1.getText();
+        _zPath2 = _zText2.getText();
+        _zPath3 = _zText3.getText();
+        _mPath = _mText.getText(); 
 
-                    default:
-                        break;
-                }
-            }
+        // each slot may hold several zwift files, their order doesn't matter
+        List<String> zPaths = new ArrayList<>();
+        for(String slot : new String[] {_zPath1, _zPath2, _zPath3}) {
+            for(String path : slot.split(File.pathSeparator)) 
+                if(!path.trim().isEmpty()) zPaths.add(path.trim());
         }
-
-        _records = new HashMap<>();
-        _fileTimestamp = new Integer[ZWIFT_FILES + 1];
-        _fileIndex = 0;
-        InputStream stream; 
-        Decode decode = new Decode();
-        Listener listener = new Listener();
-        decode.addListener((MesgListener) listener);        
-        
-        try {     
-            stream = new FileInputStream(_zPath1);            
-            decode.read(stream);
-            stream.close(); 
-            if(!_zPath2.isEmpty()) { 
-                stream = new FileInputStream(_zPath2); 
-                decode = new Decode();
-                decode.addListener((MesgListener) listener); 
-                decode.read(stream);
-                stream.close();
-                if(!_zPath3.isEmpty()) {
-                    stream = new FileInputStream(_zPath3); 
-                    decode = new Decode();
-                    decode.addListener((MesgListener) listener); 
-                    decode.read(stream);
-                    stream.close();
-                }                
-            }            
-        } 
-        catch (FitRuntimeException | IOException e) {
-            error("Error reading Zwift file.\n" + e.getMessage());            
-            throw new RuntimeException();
+                
+        if(new File(_mPath).exists() && !_mPath.equals(_gPath) && !zPaths.contains(_mPath)
+                && !select("\"" + _mPath + "\"\nThe merge file already exists. Do you want to overwrite?")) {
+            warn("Merging process did not complete.");
+            return;
         }
-    }
-    
-    private void createNewGarminFile() {
-        class Listener implements MesgListener, MesgDefinitionListener {
-            final private int VIRTUAL_ACTIVITY = SubSport.VIRTUAL_ACTIVITY.getValue();
-            FileEncoder _encode;
-            Double _ascent, _descent, _distOffset, _lapAscent, _lapDescent, _lastAlt, _totDist, _lapDist, _lastDist, _maxSpd, _maxLapSpd;
-            Integer _lapTime, _lastTime, _startTime;            
-
-            public Listener() {
-                _encode = new FileEncoder(new File(_mPath), Fit.ProtocolVersion.V2_0);
-                _distOffset = null;
-                _ascent = _descent = _lapAscent = _lapDescent = _lastAlt = _totDist = _lapDist = _maxSpd = _maxLapSpd = 0.0;
-                _lapTime = _lastTime = _startTime = _fileIndex = 0;
-            }
 
+        Merge merge = new Merge(_gPath, zPaths, _mPath);
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
             @Override
-            public void onMesg(Mesg mesg) { 
-                
-                int type = mesg.getNum(); 
-                if(!MesgNum.getStringFromValue(type).equals("")) {
-                    
-                    switch (type) {
-                        
-                        case MesgNum.RECORD:                            
-                            
-                            Integer timestamp = mesg.getFieldIntegerValue(RecordMesg.TimestampFieldNum);
-                            HashMap<Enum, Double> zData = _records.get(timestamp);
-                            
-                            // ignore records that dont match a Zwift timestamp
-                            if(zData == null) return;
-                            // first zwift file
-                            else if(_startTime == 0) {
-                                _startTime = timestamp;
-                                _lapTime = timestamp;
-                                _lastAlt = zData.get(FIELD.ALTITUDE);
-                            }
-                            // additional zwift file/s
-                            else if(_fileTimestamp[_fileIndex] < timestamp) {
-                                _fileIndex++;
-                                
-                                // add distance from previous file
-                                _distOffset = _totDist;
-                                
-                                // reset alt so not big jumps from change in location
-                                _lastAlt = zData.get(FIELD.ALTITUDE);
-                                
-                                // start a new lap                                
-                                _lapAscent = _lapDescent = _maxLapSpd = 0.0;
-                                _lapTime = timestamp;
-                                _lapDist = _totDist;
-                            }
-
-                            // calculate altitudes
-                            Double altitude = zData.get(FIELD.ALTITUDE);
-                            if(altitude > _lastAlt) {
-                                _ascent += altitude - _lastAlt;
-                                _lapAscent += altitude - _lastAlt;
-                            }
-                            else if(altitude < _lastAlt) {
-                                _descent += _lastAlt - altitude;
-                                _lapDescent += _lastAlt - altitude;
-                            }   
-                            
-                            // distance offset removes any Zwift distance not covered by Garmin timestamps
-                            // or adds any difference when combining input files
-                            if(_distOffset == null) _distOffset = zData.get(FIELD.DISTANCE) * -1;
-                            _totDist = zData.get(FIELD.DISTANCE) + _distOffset;
-                            
-                            // watch for max speeds
-                            Double speed = zData.get(FIELD.SPEED);
-                            if(speed > _maxSpd) _maxSpd = speed;
-                            if(speed > _maxLapSpd) _maxLapSpd = speed;
-                            
-                            // update the selected Garmin fields
-                            // elevation
-                            mesg.setFieldValue(RecordMesg.AltitudeFieldNum, altitude);
-                            mesg.setFieldValue(RecordMesg.EnhancedAltitudeFieldNum, altitude);
-                            // distance
-                            mesg.setFieldValue(RecordMesg.DistanceFieldNum, _totDist);
-                            // location
-                            mesg.setFieldValue(RecordMesg.PositionLatFieldNum, zData.get(FIELD.LATITUDE));
-                            mesg.setFieldValue(RecordMesg.PositionLongFieldNum, zData.get(FIELD.LONGITUDE));
-                            // speed
-                            mesg.setFieldValue(RecordMesg.SpeedFieldNum, speed);
-                            mesg.setFieldValue(RecordMesg.EnhancedSpeedFieldNum, speed);
-                            
-                            _lastAlt = altitude;
-                            _lastTime = timestamp;
-                            break;
-                            
-                        case MesgNum.LAP:
-                            
-                            // calculate lap values
-                            int lapTime = _lastTime - _lapTime;
-                            Double lapDist = _totDist - _lapDist;
-                            
-                            // update the selected Garmin fields
-                            // elevation
-                            mesg.setFieldValue(LapMesg.TotalAscentFieldNum, _lapAscent);
-                            mesg.setFieldValue(LapMesg.TotalDescentFieldNum, _lapDescent);
-                            // distance
-                            mesg.setFieldValue(LapMesg.TotalDistanceFieldNum, lapDist);
-                            // speed
-                            mesg.setFieldValue(LapMesg.AvgSpeedFieldNum, lapDist / lapTime);
-                            mesg.setFieldValue(LapMesg.MaxSpeedFieldNum, _maxLapSpd);
-                            mesg.setFieldValue(LapMesg.EnhancedAvgSpeedFieldNum, lapDist / lapTime);
-                            mesg.setFieldValue(LapMesg.EnhancedMaxSpeedFieldNum, _maxLapSpd);                            
-                            // time
-                            mesg.setFieldValue(LapMesg.TotalElapsedTimeFieldNum, lapTime);
-                            mesg.setFieldValue(LapMesg.TotalTimerTimeFieldNum, lapTime);
-                            // set virtual
-                            mesg.setFieldValue(LapMesg.SubSportFieldNum, VIRTUAL_ACTIVITY);
-                            
-                            _lapAscent = _lapDescent = _maxLapSpd = 0.0;
-                            _lapTime = _lastTime;
-                            _lapDist = _totDist;
-                            break;
-                            
-                        case MesgNum.SESSION:
-                            
-                            int elapsedTime = _lastTime - _startTime;
-                            // update the selected Garmin fields
-                            // elevation
-                            mesg.setFieldValue(SessionMesg.TotalAscentFieldNum, _ascent);
-                            mesg.setFieldValue(SessionMesg.TotalDescentFieldNum, _descent);
-                            // speed
-                            mesg.setFieldValue(SessionMesg.AvgSpeedFieldNum, _totDist / elapsedTime);
-                            mesg.setFieldValue(SessionMesg.MaxSpeedFieldNum, _maxSpd);
-                            mesg.setFieldValue(SessionMesg.EnhancedAvgSpeedFieldNum, _totDist / elapsedTime);
-                            mesg.setFieldValue(SessionMesg.EnhancedMaxSpeedFieldNum, _maxSpd);
-                            // distance
-                            mesg.setFieldValue(SessionMesg.TotalDistanceFieldNum, _totDist);
-                            // time
-                            mesg.setFieldValue(SessionMesg.TotalElapsedTimeFieldNum, elapsedTime);
-                            mesg.setFieldValue(SessionMesg.TotalTimerTimeFieldNum, elapsedTime);
-                            //set virtual
-                            mesg.setFieldValue(SessionMesg.SubSportFieldNum, VIRTUAL_ACTIVITY);
-                            break;
-                            
-                        case MesgNum.FILE_ID:
-                            
-                            Integer man = mesg.getFieldIntegerValue(FileIdMesg.ManufacturerFieldNum);
-                            if(man == null || man != Manufacturer.GARMIN) 
-                                throw new FitRuntimeException("Manufacturer does not match Garmin.");
-                            break;
-                            
-                        default:
-                            break;                     
-                    }
-                     _encode.write(mesg);  
-                }
+            protected Void doInBackground() {
+                // every bad file in one dialog, before any merging
+                merge.validate();
+                merge.run();
+                return null;
             }
 
             @Override
-            public void onMesgDefinition(MesgDefinition mesg) {
-                if(!MesgNum.getStringFromValue(mesg.getNum()).equals("")) _encode.write(mesg);
+            protected void done() {
+                finishMerge(this, merge);
             }
+        };
+        _merge = merge;
+        _mergeStart = System.nanoTime();
+        setRunning(true);
+        worker.execute();
+    }
 
-            private void close() {
-                _encode.close();
-            }
+    private void setRunning(boolean running) {
+        _mergeBtn.setEnabled(!running);
+        _resetBtn.setEnabled(!running);
+        _cancelBtn.setEnabled(running);
+        if(running) {
+            _progress.setValue(0);
+            _progress.setString("0%");
+            _status.setText("Starting...");
+            _timer.start();
         }
-
-        InputStream stream; 
-        Decode decode = new Decode();
-        Listener listener = new Listener();
-        decode.addListener((MesgListener) listener);
-        decode.addListener((MesgDefinitionListener) listener);    
-            
-        try {                     
-            stream = new FileInputStream(_gPath);  
-            decode.read(stream);
-            listener.close();              
-            stream.close();                      
-        } 
-        catch (FitRuntimeException | IOException e) {     
-            error("Error reading Garmin file.\n" + e.getMessage());            
-            throw new RuntimeException();
+        else {
+            _timer.stop();
+            _merge = null;
         }
     }
 
-    public void merge() {
+    /**
+     * Shows how far the merge has got, its record rate and the time left.
+     */
+    private void showProgress() {
+        Merge merge = _merge;
+        if(merge == null || merge.isCancelled()) return;
+        long total = merge.getBytesTotal();
+        long read = merge.getBytesRead();
+        double seconds = (System.nanoTime() - _mergeStart) / 1e9;
+        if(total <= 0 || seconds <= 0) return;
+        double done = Math.min(1.0, (double) read / total);
+        _progress.setValue((int) (done * 1000));
+        _progress.setString(String.format("%.0f%%", done * 100));
+        String status = String.format("%,.0f records/s", merge.getRecords() / seconds);
+        if(done > 0.01) {
+            long left = Math.round(seconds * (1 - done) / done);
+            status += String.format(", %d:%02d left", left / 60, left % 60);
+        }
+        _status.setText(status);
+    }
 
-        _gPath = _gText.getText();
-        _zPath1 = _zText1.getText();
-        _zPath2 = _zText2.getText();
-        _zPath3 = _zText3.getText();
-        _mPath = _mText.getText(); 
-                
+    private void finishMerge(SwingWorker<Void, Void> worker, Merge merge) {
+        setRunning(false);
         try {
-            if(_mPath.equals(_gPath) || _mPath.equals(_zPath1) || _mPath.equals(_zPath2) || _mPath.equals(_zPath3)) {
-                error("You are trying to overwrite an input file!");
-                throw new RuntimeException();
-            }
-            checkInStream(_gPath);
-            checkInStream(_zPath1); 
-            if(!_zPath2.isEmpty()) {
-                checkInStream(_zPath2);
-                if(!_zPath3.isEmpty()) checkInStream(_zPath3);
-            }            
-            checkOutStream(_mPath);
-            getZwiftData();
-            createNewGarminFile();            
+            worker.get();
+            _progress.setValue(1000);
+            _progress.setString("100%");
+            _status.setText(String.format("%,d records in %.1f s", merge.getRecords(), (System.nanoTime() - _mergeStart) / 1e9));
+            for(String warning : merge.getWarnings()) warn(warning);
             info("Merging process completed successfully.");
         }
-        catch (RuntimeException e) {
-            warn("Merging process did not complete.");
+        catch (ExecutionException e) {
+            _progress.setValue(0);
+            _progress.setString("");
+            _status.setText(null);
+            if(e.getCause() instanceof MergeCancelledException) {
+                info("Merging process cancelled.");
+            }
+            else {
+                error(e.getCause() instanceof MergeException ? e.getCause().getMessage() : String.valueOf(e.getCause()));
+                warn("Merging process did not complete.");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     public static void main(String[] args) {
+        if(args.length > 0) {
+            if(args[0].equals("--watch") || args[0].equals("--pair")) Watch.main(args);
+            else if(args[0].equals("--serve")) Service.main(args);
+            else if(args[0].equals("--extract")) TrackFile.main(args);
+            else Batch.main(args);
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             Zmerge app = new Zmerge();
             app.createGui();
         });
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
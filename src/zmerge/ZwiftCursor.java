@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+/**
+ * Reads Zwift records in ascending time order, as the Garmin records they
+ * are matched against arrive.
+ *
+ * @author Nicholas Rodie
+ */
+public interface ZwiftCursor {
+
+    /**
+     * Moves to the record with the given timestamp, passing over any earlier
+     * records.
+     *
+     * @return false if there is no Zwift record with this timestamp
+     */
+    boolean seek(int timestamp);
+
+    /** the Zwift file the current record came from, counting from 0 */
+    int segment();
+
+    double altitude();
+
+    double distance();
+
+    int latitude();
+
+    int longitude();
+
+    double speed();
+}
@@ -0,0 +1,271 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Zwift records published by decoding threads while the Garmin file is
+ * rewritten. Each Zwift file is a {@link Part} filled by its own thread; the
+ * cursor only waits when it asks for a timestamp that a part still
+ * decoding hasn't reached yet.
+ * <p>
+ * Like {@link ZwiftTrack#merge}, segments are ordered by their first record
+ * and a later segment wins on a duplicate timestamp. Each Zwift file must be
+ * in time order; a record that is not later than the one before it in the
+ * same file is dropped.
+ *
+ * @author Nicholas Rodie
+ */
+public final class ZwiftPipeline implements ZwiftCursor {
+
+    // how many records a part adds before waking a waiting reader
+    private static final int PUBLISH_EVERY = 64;
+
+    /**
+     * The columns of a part. A part replaces its columns when it grows, and
+     * the copies hold every record published so far.
+     */
+    private static final class Columns {
+        final int[] _timestamp, _latitude, _longitude;
+        final double[] _altitude, _distance, _speed;
+
+        Columns(int capacity) {
+            _timestamp = new int[capacity];
+            _latitude = new int[capacity];
+            _longitude = new int[capacity];
+            _altitude = new double[capacity];
+            _distance = new double[capacity];
+            _speed = new double[capacity];
+        }
+
+        Columns(Columns c, int capacity) {
+            _timestamp = Arrays.copyOf(c._timestamp, capacity);
+            _latitude = Arrays.copyOf(c._latitude, capacity);
+            _longitude = Arrays.copyOf(c._longitude, capacity);
+            _altitude = Arrays.copyOf(c._altitude, capacity);
+            _distance = Arrays.copyOf(c._distance, capacity);
+            _speed = Arrays.copyOf(c._speed, capacity);
+        }
+    }
+
+    /**
+     * One Zwift file. Written by a single decoding thread, read by the merge.
+     */
+    public final class Part implements ZwiftSink {
+        private volatile Columns _columns = new Columns(4096);
+        private volatile int _published;
+        private volatile boolean _done;
+        private Columns _fill = _columns;
+        private int _size, _hint;
+
+        @Override
+        public void startSegment() {}
+
+        @Override
+        public void add(int timestamp, double altitude, double distance, int latitude, int longitude, double speed) {
+            if(_closed) throw new MergeCancelledException();
+            if(_size > 0 && timestamp <= _fill._timestamp[_size - 1]) return;
+            if(_size == _fill._timestamp.length) {
+                _fill = new Columns(_fill, _size + (_size >> 1));
+                _columns = _fill;
+            }
+            _fill._timestamp[_size] = timestamp;
+            _fill._altitude[_size] = altitude;
+            _fill._distance[_size] = distance;
+            _fill._latitude[_size] = latitude;
+            _fill._longitude[_size] = longitude;
+            _fill._speed[_size] = speed;
+            _size++;
+            _published = _size;
+            if(_size == 1 || _size % PUBLISH_EVERY == 0) signal();
+        }
+
+        /**
+         * Marks the part complete, with the error that stopped it if any.
+         */
+        public void done(RuntimeException error) {
+            if(error != null && _error == null) _error = error;
+            _done = true;
+            signal();
+        }
+
+        private int first() {
+            return _columns._timestamp[0];
+        }
+
+        /**
+         * True once this part can say whether it has the timestamp.
+         */
+        private boolean reached(int timestamp) {
+            // read the count first, the columns read after it hold at least that many
+            int published = _published;
+            return _done || (published > 0 && _columns._timestamp[published - 1] >= timestamp);
+        }
+    }
+
+    private final List<Part> _parts;
+    private final ReentrantLock _lock;
+    private final Condition _published;
+    private volatile RuntimeException _error;
+    private volatile boolean _closed;
+    private Part[] _order;
+    private Columns _match;
+    private int _index, _segment;
+
+    public ZwiftPipeline() {
+        _parts = new ArrayList<>();
+        _lock = new ReentrantLock();
+        _published = _lock.newCondition();
+    }
+
+    /**
+     * Adds a part for one Zwift file. All parts must be added before the
+     * first {@link #seek}.
+     */
+    public Part newPart() {
+        Part part = new Part();
+        _parts.add(part);
+        return part;
+    }
+
+    private void signal() {
+        _lock.lock();
+        try {
+            _published.signalAll();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the condition holds for the part, or a part has failed.
+     */
+    private void await(Part part, int timestamp) {
+        if(part.reached(timestamp) && _error == null) return;
+        _lock.lock();
+        try {
+            while(!part.reached(timestamp) && _error == null && !_closed) 
+                _published.await(100, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MergeCancelledException(e);
+        }
+        finally {
+            _lock.unlock();
+        }
+        if(_error != null) throw _error;
+        if(_closed) throw new MergeCancelledException();
+    }
+
+    /**
+     * Orders the parts by their first record once every part has one.
+     */
+    private void order() {
+        List<Part> started = new ArrayList<>();
+        for(Part part : _parts) {
+            await(part, Integer.MIN_VALUE);
+            if(part._published > 0) started.add(part);
+        }
+        started.sort((a, b) -> Integer.compare(a.first(), b.first()));
+        _order = started.toArray(new Part[0]);
+    }
+
+    @Override
+    public boolean seek(int timestamp) {
+        if(_order == null) order();
+        _match = null;
+        for(int segment = 0; segment < _order.length; segment++) {
+            Part part = _order[segment];
+            // parts are in start order, so none of the rest can have it
+            if(part.first() > timestamp) break;
+            await(part, timestamp);
+            int published = part._published;
+            Columns columns = part._columns;
+            int[] timestamps = columns._timestamp;
+            int from = part._hint < published && timestamps[part._hint] <= timestamp ? part._hint : 0;
+            int index = Arrays.binarySearch(timestamps, from, published, timestamp);
+            if(index >= 0) {
+                part._hint = index;
+                _match = columns;
+                _index = index;
+                _segment = segment;
+            }
+            else part._hint = Math.min(-index - 1, Math.max(0, published - 1));
+        }
+        return _match != null;
+    }
+
+    @Override
+    public int segment() {
+        return _segment;
+    }
+
+    @Override
+    public double altitude() {
+        return _match._altitude[_index];
+    }
+
+    @Override
+    public double distance() {
+        return _match._distance[_index];
+    }
+
+    @Override
+    public int latitude() {
+        return _match._latitude[_index];
+    }
+
+    @Override
+    public int longitude() {
+        return _match._longitude[_index];
+    }
+
+    @Override
+    public double speed() {
+        return _match._speed[_index];
+    }
+
+    /**
+     * Waits for every part to finish and reports the first error.
+     */
+    public void finish() {
+        for(Part part : _parts) await(part, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Makes the decoding threads stop at their next record.
+     */
+    public void close() {
+        _closed = true;
+        signal();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams Zwift records from a decoding thread to the Garmin merge through a
+ * small bounded queue, so only a window of the Zwift ride is ever in memory.
+ * <p>
+ * Records must arrive in ascending time order, which holds for the Zwift
+ * files themselves as long as they are given in ride order. A record that
+ * is not later than the one before it is dropped.
+ *
+ * @author Nicholas Rodie
+ */
+public final class ZwiftStream implements ZwiftSink, ZwiftCursor, AutoCloseable {
+
+    static final int CHUNK_SIZE = 256;
+    static final int CHUNKS = 16;
+
+    /**
+     * Decodes the Zwift files into the stream.
+     */
+    public interface Producer {
+        void decode(ZwiftSink sink) throws Exception;
+    }
+
+    private static final class Chunk {
+        final int[] _timestamp = new int[CHUNK_SIZE], _latitude = new int[CHUNK_SIZE], _longitude = new int[CHUNK_SIZE];
+        final double[] _altitude = new double[CHUNK_SIZE], _distance = new double[CHUNK_SIZE], _speed = new double[CHUNK_SIZE];
+        final int _segment;
+        int _size;
+
+        Chunk(int segment) {
+            _segment = segment;
+        }
+    }
+
+    private static final Chunk END = new Chunk(-1);
+
+    private final BlockingQueue<Chunk> _queue;
+    private final Thread _thread;
+    private volatile boolean _discard, _aborted;
+    private volatile Exception _error;
+
+    // producer side
+    private Chunk _fill;
+    private int _segment = -1, _lastTimestamp = Integer.MIN_VALUE;
+
+    // consumer side
+    private Chunk _chunk;
+    private int _pos;
+    private boolean _ended;
+
+    public ZwiftStream(Producer producer) {
+        _queue = new ArrayBlockingQueue<>(CHUNKS);
+        _thread = new Thread(() -> {
+            try {
+                producer.decode(this);
+                if(_fill != null && _fill._size > 0) put(_fill);
+            }
+            catch (Exception e) {
+                if(!_aborted) _error = e;
+            }
+            finally {
+                put(END);
+            }
+        }, "zwift-stream");
+        _thread.setDaemon(true);
+    }
+
+    public ZwiftStream start() {
+        _thread.start();
+        return this;
+    }
+
+    private void put(Chunk chunk) {
+        try {
+            // once the consumer is done nobody takes from the queue
+            while(!_discard) 
+                if(_queue.offer(chunk, 50, TimeUnit.MILLISECONDS)) return;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void startSegment() {
+        _segment++;
+        if(_fill != null && _fill._size > 0) put(_fill);
+        _fill = null;
+    }
+
+    @Override
+    public void add(int timestamp, double altitude, double distance, int latitude, int longitude, double speed) {
+        if(_aborted) throw new MergeCancelledException();
+        if(_discard || timestamp <= _lastTimestamp) return;
+        _lastTimestamp = timestamp;
+        if(_segment < 0) _segment = 0;
+        if(_fill == null) _fill = new Chunk(_segment);
+        int i = _fill._size++;
+        _fill._timestamp[i] = timestamp;
+        _fill._altitude[i] = altitude;
+        _fill._distance[i] = distance;
+        _fill._latitude[i] = latitude;
+        _fill._longitude[i] = longitude;
+        _fill._speed[i] = speed;
+        if(_fill._size == CHUNK_SIZE) {
+            put(_fill);
+            _fill = null;
+        }
+    }
+
+    /**
+     * Takes the next chunk off the queue.
+     *
+     * @return false once the stream has ended
+     */
+    private boolean next() {
+        if(_ended) return false;
+        try {
+            _chunk = _queue.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MergeCancelledException(e);
+        }
+        _pos = 0;
+        if(_chunk == END) {
+            _ended = true;
+            _chunk = null;
+            rethrow();
+            return false;
+        }
+        return true;
+    }
+
+    private void rethrow() {
+        Exception e = _error;
+        if(e instanceof RuntimeException) throw (RuntimeException) e;
+        else if(e != null)
+            throw new MergeException(MergeException.Reason.ZWIFT_INPUT, "Error reading Zwift file.\n" + e.getMessage(), e);
+    }
+
+    @Override
+    public boolean seek(int timestamp) {
+        while(true) {
+            if(_chunk == null || _pos >= _chunk._size) {
+                if(!next()) return false;
+                continue;
+            }
+            // skip whole chunks that end before the timestamp
+            if(_chunk._timestamp[_chunk._size - 1] < timestamp) {
+                _pos = _chunk._size;
+                continue;
+            }
+            while(_chunk._timestamp[_pos] < timestamp) _pos++;
+            return _chunk._timestamp[_pos] == timestamp;
+        }
+    }
+
+    @Override
+    public int segment() {
+        return _chunk._segment;
+    }
+
+    @Override
+    public double altitude() {
+        return _chunk._altitude[_pos];
+    }
+
+    @Override
+    public double distance() {
+        return _chunk._distance[_pos];
+    }
+
+    @Override
+    public int latitude() {
+        return _chunk._latitude[_pos];
+    }
+
+    @Override
+    public int longitude() {
+        return _chunk._longitude[_pos];
+    }
+
+    @Override
+    public double speed() {
+        return _chunk._speed[_pos];
+    }
+
+    /**
+     * Lets the producer read the rest of its input without queueing it, so
+     * that the whole file is checked, and reports any error it hit.
+     */
+    public void finish() {
+        _discard = true;
+        try {
+            _thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MergeCancelledException(e);
+        }
+        _queue.clear();
+        rethrow();
+    }
+
+    /**
+     * Stops the producer without waiting for it to finish its input.
+     */
+    @Override
+    public void close() {
+        _aborted = true;
+        _discard = true;
+        _thread.interrupt();
+        _queue.clear();
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Nicholas Rodie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package zmerge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The Zwift fields used by a merge, stored as parallel primitive columns
+ * sorted by timestamp.
+ * <p>
+ * Records are appended while decoding and {@link #seal()} is called once
+ * decoding has finished. Each Zwift file is a segment; a record belongs to
+ * the last segment that started at or before its timestamp.
+ * <p>
+ * A sealed track holds 36 bytes a record, and up to about 50 while records
+ * are still being added. The map of maps it replaced held about 456, as
+ * measured by {@code TrackHeap} in {@code bench} on a generated 24 hour
+ * ride with compressed oops.
+ *
+ * @author Nicholas Rodie
+ */
+public final class ZwiftTrack implements ZwiftSink {
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private int[] _timestamp, _latitude, _longitude, _segmentStart;
+    private double[] _altitude, _distance, _speed;
+    private int _size, _segments;
+    private boolean _sealed;
+
+    public ZwiftTrack() {
+        _timestamp = new int[INITIAL_CAPACITY];
+        _latitude = new int[INITIAL_CAPACITY];
+        _longitude = new int[INITIAL_CAPACITY];
+        _altitude = new double[INITIAL_CAPACITY];
+        _distance = new double[INITIAL_CAPACITY];
+        _speed = new double[INITIAL_CAPACITY];
+        _segmentStart = new int[4];
+    }
+
+    /**
+     * Starts a new segment, the next record added sets its start time.
+     */
+    @Override
+    public void startSegment() {
+        if(_segments == _segmentStart.length) _segmentStart = Arrays.copyOf(_segmentStart, _segments * 2);
+        _segmentStart[_segments++] = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Starts a new segment with a known start time.
+     */
+    void addSegment(int start) {
+        startSegment();
+        _segmentStart[_segments - 1] = start;
+    }
+
+    @Override
+    public void add(int timestamp, double altitude, double distance, int latitude, int longitude, double speed) {
+        if(_sealed) throw new IllegalStateException("track is sealed");
+        if(_segments == 0) startSegment();
+        if(_segmentStart[_segments - 1] == Integer.MIN_VALUE) _segmentStart[_segments - 1] = timestamp;
+        if(_size == _timestamp.length) grow(_size + (_size >> 1));
+        _timestamp[_size] = timestamp;
+        _altitude[_size] = altitude;
+        _distance[_size] = distance;
+        _latitude[_size] = latitude;
+        _longitude[_size] = longitude;
+        _speed[_size] = speed;
+        _size++;
+    }
+
+    /**
+     * Sorts the records by timestamp and trims the columns. When two records
+     * share a timestamp the one added last is kept.
+     */
+    public void seal() {
+        if(_sealed) return;
+        _sealed = true;
+
+        // drop segments that never received a record
+        int segments = 0;
+        for(int i = 0; i < _segments; i++) 
+            if(_segmentStart[i] != Integer.MIN_VALUE) _segmentStart[segments++] = _segmentStart[i];
+        _segments = segments;
+        _segmentStart = Arrays.copyOf(_segmentStart, segments);
+        Arrays.sort(_segmentStart);
+
+        boolean sorted = true;
+        for(int i = 1; i < _size && sorted; i++) sorted = _timestamp[i - 1] < _timestamp[i];
+        if(sorted) {
+            grow(_size);
+            return;
+        }
+
+        // timestamp in the high bits, position in the low bits keeps the sort stable
+        long[] order = new long[_size];
+        for(int i = 0; i < _size; i++) order[i] = ((long) _timestamp[i] << 32) | i;
+        Arrays.sort(order);
+
+        int n = 0;
+        int[] timestamp = new int[_size], latitude = new int[_size], longitude = new int[_size];
+        double[] altitude = new double[_size], distance = new double[_size], speed = new double[_size];
+        for(int i = 0; i < _size; i++) {
+            // the last of a run of equal timestamps wins
+            if(i + 1 < _size && (order[i + 1] >> 32) == (order[i] >> 32)) continue;
+            int j = (int) order[i];
+            timestamp[n] = _timestamp[j];
+            altitude[n] = _altitude[j];
+            distance[n] = _distance[j];
+            latitude[n] = _latitude[j];
+            longitude[n] = _longitude[j];
+            speed[n] = _speed[j];
+            n++;
+        }
+        _timestamp = timestamp;
+        _altitude = altitude;
+        _distance = distance;
+        _latitude = latitude;
+        _longitude = longitude;
+        _speed = speed;
+        _size = n;
+        grow(n);
+    }
+
+    /**
+     * Merges sealed tracks into one sealed track. The segments of the result
+     * are in time order, whatever order the tracks were given in. When two
+     * records share a timestamp the one from the later starting track is
+     * kept.
+     */
+    public static ZwiftTrack merge(List<ZwiftTrack> tracks) {
+        List<ZwiftTrack> parts = new ArrayList<>();
+        for(ZwiftTrack track : tracks) {
+            if(!track._sealed) throw new IllegalStateException("track is not sealed");
+            if(track._size > 0) parts.add(track);
+        }
+        parts.sort((a, b) -> Integer.compare(a._timestamp[0], b._timestamp[0]));
+        if(parts.size() == 1) return parts.get(0);
+
+        ZwiftTrack merged = new ZwiftTrack();
+        int total = 0;
+        for(ZwiftTrack part : parts) {
+            total += part._size;
+            for(int i = 0; i < part._segments; i++) {
+                merged.startSegment();
+                merged._segmentStart[merged._segments - 1] = part._segmentStart[i];
+            }
+        }
+        merged.grow(total);
+
+        // k-way merge on a binary heap of part numbers ordered by their next timestamp
+        int k = parts.size();
+        int[] pos = new int[k];
+        int[] heap = new int[k];
+        for(int i = 0; i < k; i++) heap[i] = i;
+        for(int i = k / 2 - 1; i >= 0; i--) siftDown(heap, i, k, parts, pos);
+        int n = 0;
+        while(k > 0) {
+            int p = heap[0];
+            ZwiftTrack part = parts.get(p);
+            int i = pos[p]++;
+            int timestamp = part._timestamp[i];
+            // equal timestamps come out in part order so the last one overwrites
+            if(n > 0 && merged._timestamp[n - 1] == timestamp) n--;
+            merged._timestamp[n] = timestamp;
+            merged._altitude[n] = part._altitude[i];
+            merged._distance[n] = part._distance[i];
+            merged._latitude[n] = part._latitude[i];
+            merged._longitude[n] = part._longitude[i];
+            merged._speed[n] = part._speed[i];
+            n++;
+            if(pos[p] == part._size) heap[0] = heap[--k];
+            siftDown(heap, 0, k, parts, pos);
+        }
+        merged._size = n;
+        merged.seal();
+        return merged;
+    }
+
+    private static void siftDown(int[] heap, int i, int k, List<ZwiftTrack> parts, int[] pos) {
+        while(true) {
+            int least = i, left = 2 * i + 1, right = left + 1;
+            if(left < k && before(heap[left], heap[least], parts, pos)) least = left;
+            if(right < k && before(heap[right], heap[least], parts, pos)) least = right;
+            if(least == i) return;
+            int t = heap[i];
+            heap[i] = heap[least];
+            heap[least] = t;
+            i = least;
+        }
+    }
+
+    private static boolean before(int a, int b, List<ZwiftTrack> parts, int[] pos) {
+        int ta = parts.get(a)._timestamp[pos[a]], tb = parts.get(b)._timestamp[pos[b]];
+        return ta < tb || (ta == tb && a < b);
+    }
+
+    private void grow(int capacity) {
+        _timestamp = Arrays.copyOf(_timestamp, capacity);
+        _altitude = Arrays.copyOf(_altitude, capacity);
+        _distance = Arrays.copyOf(_distance, capacity);
+        _latitude = Arrays.copyOf(_latitude, capacity);
+        _longitude = Arrays.copyOf(_longitude, capacity);
+        _speed = Arrays.copyOf(_speed, capacity);
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    int[] segmentStarts() {
+        return Arrays.copyOf(_segmentStart, _segments);
+    }
+
+    public int segments() {
+        return _segments;
+    }
+
+    /**
+     * Finds the record with the given timestamp.
+     *
+     * @param timestamp FIT timestamp to look for
+     * @param hint index to start searching from, lookups in ascending time
+     *             order only ever search forward from the last match
+     * @return the record index, or a negative value if there is no record
+     */
+    public int indexOf(int timestamp, int hint) {
+        if(!_sealed) throw new IllegalStateException("track is not sealed");
+        int from = hint > 0 && hint < _size && _timestamp[hint] <= timestamp ? hint : 0;
+        return Arrays.binarySearch(_timestamp, from, _size, timestamp);
+    }
+
+    /**
+     * The segment that the record at index belongs to, counting from 0.
+     */
+    public int segment(int index) {
+        int segment = Arrays.binarySearch(_segmentStart, _timestamp[index]);
+        return segment >= 0 ? segment : Math.max(0, -segment - 2);
+    }
+
+    /**
+     * A cursor for reading a sealed track in time order.
+     */
+    public ZwiftCursor cursor() {
+        if(!_sealed) throw new IllegalStateException("track is not sealed");
+        return new ZwiftCursor() {
+            int _index = -1, _hint = 0;
+
+            @Override
+            public boolean seek(int timestamp) {
+                int index = indexOf(timestamp, _hint);
+                if(index < 0) return false;
+                _index = _hint = index;
+                return true;
+            }
+
+            @Override
+            public int segment() {
+                return ZwiftTrack.this.segment(_index);
+            }
+
+            @Override
+            public double altitude() {
+                return _altitude[_index];
+            }
+
+            @Override
+            public double distance() {
+                return _distance[_index];
+            }
+
+            @Override
+            public int latitude() {
+                return _latitude[_index];
+            }
+
+            @Override
+            public int longitude() {
+                return _longitude[_index];
+            }
+
+            @Override
+            public double speed() {
+                return _speed[_index];
+            }
+        };
+    }
+
+    public int timestamp(int index) {
+        return _timestamp[index];
+    }
+
+    public double altitude(int index) {
+        return _altitude[index];
+    }
+
+    public double distance(int index) {
+        return _distance[index];
+    }
+
+    public int latitude(int index) {
+        return _latitude[index];
+    }
+
+    public int longitude(int index) {
+        return _longitude[index];
+    }
+
+    public double speed(int index) {
+        return _speed[index];
+    }
+}